@@ -28,11 +28,16 @@ public class AndroidFst<S> extends AsyncFst<S> {
 
     @Override
     protected void runOnMainThread(Runnable proc) {
-        if (Thread.currentThread() == Looper.getMainLooper().getThread()) {
+        if (isMainThread()) {
             proc.run();
         }
         else {
             HANDLER.post(proc);
         }
     }
+
+    @Override
+    protected boolean isMainThread() {
+        return Thread.currentThread() == Looper.getMainLooper().getThread();
+    }
 }
@@ -0,0 +1,58 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/**
+ * A {@link TickSource} that ticks on the display's vsync.
+ * <p>
+ * Ticks are delivered in the main thread at the start of the next frame. On
+ * API levels without {@link Choreographer}, this falls back to posting to the
+ * main thread after about a frame's worth of time.
+ */
+public final class ChoreographerTicks implements TickSource {
+
+    private static class Shared {
+        static final ChoreographerTicks INSTANCE = new ChoreographerTicks();
+    }
+
+    /**
+     * @return the main thread tick source.
+     */
+    public static ChoreographerTicks get() {
+        return Shared.INSTANCE;
+    }
+
+    private static final long FALLBACK_FRAME_MILLIS = 16;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private ChoreographerTicks() {
+    }
+
+    @Override
+    public void requestTick(Runnable onTick) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN) {
+            handler.postDelayed(onTick, FALLBACK_FRAME_MILLIS);
+        }
+        else if (Looper.myLooper() == Looper.getMainLooper()) {
+            postFrameCallback(onTick);
+        }
+        else {
+            // Choreographer instances are per-looper; ours lives in main.
+            handler.post(() -> postFrameCallback(onTick));
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void postFrameCallback(Runnable onTick) {
+        Choreographer.getInstance().postFrameCallback(frameTimeNanos -> onTick.run());
+    }
+}
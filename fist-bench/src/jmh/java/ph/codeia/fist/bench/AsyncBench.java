@@ -0,0 +1,95 @@
+package ph.codeia.fist.bench;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ph.codeia.fist.AsyncFst;
+import ph.codeia.fist.Effects;
+import ph.codeia.fist.Fst;
+import ph.codeia.fist.Mu;
+
+/**
+ * Round trip of an async action through {@code AsyncFst.Pending}: exec,
+ * worker, timeout registration, exec of the result and notification.
+ * <p>
+ * With the direct worker, the block runs in the caller's thread, so this is
+ * the bookkeeping alone. With the thread worker, it includes the handoff to
+ * and from a worker thread.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AsyncBench {
+
+    @Param({"direct", "thread"})
+    public String worker;
+
+    private final Mu.Action<Integer> inc = n -> Mu.enter(n + 1);
+    private final Callable<Mu.Action<Integer>> block = () -> inc;
+    private final Mu.Action<Integer> async = n -> Mu.async(block);
+    private final Mu.Action<Integer> defer = n -> Mu.defer(k -> k.resume(inc));
+    private volatile int last;
+    private final Effects<Integer> fx = n -> last = n;
+    private ExecutorService pool;
+    private Fst<Integer> fst;
+    private int expected;
+
+    @Setup
+    public void setup() {
+        AsyncFst.Builder builder = new AsyncFst.Builder();
+        if (worker.equals("thread")) {
+            pool = Executors.newSingleThreadExecutor();
+            builder.workOn(pool);
+        }
+        else {
+            builder.workOn(Runnable::run);
+        }
+        fst = builder.build(0);
+        fst.start(fx);
+        expected = fst.project(n -> n);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fst.stop();
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public int asyncRoundTrip() {
+        return roundTrip(async);
+    }
+
+    @Benchmark
+    public int deferRoundTrip() {
+        return roundTrip(defer);
+    }
+
+    private int roundTrip(Mu.Action<Integer> action) {
+        int target = ++expected;
+        fst.exec(fx, action);
+        while (last != target) {
+            // the result is applied in the worker thread
+            Thread.yield();
+        }
+        return target;
+    }
+}
@@ -0,0 +1,83 @@
+package ph.codeia.fist.bench;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import ph.codeia.fist.BlockingFst;
+import ph.codeia.fist.Conflation;
+import ph.codeia.fist.Effects;
+import ph.codeia.fist.Fst;
+import ph.codeia.fist.Mi;
+import ph.codeia.fist.Mu;
+
+/**
+ * Cost of building composite commands with {@code then} and of running them.
+ * <p>
+ * Building should be linear in the depth; running is measured in a blocking
+ * machine that notifies once per exec so the receiver doesn't dominate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CompositionBench {
+
+    @Param({"1", "16", "256"})
+    public int depth;
+
+    private final Effects<Integer> fx = n -> {};
+    private final Mu.Action<Integer> mooreStep = n -> Mu.enter(n + 1);
+    private final Mi.Action<Integer, Effects<Integer>> mealyStep = (n, e) -> Mi.enter(n + 1);
+    private final Fst<Integer> fst = new BlockingFst<>(0, Conflation.EXEC);
+    private Mu<Integer> mooreChain;
+    private Mi<Integer, Effects<Integer>> mealyChain;
+    private Mu.Action<Integer> runMoore;
+    private Mi.Action<Integer, Effects<Integer>> runMealy;
+
+    @Setup
+    public void setup() {
+        mooreChain = buildMoore();
+        mealyChain = buildMealy();
+        runMoore = n -> mooreChain;
+        runMealy = (n, e) -> mealyChain;
+    }
+
+    @Benchmark
+    public Mu<Integer> buildMoore() {
+        Mu<Integer> chain = Mu.noop();
+        for (int i = 0; i < depth; i++) {
+            chain = chain.then(mooreStep);
+        }
+        return chain;
+    }
+
+    @Benchmark
+    public Mi<Integer, Effects<Integer>> buildMealy() {
+        Mi<Integer, Effects<Integer>> chain = Mi.noop();
+        for (int i = 0; i < depth; i++) {
+            chain = chain.then(mealyStep);
+        }
+        return chain;
+    }
+
+    @Benchmark
+    public void runMoore() {
+        fst.exec(fx, runMoore);
+    }
+
+    @Benchmark
+    public void runMealy() {
+        fst.exec(fx, runMealy);
+    }
+}
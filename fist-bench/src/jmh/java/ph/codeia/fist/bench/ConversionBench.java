@@ -0,0 +1,52 @@
+package ph.codeia.fist.bench;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+import ph.codeia.fist.BlockingFst;
+import ph.codeia.fist.Effects;
+import ph.codeia.fist.Fst;
+import ph.codeia.fist.Mi;
+import ph.codeia.fist.Mu;
+
+/**
+ * Overhead of running a Moore action through {@code MooreToMealy} compared
+ * to an equivalent Mealy action.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class ConversionBench {
+
+    private final Effects<Integer> fx = n -> {};
+    private final Fst<Integer> fst = new BlockingFst<>(0);
+    private final Mu.Action<Integer> moore = n -> Mu.enter(n + 1).then(Mu.reenter());
+    private final Mi.Action<Integer, Effects<Integer>> mealy =
+            (n, e) -> Mi.<Integer, Effects<Integer>>enter(n + 1).then(Mi.reenter());
+    private final Mi.Action<Integer, Effects<Integer>> converted = moore.toMealy();
+
+    @Benchmark
+    public void mealy() {
+        fst.exec(fx, mealy);
+    }
+
+    @Benchmark
+    public void convertedOnce() {
+        fst.exec(fx, converted);
+    }
+
+    @Benchmark
+    public void convertedEveryExec() {
+        fst.exec(fx, moore.<Effects<Integer>>toMealy());
+    }
+}
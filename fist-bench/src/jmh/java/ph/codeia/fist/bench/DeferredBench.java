@@ -0,0 +1,71 @@
+package ph.codeia.fist.bench;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import ph.codeia.fist.BlockingFst;
+import ph.codeia.fist.Deferred;
+import ph.codeia.fist.Effects;
+import ph.codeia.fist.Fst;
+import ph.codeia.fist.Mu;
+
+/**
+ * Cost of handing a value over through {@link Deferred}, which is what the
+ * synchronous machines use to wait for a continuation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class DeferredBench {
+
+    private final Deferred<Integer> deferred = new Deferred<>();
+    private final Integer value = 42;
+    private final Effects<Integer> fx = n -> {};
+    private final Fst<Integer> fst = new BlockingFst<>(0);
+    private final Mu.Action<Integer> inc = n -> Mu.enter(n + 1);
+    private ExecutorService helper;
+    private Mu.Action<Integer> sameThread;
+    private Mu.Action<Integer> otherThread;
+
+    @Setup
+    public void setup() {
+        helper = Executors.newSingleThreadExecutor();
+        sameThread = n -> Mu.defer(k -> k.resume(inc));
+        otherThread = n -> Mu.defer(k -> helper.execute(() -> k.resume(inc)));
+    }
+
+    @TearDown
+    public void tearDown() {
+        helper.shutdownNow();
+    }
+
+    @Benchmark
+    public Integer offerThenCall() throws InterruptedException {
+        deferred.offer(value);
+        return deferred.call();
+    }
+
+    @Benchmark
+    public void deferResumedInline() {
+        fst.exec(fx, sameThread);
+    }
+
+    @Benchmark
+    public void deferResumedByAnotherThread() {
+        fst.exec(fx, otherThread);
+    }
+}
@@ -0,0 +1,62 @@
+package ph.codeia.fist.bench;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+import ph.codeia.fist.BlockingFst;
+import ph.codeia.fist.Effects;
+import ph.codeia.fist.Fst;
+import ph.codeia.fist.Mu;
+
+/**
+ * Entering a sequence of states in one command, where every state has to
+ * reach the receiver.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class EnterManyBench {
+
+    @Param({"4", "64"})
+    public int size;
+
+    private final Fst<Integer> fst = new BlockingFst<>(0);
+    private Integer[] states;
+    private Mu.Action<Integer> enterMany;
+    private Mu.Action<Integer> enterEach;
+    private Effects<Integer> fx;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        fx = bh::consume;
+        states = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            states[i] = i;
+        }
+        enterMany = n -> Mu.enterMany(states);
+        enterEach = n -> Mu.enterEach(states);
+    }
+
+    @Benchmark
+    public void enterMany() {
+        fst.exec(fx, enterMany);
+    }
+
+    @Benchmark
+    public void enterEach() {
+        fst.exec(fx, enterEach);
+    }
+}
@@ -0,0 +1,111 @@
+package ph.codeia.fist.bench;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import ph.codeia.fist.BlockingFst;
+import ph.codeia.fist.Effects;
+import ph.codeia.fist.Fst;
+import ph.codeia.fist.Mi;
+import ph.codeia.fist.Mu;
+import ph.codeia.fist.TrackingFst;
+import ph.codeia.fist.UnconfinedFst;
+
+/**
+ * Allocation rate of a steady-state synchronous exec.
+ * <p>
+ * The actions return preallocated commands, so whatever the gc profiler
+ * reports in {@code gc.alloc.rate.norm} is allocated by the machine itself.
+ * It should be 0 bytes per op for every machine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExecAllocationBench {
+
+    private static final Mu<Integer> ENTER = Mu.enter(1);
+    private static final Mu<Integer> REENTER = Mu.reenter();
+    private static final Mu<Integer> NOOP = Mu.noop();
+    private static final Mi<Integer, Effects<Integer>> MI_ENTER = Mi.enter(1);
+
+    @Param({"blocking", "tracking", "unconfined"})
+    public String machine;
+
+    private final Effects<Integer> fx = n -> {};
+    private final Mu.Action<Integer> enter = n -> ENTER;
+    private final Mu.Action<Integer> reenter = n -> REENTER;
+    private final Mu.Action<Integer> noop = n -> NOOP;
+    private final Mi.Action<Integer, Effects<Integer>> miEnter = (n, e) -> MI_ENTER;
+    private Fst<Integer> fst;
+
+    @Setup
+    public void setup() {
+        switch (machine) {
+            case "blocking":
+                fst = new BlockingFst<>(0);
+                break;
+            case "tracking":
+                fst = new TrackingFst<Integer>(0) {
+                    @Override
+                    public void exec(Effects<Integer> effects, Mu.Action<Integer> action) {
+                        super.exec(effects, action);
+                        didNothing();
+                    }
+
+                    @Override
+                    public <E extends Effects<Integer>> void exec(
+                            E effects,
+                            Mi.Action<Integer, E> action
+                    ) {
+                        super.exec(effects, action);
+                        didNothing();
+                    }
+                };
+                break;
+            case "unconfined":
+                fst = new UnconfinedFst<>(0);
+                break;
+            default:
+                throw new IllegalArgumentException(machine);
+        }
+        fst.start(fx);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fst.stop();
+    }
+
+    @Benchmark
+    public void enter() {
+        fst.exec(fx, enter);
+    }
+
+    @Benchmark
+    public void reenter() {
+        fst.exec(fx, reenter);
+    }
+
+    @Benchmark
+    public void noop() {
+        fst.exec(fx, noop);
+    }
+
+    @Benchmark
+    public void mealyEnter() {
+        fst.exec(fx, miEnter);
+    }
+}
@@ -0,0 +1,90 @@
+package ph.codeia.fist.bench;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.concurrent.TimeUnit;
+
+import ph.codeia.fist.AsyncFst;
+import ph.codeia.fist.BlockingFst;
+import ph.codeia.fist.Effects;
+import ph.codeia.fist.ExecutorFst;
+import ph.codeia.fist.Fst;
+import ph.codeia.fist.FstMetrics;
+import ph.codeia.fist.Mi;
+import ph.codeia.fist.Mu;
+import ph.codeia.fist.UnconfinedFst;
+
+/**
+ * Synchronous exec throughput of each machine.
+ * <p>
+ * The executor machine runs its main thread hops inline, so the difference
+ * from the unconfined machine is the cost of the hop itself. The monitored
+ * machine is an unconfined machine reporting to {@link FstMetrics}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ExecBench {
+
+    @Param({"blocking", "unconfined", "executor", "monitored"})
+    public String machine;
+
+    private final Effects<Integer> fx = n -> {};
+    private final Mu.Action<Integer> moore = n -> Mu.enter(n + 1);
+    private final Mi.Action<Integer, Effects<Integer>> mealy = (n, e) -> Mi.enter(n + 1);
+    private final Mu.Action<Integer> noop = n -> Mu.noop();
+    private Fst<Integer> fst;
+
+    @Setup
+    public void setup() {
+        switch (machine) {
+            case "blocking":
+                fst = new BlockingFst<>(0);
+                break;
+            case "unconfined":
+                fst = new UnconfinedFst<>(0);
+                break;
+            case "executor":
+                fst = new ExecutorFst<>(0, Runnable::run);
+                break;
+            case "monitored":
+                fst = new AsyncFst.Builder().monitor(new FstMetrics()).build(0);
+                break;
+            default:
+                throw new IllegalArgumentException(machine);
+        }
+        fst.start(fx);
+    }
+
+    @TearDown
+    public void tearDown() {
+        fst.stop();
+    }
+
+    @Benchmark
+    public void mooreEnter() {
+        fst.exec(fx, moore);
+    }
+
+    @Benchmark
+    public void mealyEnter() {
+        fst.exec(fx, mealy);
+    }
+
+    @Benchmark
+    public void mooreNoop() {
+        fst.exec(fx, noop);
+    }
+}
@@ -0,0 +1,419 @@
+package ph.codeia.fist.bench;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import ph.codeia.fist.AsyncFst;
+import ph.codeia.fist.Effects;
+import ph.codeia.fist.ExecutorFst;
+import ph.codeia.fist.Fst;
+import ph.codeia.fist.FstMetrics;
+import ph.codeia.fist.FstRuntime;
+import ph.codeia.fist.Mu;
+
+/**
+ * Drives many machines at a fixed rate and reports latency percentiles.
+ * <p>
+ * The load is open-loop: every operation has an intended start time on a
+ * fixed schedule and its latency is measured from that time, not from when
+ * the generator actually got around to sending it. A stall anywhere in the
+ * system therefore shows up in the percentiles instead of silently slowing
+ * down the generator (coordinated omission).
+ * <p>
+ * Every machine shares one worker pool, one scheduler for deferred
+ * continuations and one event loop runtime. While running, a fraction of the
+ * machines is paused and resumed every second the way a {@code
+ * LifecycleBinder} stops and starts a machine on ON_PAUSE and ON_RESUME, so
+ * some operations land in backlogs and complete on resume.
+ * <p>
+ * Options are passed as {@code --name=value}; see {@link Config}. Results
+ * are written as JSON, plus an HdrHistogram percentile distribution per
+ * operation kind that can be fed to the HdrHistogram plotter.
+ */
+public final class LoadHarness {
+
+    /**
+     * Run parameters. Every field can be overridden by an argument of the
+     * same name.
+     */
+    static final class Config {
+        int machines = 10_000;
+        /** operations per second across all machines */
+        int rate = 50_000;
+        int warmup = 5;
+        int seconds = 30;
+        /** relative weights of the operation kinds */
+        int sync = 70;
+        int async = 20;
+        int defer = 10;
+        /** how long an async block or a deferred continuation takes */
+        long serviceMicros = 100;
+        /** fraction of machines paused every second */
+        double churn = 0.05;
+        long pauseMillis = 250;
+        int workers = 8;
+        int loops = Runtime.getRuntime().availableProcessors();
+        /** "single" for one main thread, "unconfined" for none */
+        String main = "single";
+        String out = "build/reports/load";
+
+        static Config parse(String[] args) {
+            Config c = new Config();
+            for (String arg : args) {
+                if (!arg.startsWith("--") || !arg.contains("=")) {
+                    throw new IllegalArgumentException("expected --name=value: " + arg);
+                }
+                String name = arg.substring(2, arg.indexOf('='));
+                String value = arg.substring(arg.indexOf('=') + 1);
+                try {
+                    Field f = Config.class.getDeclaredField(name);
+                    Class<?> t = f.getType();
+                    if (t == int.class) {
+                        f.setInt(c, Integer.parseInt(value));
+                    }
+                    else if (t == long.class) {
+                        f.setLong(c, Long.parseLong(value));
+                    }
+                    else if (t == double.class) {
+                        f.setDouble(c, Double.parseDouble(value));
+                    }
+                    else {
+                        f.set(c, value);
+                    }
+                }
+                catch (NoSuchFieldException | IllegalAccessException e) {
+                    throw new IllegalArgumentException("unknown option: " + name, e);
+                }
+            }
+            return c;
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            for (Field f : Config.class.getDeclaredFields()) {
+                if (!Modifier.isStatic(f.getModifiers())) {
+                    try {
+                        m.put(f.getName(), f.get(this));
+                    }
+                    catch (IllegalAccessException e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            }
+            return m;
+        }
+    }
+
+    enum Kind {SYNC, ASYNC, DEFER}
+
+    /**
+     * The state of every machine is the last operation sent to it.
+     */
+    final class Op {
+        final Kind kind;
+        final long intended;
+        final AtomicBoolean done = new AtomicBoolean(false);
+
+        Op(Kind kind, long intended) {
+            this.kind = kind;
+            this.intended = intended;
+        }
+
+        void complete() {
+            // start() renders the current state again
+            if (done.compareAndSet(false, true)) {
+                completed.incrementAndGet();
+                if (intended >= measureFrom) {
+                    long micros = (System.nanoTime() - intended) / 1000;
+                    recorders.get(kind).recordValue(Math.max(0, micros));
+                }
+            }
+        }
+    }
+
+    final class Machine implements Effects<Op> {
+        final Fst<Op> fst;
+        volatile boolean paused;
+
+        Machine(Fst<Op> fst) {
+            this.fst = fst;
+        }
+
+        @Override
+        public void onEnter(Op op) {
+            if (op != null) {
+                op.complete();
+            }
+        }
+
+        @Override
+        public void handle(Throwable error) {
+            errors.incrementAndGet();
+        }
+    }
+
+    private final Config config;
+    private final Map<Kind, Recorder> recorders = new LinkedHashMap<>();
+    private final Map<String, Histogram> histograms = new LinkedHashMap<>();
+    private final AtomicLong issued = new AtomicLong(0);
+    private final AtomicLong completed = new AtomicLong(0);
+    private final AtomicLong errors = new AtomicLong(0);
+    private final FstMetrics metrics = new FstMetrics();
+    private final ExecutorService worker;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService main;
+    private final FstRuntime runtime;
+    private final Machine[] machines;
+    private volatile long measureFrom = Long.MAX_VALUE;
+
+    LoadHarness(Config config) {
+        this.config = config;
+        for (Kind k : Kind.values()) {
+            recorders.put(k, new Recorder(3));
+        }
+        worker = Executors.newFixedThreadPool(config.workers, daemon("load-worker"));
+        scheduler = Executors.newScheduledThreadPool(1, daemon("load-scheduler"));
+        main = config.main.equals("single")
+                ? Executors.newSingleThreadExecutor(daemon("load-main"))
+                : null;
+        runtime = new FstRuntime(config.loops);
+        machines = new Machine[config.machines];
+        for (int i = 0; i < machines.length; i++) {
+            AsyncFst.Builder builder = main != null
+                    ? new ExecutorFst.Builder(main)
+                    : new AsyncFst.Builder();
+            builder.workOn(worker).runOn(runtime).monitor(metrics);
+            Machine m = new Machine(builder.build(null));
+            m.fst.start(m);
+            machines[i] = m;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Config config = Config.parse(args);
+        LoadHarness harness = new LoadHarness(config);
+        Map<String, Object> report = harness.run();
+        File dir = new File(config.out);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("cannot create " + dir);
+        }
+        try (PrintWriter w = new PrintWriter(new File(dir, "latency.json"), "UTF-8")) {
+            w.println(Json.write(report));
+        }
+        for (Map.Entry<String, Histogram> e : harness.histograms.entrySet()) {
+            try (PrintStream p = new PrintStream(new File(dir, e.getKey() + ".hgrm"), "UTF-8")) {
+                e.getValue().outputPercentileDistribution(p, 1.0);
+            }
+        }
+        System.out.println(Json.write(report));
+        System.exit(0);
+    }
+
+    Map<String, Object> run() throws InterruptedException {
+        long period = TimeUnit.SECONDS.toNanos(1) / config.rate;
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(config.warmup);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(config.seconds);
+        measureFrom = measureStart;
+        ScheduledFuture<?> churning =
+                scheduler.scheduleAtFixedRate(this::churn, 1, 1, TimeUnit.SECONDS);
+        int total = config.sync + config.async + config.defer;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (long i = 0; ; i++) {
+            long intended = start + i * period;
+            if (intended >= end) {
+                break;
+            }
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            int roll = random.nextInt(total);
+            Kind kind = roll < config.sync ? Kind.SYNC
+                    : roll < config.sync + config.async ? Kind.ASYNC
+                    : Kind.DEFER;
+            Machine m = machines[random.nextInt(machines.length)];
+            issued.incrementAndGet();
+            m.fst.exec(m, action(new Op(kind, intended)));
+        }
+        // the scheduler still has deferred continuations and resumes to run
+        churning.cancel(false);
+        for (Machine m : machines) {
+            m.fst.start(m);
+        }
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (completed.get() + errors.get() < issued.get() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        scheduler.shutdown();
+        scheduler.awaitTermination(1, TimeUnit.SECONDS);
+        return report(TimeUnit.NANOSECONDS.toMillis(end - measureStart));
+    }
+
+    private Mu.Action<Op> action(Op op) {
+        long service = TimeUnit.MICROSECONDS.toNanos(config.serviceMicros);
+        switch (op.kind) {
+            case ASYNC:
+                return s -> Mu.async(() -> {
+                    if (service > 0) {
+                        LockSupport.parkNanos(service);
+                    }
+                    return Mu.Action.pure(op);
+                });
+            case DEFER:
+                return s -> Mu.defer(k -> scheduler.schedule(
+                        () -> k.resume(Mu.Action.pure(op)),
+                        service, TimeUnit.NANOSECONDS
+                ));
+            default:
+                return s -> Mu.enter(op);
+        }
+    }
+
+    /**
+     * Pauses a random batch of machines and resumes them a bit later.
+     */
+    private void churn() {
+        int n = (int) (machines.length * config.churn);
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        List<Machine> batch = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Machine m = machines[random.nextInt(machines.length)];
+            if (!m.paused) {
+                m.paused = true;
+                m.fst.stop();
+                batch.add(m);
+            }
+        }
+        scheduler.schedule(() -> {
+            for (Machine m : batch) {
+                m.paused = false;
+                m.fst.start(m);
+            }
+        }, config.pauseMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private Map<String, Object> report(long millis) {
+        Histogram all = new Histogram(3);
+        Map<String, Object> latency = new LinkedHashMap<>();
+        for (Map.Entry<Kind, Recorder> e : recorders.entrySet()) {
+            Histogram h = e.getValue().getIntervalHistogram();
+            all.add(h);
+            String name = e.getKey().name().toLowerCase(Locale.ROOT);
+            histograms.put(name, h);
+            latency.put(name, summary(h));
+        }
+        histograms.put("all", all);
+        latency.put("all", summary(all));
+        Map<String, Object> fst = new LinkedHashMap<>();
+        fst.put("hopP99Micros", metrics.hopLatency().percentile(0.99) / 1000);
+        fst.put("applyP99Micros", metrics.applyLatency().percentile(0.99) / 1000);
+        fst.put("timeouts", metrics.timeouts());
+        fst.put("backlogPeak", metrics.backlogPeak());
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("version", System.getProperty("fist.version", "dev"));
+        report.put("config", config.toMap());
+        report.put("issued", issued.get());
+        report.put("completed", completed.get());
+        report.put("errors", errors.get());
+        report.put("throughput", all.getTotalCount() * 1000 / Math.max(1, millis));
+        report.put("latencyMicros", latency);
+        report.put("fst", fst);
+        return report;
+    }
+
+    private static Map<String, Object> summary(Histogram h) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("count", h.getTotalCount());
+        m.put("mean", Math.round(h.getMean()));
+        for (double p : new double[] {50, 90, 99, 99.9, 99.99}) {
+            m.put("p" + (p == Math.rint(p) ? String.valueOf((int) p) : String.valueOf(p)),
+                    h.getValueAtPercentile(p));
+        }
+        m.put("max", h.getMaxValue());
+        return m;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        AtomicLong count = new AtomicLong(0);
+        return r -> {
+            Thread t = new Thread(r, name + "-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Just enough JSON for flat maps of numbers and strings.
+     */
+    static final class Json {
+        static String write(Object value) {
+            StringBuilder sb = new StringBuilder();
+            write(value, sb, "");
+            return sb.toString();
+        }
+
+        private static void write(Object value, StringBuilder sb, String indent) {
+            if (value instanceof Map) {
+                String inner = indent + "  ";
+                sb.append("{\n");
+                boolean first = true;
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) value).entrySet()) {
+                    if (!first) {
+                        sb.append(",\n");
+                    }
+                    first = false;
+                    sb.append(inner);
+                    string(e.getKey().toString(), sb);
+                    sb.append(": ");
+                    write(e.getValue(), sb, inner);
+                }
+                sb.append('\n').append(indent).append('}');
+            }
+            else if (value instanceof Number || value instanceof Boolean) {
+                sb.append(value);
+            }
+            else {
+                string(String.valueOf(value), sb);
+            }
+        }
+
+        private static void string(String s, StringBuilder sb) {
+            sb.append('"');
+            for (int i = 0; i < s.length(); i++) {
+                char c = s.charAt(i);
+                if (c == '"' || c == '\\') {
+                    sb.append('\\');
+                }
+                sb.append(c);
+            }
+            sb.append('"');
+        }
+    }
+}
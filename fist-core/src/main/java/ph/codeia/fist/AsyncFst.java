@@ -4,17 +4,26 @@ package ph.codeia.fist;
  * This file is a part of the fist project.
  */
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.concurrent.BlockingDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingDeque;
-import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
 
 /**
  * Asynchronous state machine base implementation.
@@ -26,9 +35,10 @@ public abstract class AsyncFst<S> implements Fst<S> {
     /**
      * Builder object to customize an {@link AsyncFst} instance.
      * <p>
-     * By default, async actions are executed in a single thread and
-     * awaited/joined in a (separate) single thread. The latter is probably
-     * what you want, but you might want to set the worker executor to a
+     * By default, async actions are executed in a single thread and the
+     * actions enqueued while stopped are replayed in one of the {@link
+     * FstRuntime#shared() shared event loops}. The latter is probably what
+     * you want, but you might want to set the worker executor to a
      * cached thread pool executor with more than 1 thread e.g. if you need to
      * run actions in parallel.
      */
@@ -36,8 +46,16 @@ public abstract class AsyncFst<S> implements Fst<S> {
         private static final Executor DEFAULT_WORKER = Executors.newSingleThreadExecutor();
 
         private Executor worker = DEFAULT_WORKER;
-        private Executor receiver = Executors.newSingleThreadExecutor();
+        private FstRuntime runtime = FstRuntime.shared();
+        private Executor receiver;
         private long timeoutMillis = 60_000;
+        private boolean batched;
+        private Conflation conflation = Conflation.NONE;
+        private TickSource ticks;
+        private int capacity = Integer.MAX_VALUE;
+        private Overflow overflow = Overflow.DROP_NEWEST;
+        private CancelPolicy cancelPolicy = CancelPolicy.KEEP_RUNNING;
+        private FstMonitor monitor = FstMonitor.NONE;
 
         /**
          * Sets the maximum time to wait for async actions to complete.
@@ -78,10 +96,27 @@ public abstract class AsyncFst<S> implements Fst<S> {
         }
 
         /**
-         * Sets the executor for awaiting the result of async actions.
+         * Runs every async action in its own thread.
          * <p>
-         * Setting this to something other than a single thread executor might
-         * cause some async results to be lost between start-stop phases.
+         * On JDK 21 and up, these are virtual threads, so blocking in a
+         * {@link Mu#async(Callable) async block} is cheap and does not hold
+         * up the async actions of other machines. On older runtimes and on
+         * Android, this falls back to an unbounded pool of daemon threads.
+         *
+         * @return this
+         * @see #workOn(Executor)
+         */
+        public Builder workOnVirtualThreads() {
+            return workOn(VirtualThreads.executor());
+        }
+
+        /**
+         * Sets the executor for replaying the actions that were enqueued while
+         * the machine was stopped.
+         * <p>
+         * The replay is only scheduled when there is something to drain and
+         * only one replay runs at a time, so this does not need to be a
+         * single thread executor.
          *
          * @param receiver The executor to submit await actions to
          * @return this
@@ -91,6 +126,141 @@ public abstract class AsyncFst<S> implements Fst<S> {
             return this;
         }
 
+        /**
+         * Sets the event loops that replay the backlogs of the machines built
+         * by this builder.
+         * <p>
+         * Each machine is pinned to one of the runtime's loops. This is
+         * ignored if a receiver executor was set with {@link
+         * #receiveOn(Executor)}. Default is {@link FstRuntime#shared()}.
+         *
+         * @param runtime The event loops to share
+         * @return this
+         */
+        public Builder runOn(FstRuntime runtime) {
+            this.runtime = runtime;
+            return this;
+        }
+
+        /**
+         * Limits the number of actions that are kept while the machine is
+         * stopped.
+         * <p>
+         * This covers both the actions executed while stopped and the async
+         * actions that complete while stopped. By default the backlog is
+         * unbounded.
+         *
+         * @param capacity The maximum number of actions to replay on start
+         * @param overflow What to do with an action when the backlog is full
+         * @return this
+         * @see AsyncFst#backlogSize()
+         */
+        public Builder backlog(int capacity, Overflow overflow) {
+            if (capacity < 1) {
+                throw new IllegalArgumentException("capacity must be at least 1");
+            }
+            this.capacity = capacity;
+            this.overflow = overflow;
+            return this;
+        }
+
+        /**
+         * Sets which pending async actions are cancelled automatically.
+         * <p>
+         * Cancelling an action interrupts the worker thread running it and
+         * discards its result. Default is {@link CancelPolicy#KEEP_RUNNING}.
+         *
+         * @param policy The cancellation policy
+         * @return this
+         * @see Mu#async(Callable, Fn.Proc)
+         */
+        public Builder cancelOn(CancelPolicy policy) {
+            cancelPolicy = policy;
+            return this;
+        }
+
+        /**
+         * Reports the timing of execs, main thread hops, applies, receiver
+         * notifications and async actions.
+         * <p>
+         * Default is {@link FstMonitor#NONE}, which costs nothing.
+         *
+         * @param monitor The event sink
+         * @return this
+         * @see FstMetrics
+         */
+        public Builder monitor(FstMonitor monitor) {
+            this.monitor = monitor != null ? monitor : FstMonitor.NONE;
+            return this;
+        }
+
+        /**
+         * Sets how often the receiver is notified of state changes.
+         * <p>
+         * Default is {@link Conflation#NONE}.
+         *
+         * @param conflation The notification policy
+         * @return this
+         * @see Conflation
+         */
+        public Builder conflate(Conflation conflation) {
+            this.conflation = conflation;
+            return this;
+        }
+
+        /**
+         * Paces receiver notifications to a clock.
+         * <p>
+         * State transitions are still applied as soon as they happen, but
+         * the receiver is only notified on the next tick after a change, with
+         * whatever the state is at that time. This implies at least {@link
+         * Conflation#EXEC}; states entered through {@link
+         * Mu#enterEach(Object[])} are still delivered right away.
+         *
+         * @param ticks The clock to render on, or null to render immediately
+         * @return this
+         * @see FixedRateTicks
+         */
+        public Builder renderOn(TickSource ticks) {
+            this.ticks = ticks;
+            return this;
+        }
+
+        /**
+         * Funnels actions through a per-machine inbox that is drained in a
+         * single main thread hop.
+         * <p>
+         * Normally every {@code exec} call (including the ones made when an
+         * async action completes) is a separate {@link
+         * #runOnMainThread(Runnable)} call. In batch mode, only the first
+         * action posted to an empty inbox schedules a hop and every action
+         * that arrives before the hop runs rides along with it.
+         *
+         * @param enterOnce If true, the receiver is notified only once per
+         *                  hop with the final state of the batch instead of
+         *                  once per ENTER or REENTER command. Same as
+         *                  {@code conflate(Conflation.BATCH)}.
+         * @return this
+         */
+        public Builder batchDispatch(boolean enterOnce) {
+            batched = true;
+            if (enterOnce) {
+                conflation = Conflation.BATCH;
+            }
+            return this;
+        }
+
+        /**
+         * Enables batch dispatch without changing the {@link
+         * #conflate(Conflation) conflation policy}.
+         *
+         * @return this
+         * @see #batchDispatch(boolean)
+         */
+        public Builder batchDispatch() {
+            return batchDispatch(false);
+        }
+
         @Override
         public <S> Fst<S> build(S state) {
             return new UnconfinedFst<>(state, this);
@@ -98,13 +268,48 @@ public abstract class AsyncFst<S> implements Fst<S> {
     }
 
     private final AtomicInteger pendingCount = new AtomicInteger(0);
-    private final BlockingDeque<Job<S>> backlog = new LinkedBlockingDeque<>();
-    private final Job<S> poisonPill = Job.Case::kill;
+    private final AtomicInteger drainRequests = new AtomicInteger(0);
+    private final MpscQueue<Job<S>> backlog = new MpscQueue<>();
+    private final AtomicInteger backlogSize = new AtomicInteger(0);
+    private final AtomicInteger evictions = new AtomicInteger(0);
+    private final ConcurrentHashMap<Object, Job<S>> latest = new ConcurrentHashMap<>();
+    private final AtomicBoolean polling = new AtomicBoolean(false);
+    private final Object room = new Object();
+    private volatile int waiters;
+    private final Runnable drain = this::drain;
+    private final AtomicInteger hops = new AtomicInteger(0);
+    private final MpscQueue<Letter<S>> inbox = new MpscQueue<>();
+    private final Runnable flush = this::flush;
+    private final AtomicReference<Effects<S>> due = new AtomicReference<>();
+    private final Set<Pending<?>> inFlight =
+            Collections.newSetFromMap(new ConcurrentHashMap<Pending<?>, Boolean>());
+    private final ReferenceQueue<Effects<S>> collected = new ReferenceQueue<>();
+    private final ConcurrentHashMap<Object, Pending<?>> debounced = new ConcurrentHashMap<>();
+    private final Map<Object, Gate> gates = new HashMap<>();
+    private final Set<Ticker<?>> tickers =
+            Collections.newSetFromMap(new ConcurrentHashMap<Ticker<?>, Boolean>());
+    private final Runnable tick = this::tick;
+    private final Runnable renderDue = this::renderDue;
+    private final AtomicReference<MooreDispatch> spareMoore =
+            new AtomicReference<>(new MooreDispatch());
+    private final AtomicReference<MealyDispatch<?>> spareMealy =
+            new AtomicReference<>(new MealyDispatch<>());
+    private final boolean batched;
+    private final Conflation conflation;
+    private final TickSource ticks;
+    private final int capacity;
+    private final Overflow overflow;
+    private final CancelPolicy cancelPolicy;
+    private final FstMonitor monitor;
+    private final boolean monitored;
     private final Executor worker;
     private final Executor receiver;
     private final long timeout;
     private volatile boolean isRunning;
     private volatile S state;
+    private volatile WeakReference<Effects<S>> weakEffects;
+    private Job<S> unsent;
+    private Effects<S> stale;
 
     /**
      * @param state The initial state
@@ -113,9 +318,18 @@ public abstract class AsyncFst<S> implements Fst<S> {
     protected AsyncFst(S state, Builder builder) {
         this.state = state;
         worker = builder.worker;
-        receiver = builder.receiver;
+        receiver = builder.receiver != null ? builder.receiver : builder.runtime.next();
         timeout = builder.timeoutMillis;
-        backlog.offerLast(poisonPill);
+        batched = builder.batched;
+        ticks = builder.ticks;
+        capacity = builder.capacity;
+        overflow = builder.overflow;
+        cancelPolicy = builder.cancelPolicy;
+        monitor = builder.monitor;
+        monitored = monitor != FstMonitor.NONE;
+        conflation = ticks != null && builder.conflation == Conflation.NONE
+                ? Conflation.EXEC
+                : builder.conflation;
     }
 
     /**
@@ -132,295 +346,1398 @@ public abstract class AsyncFst<S> implements Fst<S> {
      */
     protected abstract void runOnMainThread(Runnable proc);
 
+    /**
+     * Tells if the caller is already in the main thread so that an action can
+     * be applied right away instead of being wrapped and passed to {@link
+     * #runOnMainThread(Runnable)}.
+     * <p>
+     * The default implementation returns false.
+     *
+     * @return true if the current thread is the platform's main thread.
+     */
+    protected boolean isMainThread() {
+        return false;
+    }
+
     @Override
     public void start(Effects<S> effects) {
         if (isRunning) {
             return;
         }
+        weakEffects = new WeakReference<>(effects);
         isRunning = true;
-        effects.onEnter(state);
-        WeakReference<Effects<S>> weakEffects = new WeakReference<>(effects);
-        receiver.execute(new Job.Case<S>() {
-            boolean alive = true;
-            Job<S> next;
-
-            @Override
-            public void run() {
-                try {
-                    while (alive) {
-                        next = backlog.takeFirst();
-                        next.match(this);
-                    }
-                }
-                catch (InterruptedException ignored) {
-                }
-            }
+        if (cancelPolicy != CancelPolicy.KEEP_RUNNING) {
+            sweep();
+        }
+        onEnter(effects);
+        for (Ticker<?> t : tickers) {
+            t.resume();
+        }
+        signalDrain();
+    }
 
-            @Override
-            public void moore(Mu.Action<S> action) {
-                Effects<S> fx = weakEffects.get();
-                if (fx == null) {
-                    alive = false;
-                    backlog.offerFirst(next);
-                }
-                else {
-                    exec(fx, action);
+    @Override
+    public void stop() {
+        isRunning = false;
+        for (Ticker<?> t : tickers) {
+            t.pause();
+        }
+        switch (cancelPolicy) {
+            case CANCEL_ON_STOP:
+                for (Pending<?> p : inFlight) {
+                    p.cancel();
                 }
-            }
+                sweep();
+                break;
+            case CANCEL_ON_GC:
+                sweep();
+                break;
+            default:
+                break;
+        }
+    }
 
-            @Override
-            public void mealy(Class<? extends Effects> target, Mi.Action action) {
-                Effects<S> fx = weakEffects.get();
-                if (fx == null) {
-                    alive = false;
-                    backlog.offerFirst(next);
-                }
-                else if (target.isAssignableFrom(fx.getClass())) {
-                    //noinspection unchecked
-                    exec(fx, action);
-                }
-                // else re-enqueue later?
-            }
+    /**
+     * Cancels the async actions whose receivers have been collected.
+     */
+    private void sweep() {
+        for (Reference<?> r = collected.poll(); r != null; r = collected.poll()) {
+            ((Cancellable) r).cancel();
+        }
+    }
 
-            @Override
-            public void kill() {
-                alive = false;
-            }
-        });
+    @Override
+    public void exec(Effects<S> effects, Mu.Action<S> action) {
+        exec(effects, action, true);
     }
 
     @Override
-    public void stop() {
+    public <E extends Effects<S>> void exec(E effects, Mi.Action<S, E> action) {
+        exec(effects, action, true);
+    }
+
+    /**
+     * @param external Whether the action came from outside the machine. The
+     * results of async blocks, timers and backlog replays are internal and
+     * must never wait for room in the backlog.
+     */
+    private void exec(Effects<S> effects, Mu.Action<S> action, boolean external) {
+        long t = clock(external);
         if (!isRunning) {
-            return;
+            addToBacklog(effects, Job.moore(action), external);
         }
-        isRunning = false;
-        if (pendingCount.get() == 0) {
-            backlog.offerLast(poisonPill);
+        else if (batched) {
+            post(new Letter<>(effects, action, null, t));
+        }
+        else if (isMainThread()) {
+            apply(effects, action, t);
+        }
+        else {
+            runOnMainThread(() -> apply(effects, action, t));
         }
     }
 
-    @Override
-    public void exec(Effects<S> effects, Mu.Action<S> action) {
+    private <E extends Effects<S>> void exec(E effects, Mi.Action<S, E> action, boolean external) {
+        long t = clock(external);
         if (!isRunning) {
-            addToBacklog(e -> e.moore(action));
-            return;
+            Class<?> cls = effects.getClass();
+            addToBacklog(effects, Job.mealy(cls, action), external);
+        }
+        else if (batched) {
+            post(new Letter<>(effects, null, action, t));
+        }
+        else if (isMainThread()) {
+            apply(effects, action, t);
+        }
+        else {
+            runOnMainThread(() -> apply(effects, action, t));
         }
-        runOnMainThread(() -> {
-            try {
-                action.apply(state).run(new Mu.Case<S>() {
-                    @Override
-                    public void noop() {
-                    }
-
-                    @Override
-                    public void reenter() {
-                        effects.onEnter(state);
-                    }
-
-                    @Override
-                    public void enter(S newState) {
-                        state = newState;
-                        effects.onEnter(newState);
-                    }
-
-                    @Override
-                    public void forward(Mu.Action<S> action) {
-                        action.apply(state).run(this);
-                    }
-
-                    @Override
-                    public void async(Callable<Mu.Action<S>> block) {
-                        new Pending<>(effects).awaitMoore(block);
-                    }
-
-                    @Override
-                    public void defer(Fn.Proc<Mu.Continuation<S>> block) {
-                        Deferred<Mu.Action<S>> next = new Deferred<>();
-                        block.receive(next::offer);
-                        async(next);
-                    }
-
-                    @Override
-                    public void raise(Throwable e) {
-                        effects.handle(e);
-                    }
-                });
-            }
-            catch (RuntimeException e) {
-                effects.handle(e);
-            }
-        });
     }
 
     @Override
-    public <E extends Effects<S>> void exec(E effects, Mi.Action<S, E> action) {
-        if (!isRunning) {
-            Class<? extends Effects> cls = effects.getClass();
-            addToBacklog(e -> e.mealy(cls, action));
-            return;
-        }
-        runOnMainThread(() -> {
-            try {
-                action.apply(state, effects).run(new Mi.Case<S, E>() {
-                    @Override
-                    public void noop() {
-                    }
+    public <T> T project(Fn.Func<S, T> projection) {
+        return projection.apply(state);
+    }
 
-                    @Override
-                    public void reenter() {
-                        effects.onEnter(state);
-                    }
+    /**
+     * @return the number of actions waiting to be replayed.
+     */
+    public int backlogSize() {
+        return backlogSize.get();
+    }
 
-                    @Override
-                    public void enter(S newState) {
-                        state = newState;
-                        effects.onEnter(newState);
-                    }
+    /**
+     * @return the number of debounce and throttle keys being tracked.
+     */
+    int timedKeys() {
+        synchronized (gates) {
+            return debounced.size() + gates.size();
+        }
+    }
 
-                    @Override
-                    public void forward(Mi.Action<S, E> action) {
-                        action.apply(state, effects).run(this);
-                    }
+    /**
+     * @param external Whether to report the exec to the monitor. Replays and
+     * the results of async blocks and timers were already counted when
+     * their actions were first passed to exec.
+     * @return the time now if the machine is monitored, otherwise 0.
+     */
+    private long clock(boolean external) {
+        if (!monitored) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        if (external) {
+            monitor.enqueued(now);
+        }
+        return now;
+    }
 
-                    @Override
-                    public void async(Callable<Mi.Action<S, E>> block) {
-                        new Pending<>(effects).awaitMealy(block);
-                    }
+    private void apply(Effects<S> effects, Mu.Action<S> action, long enqueuedAt) {
+        long t = 0;
+        if (monitored) {
+            t = System.nanoTime();
+            monitor.dispatched(enqueuedAt, t);
+        }
+        // a spare is taken out so that concurrent and reentrant applies
+        // get their own dispatcher. only the contended ones allocate.
+        MooreDispatch on = spareMoore.getAndSet(null);
+        if (on == null) {
+            on = new MooreDispatch();
+        }
+        on.effects = effects;
+        boolean dirty;
+        try {
+            action.apply(state).run(on);
+        }
+        catch (RuntimeException e) {
+            effects.handle(e);
+        }
+        finally {
+            dirty = on.dirty;
+            on.effects = null;
+            on.dirty = false;
+            spareMoore.set(on);
+        }
+        if (dirty) {
+            commit(effects);
+        }
+        if (monitored) {
+            monitor.applied(t, System.nanoTime());
+        }
+    }
 
-                    @Override
-                    public void defer(Fn.Proc<Mi.Continuation<S, E>> block) {
-                        Deferred<Mi.Action<S, E>> next = new Deferred<>();
-                        block.receive(next::offer);
-                        async(next);
-                    }
+    @SuppressWarnings("unchecked")
+    private <E extends Effects<S>> void apply(E effects, Mi.Action<S, E> action, long enqueuedAt) {
+        long t = 0;
+        if (monitored) {
+            t = System.nanoTime();
+            monitor.dispatched(enqueuedAt, t);
+        }
+        MealyDispatch<E> on = (MealyDispatch<E>) spareMealy.getAndSet(null);
+        if (on == null) {
+            on = new MealyDispatch<>();
+        }
+        on.effects = effects;
+        boolean dirty;
+        try {
+            action.apply(state, effects).run(on);
+        }
+        catch (RuntimeException e) {
+            effects.handle(e);
+        }
+        finally {
+            dirty = on.dirty;
+            on.effects = null;
+            on.dirty = false;
+            spareMealy.set(on);
+        }
+        if (dirty) {
+            commit(effects);
+        }
+        if (monitored) {
+            monitor.applied(t, System.nanoTime());
+        }
+    }
 
-                    @Override
-                    public void raise(Throwable e) {
-                        effects.handle(e);
-                    }
-                });
+    /**
+     * Notifies a receiver that was conflated during an apply.
+     * <p>
+     * In a batch, the notification is pushed back further to the end of the
+     * flush unless a different receiver was conflated earlier in the batch.
+     * When paced, it is pushed back to the next tick.
+     *
+     * @param effects The receiver to notify
+     */
+    private void commit(Effects<S> effects) {
+        if (ticks != null) {
+            Effects<S> prev = due.getAndSet(effects);
+            if (prev == null) {
+                ticks.requestTick(tick);
             }
-            catch (RuntimeException e) {
-                effects.handle(e);
+            else if (prev != effects) {
+                // only one receiver can wait for a tick at a time
+                onEnter(prev);
             }
-        });
+            return;
+        }
+        if (!batched || conflation != Conflation.BATCH) {
+            onEnter(effects);
+            return;
+        }
+        if (stale != null && stale != effects) {
+            onEnter(stale);
+        }
+        stale = effects;
     }
 
-    @Override
-    public <T> T project(Fn.Func<S, T> projection) {
-        return projection.apply(state);
+    /**
+     * Notifies a receiver of the current state.
+     */
+    private void onEnter(Effects<S> effects) {
+        if (monitored) {
+            monitor.entered(System.nanoTime());
+        }
+        effects.onEnter(state);
     }
 
-    private void addToBacklog(Job<S> next) {
-        // TODO: synchronize?
-        if (pendingCount.get() > 0) {
-            backlog.offerLast(next);
+    private void tick() {
+        if (isMainThread()) {
+            renderDue();
         }
         else {
-            backlog.removeLast();  // assert _ == poisonPill
-            backlog.offerLast(next);
-            backlog.offerLast(poisonPill);
+            runOnMainThread(renderDue);
         }
     }
 
-    private class Pending<E extends Effects<S>> {
-        final AtomicBoolean done = new AtomicBoolean(false);
-        final WeakReference<E> weakEffects;
-        final Class<? extends Effects> fxClass;
+    private void renderDue() {
+        Effects<S> effects = due.getAndSet(null);
+        // a stopped machine renders its current state on start anyway
+        if (effects != null && isRunning) {
+            onEnter(effects);
+        }
+    }
 
-        Pending(E effects) {
-            weakEffects = new WeakReference<>(effects);
-            fxClass = effects.getClass();
+    private void post(Letter<S> letter) {
+        inbox.offer(letter);
+        if (hops.getAndIncrement() == 0) {
+            runOnMainThread(flush);
         }
+    }
 
-        void awaitMoore(Callable<Mu.Action<S>> block) {
-            pendingCount.incrementAndGet();
-            if (timeout > 0) {
-                Timer.INSTANCE.schedule(() -> {
-                    if (!done.getAndSet(true)) {
-                        execOrSend(Mu.Action.pure(Mu.raise(new TimeoutException())));
-                    }
-                }, timeout, TimeUnit.MILLISECONDS);
+    /**
+     * Applies every action in the inbox in one main thread hop.
+     * <p>
+     * Like {@link #drain()}, posts that arrive during a flush are folded into
+     * it instead of scheduling another hop.
+     */
+    private void flush() {
+        int missed = 1;
+        do {
+            for (Letter<S> letter = inbox.poll(); letter != null; letter = inbox.poll()) {
+                letter.deliver(this);
             }
-            worker.execute(() -> {
-                Mu.Action<S> action;
-                try {
-                    action = block.call();
-                }
-                catch (Exception e) {
-                    action = Mu.Action.pure(Mu.raise(e));
-                }
-                if (!done.getAndSet(true)) {
-                    execOrSend(action);
-                }
-            });
-        }
+            if (stale != null) {
+                Effects<S> effects = stale;
+                stale = null;
+                onEnter(effects);
+            }
+            missed = hops.addAndGet(-missed);
+        } while (missed != 0);
+    }
 
-        void awaitMealy(Callable<Mi.Action<S, E>> block) {
-            pendingCount.incrementAndGet();
-            if (timeout > 0) {
-                Timer.INSTANCE.schedule(() -> {
-                    if (!done.getAndSet(true)) {
-                        execOrSend(Mi.Action.pure(Mi.raise(new TimeoutException())));
+    /**
+     * @param effects The receiver to report a rejection to; may be null
+     * @param next The job to enqueue
+     * @param external Whether the caller may be made to wait
+     */
+    private void addToBacklog(Effects<S> effects, Job<S> next, boolean external) {
+        if (next.key != null && supersede(next)) {
+            return;
+        }
+        if (!reserve()) {
+            if (next.key != null) {
+                latest.remove(next.key, next);
+            }
+            switch (overflow) {
+                case BLOCK:
+                    if (!external) {
+                        // never park a timer, worker or loop thread; the
+                        // backlog goes over capacity until the next replay.
+                        backlogSize.incrementAndGet();
+                        break;
                     }
-                }, timeout, TimeUnit.MILLISECONDS);
+                    if (!awaitRoom()) {
+                        reject(effects);
+                        return;
+                    }
+                    break;
+                case FAIL:
+                    reject(effects);
+                    return;
+                case DROP_NEWEST:
+                    return;
+                case DROP_OLDEST:
+                    // the new job takes over the slot of the oldest one
+                    evictions.incrementAndGet();
+                    if (polling.compareAndSet(false, true)) {
+                        try {
+                            purge();
+                        }
+                        finally {
+                            polling.set(false);
+                        }
+                    }
+                    break;
             }
-            worker.execute(() -> {
-                Mi.Action<S, E> action;
-                try {
-                    action = block.call();
-                }
-                catch (Exception e) {
-                    action = Mi.Action.pure(Mi.raise(e));
-                }
-                if (!done.getAndSet(true)) {
-                    execOrSend(action);
-                }
-            });
         }
+        enqueue(next);
+    }
 
-        void execOrSend(Mu.Action<S> action) {
-            Effects<S> fx = weakEffects.get();
-            if (fx != null && isRunning) {
-                exec(fx, action);
+    private void reject(Effects<S> effects) {
+        if (effects != null) {
+            effects.handle(new RejectedExecutionException("backlog is full"));
+        }
+    }
+
+    /**
+     * Replaces the action of the queued job with the same key, if any.
+     * Otherwise, registers the new job as the latest for its key.
+     *
+     * @param next A keyed job
+     * @return true if the job has been folded into a queued one
+     */
+    private boolean supersede(Job<S> next) {
+        while (true) {
+            Job<S> queued = latest.putIfAbsent(next.key, next);
+            if (queued == null) {
+                return false;
             }
-            else {
-                backlog.offerLast(e -> e.moore(action));
-                // TODO: synchronize?
-                if (pendingCount.decrementAndGet() == 0) {
-                    backlog.offerLast(poisonPill);
-                }
+            if (queued.supersede(next)) {
+                return true;
+            }
+            // taken out of the backlog between the lookup and the swap
+            latest.remove(next.key, queued);
+        }
+    }
+
+    private void enqueue(Job<S> next) {
+        backlog.offer(next);
+        if (monitored) {
+            monitor.backlogged(System.nanoTime(), backlogSize.get());
+        }
+        if (isRunning) {
+            // lost the race with start(); it might have finished draining
+            // before the job was linked.
+            signalDrain();
+        }
+    }
+
+    private boolean reserve() {
+        while (true) {
+            int n = backlogSize.get();
+            if (n >= capacity) {
+                return false;
+            }
+            if (backlogSize.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private boolean awaitRoom() {
+        synchronized (room) {
+            waiters++;
+            try {
+                while (!reserve()) {
+                    room.wait();
+                }
+                return true;
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            finally {
+                waiters--;
+            }
+        }
+    }
+
+    /**
+     * Discards the jobs that were evicted by {@link Overflow#DROP_OLDEST}.
+     * Must only be called while holding the {@link #polling} flag.
+     *
+     * @return true if every eviction has been carried out
+     */
+    private boolean purge() {
+        while (evictions.get() > 0) {
+            Job<S> job = backlog.poll();
+            if (job == null) {
+                // the job that will be evicted hasn't been linked yet
+                return false;
+            }
+            if (job.take() != null) {
+                forget(job);
+                evictions.decrementAndGet();
+            }
+        }
+        return true;
+    }
+
+    private Job<S> pollBacklog() {
+        while (!polling.compareAndSet(false, true)) {
+            // an evicting producer; it only holds this for a few polls
+            Thread.yield();
+        }
+        try {
+            return purge() ? backlog.poll() : null;
+        }
+        finally {
+            polling.set(false);
+        }
+    }
+
+    private void forget(Job<S> job) {
+        if (job.key != null) {
+            latest.remove(job.key, job);
+        }
+    }
+
+    private void freeSlot() {
+        backlogSize.decrementAndGet();
+        if (waiters > 0) {
+            synchronized (room) {
+                room.notifyAll();
+            }
+        }
+    }
+
+    private void signalDrain() {
+        if (drainRequests.getAndIncrement() == 0) {
+            receiver.execute(drain);
+        }
+    }
+
+    /**
+     * Replays the backlog until it is empty or the machine is stopped.
+     * <p>
+     * Only one drain is ever active at a time; signals that arrive while
+     * draining are folded into the current run instead of scheduling another.
+     */
+    private void drain() {
+        Job.Case<S> dispatch = new Job.Case<S>() {
+            @Override
+            public void moore(Effects<S> fx, Mu.Action<S> action) {
+                exec(fx, action, false);
+            }
+
+            @Override
+            public void mealy(Effects<S> fx, Class<?> target, Mi.Action<S, ?> action) {
+                if (target.isAssignableFrom(fx.getClass())) {
+                    @SuppressWarnings("unchecked")
+                    Mi.Action<S, Effects<S>> mealy = (Mi.Action<S, Effects<S>>) action;
+                    exec(fx, mealy, false);
+                }
+                // else re-enqueue later?
+            }
+        };
+        int missed = 1;
+        do {
+            while (isRunning) {
+                Job<S> next = unsent != null ? unsent : pollBacklog();
+                if (next == null) {
+                    break;
+                }
+                unsent = null;
+                Effects<S> fx = weakEffects.get();
+                if (fx == null) {
+                    // hold on to it until the next start()
+                    unsent = next;
+                    break;
+                }
+                Job<S> job = next.take();
+                if (job == null) {
+                    continue;
+                }
+                forget(next);
+                freeSlot();
+                job.match(fx, dispatch);
+            }
+            missed = drainRequests.addAndGet(-missed);
+        } while (missed != 0);
+    }
+
+    private class MooreDispatch implements Mu.Trampolined<S> {
+        Effects<S> effects;
+        boolean dirty;
+
+        @Override
+        public void noop() {
+        }
+
+        @Override
+        public void reenter() {
+            render();
+        }
+
+        @Override
+        public void enter(S newState) {
+            state = newState;
+            render();
+        }
+
+        @Override
+        public void enterEagerly(S newState) {
+            state = newState;
+            dirty = false;
+            onEnter(effects);
+        }
+
+        @Override
+        public Mu<S> apply(Mu.Action<S> action) {
+            return action.apply(state);
+        }
+
+        @Override
+        public void async(Callable<Mu.Action<S>> block) {
+            new Pending<>(effects).awaitMoore(block);
+        }
+
+        @Override
+        public void defer(Fn.Proc<Mu.Continuation<S>> block) {
+            new Pending<>(effects).deferMoore(block);
+        }
+
+        @Override
+        public void raise(Throwable e) {
+            effects.handle(e);
+        }
+
+        private void render() {
+            if (conflation == Conflation.NONE) {
+                onEnter(effects);
+            }
+            else {
+                dirty = true;
+            }
+        }
+    }
+
+    private class MealyDispatch<E extends Effects<S>> implements Mi.Trampolined<S, E> {
+        E effects;
+        boolean dirty;
+
+        @Override
+        public void noop() {
+        }
+
+        @Override
+        public void reenter() {
+            render();
+        }
+
+        @Override
+        public void enter(S newState) {
+            state = newState;
+            render();
+        }
+
+        @Override
+        public void enterEagerly(S newState) {
+            state = newState;
+            dirty = false;
+            onEnter(effects);
+        }
+
+        @Override
+        public Mi<S, E> apply(Mi.Action<S, E> action) {
+            return action.apply(state, effects);
+        }
+
+        @Override
+        public void async(Callable<Mi.Action<S, E>> block) {
+            new Pending<>(effects).awaitMealy(block);
+        }
+
+        @Override
+        public void defer(Fn.Proc<Mi.Continuation<S, E>> block) {
+            new Pending<>(effects).deferMealy(block);
+        }
+
+        @Override
+        public void raise(Throwable e) {
+            effects.handle(e);
+        }
+
+        private void render() {
+            if (conflation == Conflation.NONE) {
+                onEnter(effects);
+            }
+            else {
+                dirty = true;
+            }
+        }
+    }
+
+    /**
+     * An async action in flight. Exactly one of completion, timeout and
+     * cancellation wins the {@link #done} flag.
+     * <p>
+     * This is also the weak reference to the receiver that started it so
+     * that a collected receiver can be detected through {@link #collected}.
+     */
+    private class Pending<E extends Effects<S>> extends WeakReference<E> implements Cancellable {
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final Class<?> fxClass;
+        HashedWheelTimer.Timeout timer;
+        volatile HashedWheelTimer.Timeout hedgeTimer;
+        Timed<?> timed;
+        long startedAt;
+        volatile Future<?>[] tasks;
+        volatile boolean cancelled;
+
+        Pending(E effects) {
+            super(effects, cancelPolicy == CancelPolicy.KEEP_RUNNING ? null : collected);
+            fxClass = effects.getClass();
+        }
+
+        void awaitMoore(Callable<Mu.Action<S>> block) {
+            await(block, this::execOrSend, e -> Mu.Action.pure(Mu.raise(e)), this::execIfRunning);
+        }
+
+        void awaitMealy(Callable<Mi.Action<S, E>> block) {
+            await(block, this::execOrSend, e -> Mi.Action.pure(Mi.raise(e)), this::execIfRunning);
+        }
+
+        /**
+         * @param send Executes or queues the result of a one-shot action
+         * @param fail Turns an error into an action
+         * @param fire Executes the action of a periodic block
+         */
+        @SuppressWarnings("unchecked")
+        private <A> void await(
+                Callable<A> block,
+                Fn.Proc<A> send,
+                Fn.Func<Throwable, A> fail,
+                Fn.Proc<A> fire
+        ) {
+            Fn.Proc<Cancellable> receipt = null;
+            if (block instanceof Receipted) {
+                Receipted<A> r = (Receipted<A>) block;
+                receipt = r.receipt;
+                block = r.block;
+            }
+            if (block instanceof Periodic) {
+                Periodic<A> p = (Periodic<A>) block;
+                // never armed; keeps sweep() from counting it as pending
+                done.set(true);
+                Ticker<A> ticker = new Ticker<>(this, p.periodMillis, () -> fire.receive(p.action));
+                if (receipt != null) {
+                    receipt.receive(ticker);
+                }
+                ticker.resume();
+                return;
+            }
+            Runnable onTimeout = () -> send.receive(fail.apply(new TimeoutException()));
+            if (block instanceof Fork && ((Fork<?, A>) block).blocks.length > 0) {
+                launch(receipt, onTimeout, fanOut((Fork<?, A>) block, send, fail));
+                return;
+            }
+            if (block instanceof Race) {
+                race((Race<A>) block, receipt, onTimeout, send, fail);
+                return;
+            }
+            if (block instanceof Timed) {
+                schedule((Timed<A>) block, receipt, send);
+                return;
+            }
+            if (block instanceof Retry) {
+                Retry<A> r = (Retry<A>) block;
+                launch(receipt, onTimeout, attempt(r, 1, send, fail));
+                return;
+            }
+            Callable<A> body = block;
+            launch(receipt, onTimeout, new FutureTask<>(() -> {
+                A action;
+                try {
+                    action = body.call();
+                }
+                catch (Exception e) {
+                    action = fail.apply(e);
+                }
+                if (settle()) {
+                    send.receive(action);
+                }
+            }, null));
+        }
+
+        private <T, A> FutureTask<?>[] fanOut(
+                Fork<T, A> fork,
+                Fn.Proc<A> send,
+                Fn.Func<Throwable, A> fail
+        ) {
+            int n = fork.blocks.length;
+            Object[] results = new Object[n];
+            AtomicInteger remaining = new AtomicInteger(n);
+            FutureTask<?>[] forks = new FutureTask<?>[n];
+            for (int i = 0; i < n; i++) {
+                int k = i;
+                forks[k] = new FutureTask<>(() -> {
+                    try {
+                        results[k] = fork.blocks[k].call();
+                    }
+                    catch (Exception e) {
+                        if (settle()) {
+                            interrupt(forks[k]);
+                            send.receive(fail.apply(e));
+                        }
+                        return;
+                    }
+                    // the decrement publishes the result to the last block
+                    if (remaining.decrementAndGet() == 0 && settle()) {
+                        A action;
+                        try {
+                            action = fork.join(results);
+                        }
+                        catch (RuntimeException e) {
+                            action = fail.apply(e);
+                        }
+                        send.receive(action);
+                    }
+                }, null);
+            }
+            return forks;
+        }
+
+        private <A> void race(
+                Race<A> race,
+                Fn.Proc<Cancellable> receipt,
+                Runnable onTimeout,
+                Fn.Proc<A> send,
+                Fn.Func<Throwable, A> fail
+        ) {
+            int n = race.blocks.length;
+            AtomicInteger failures = new AtomicInteger(0);
+            AtomicBoolean hedged = new AtomicBoolean(n == 1);
+            FutureTask<?>[] racers = new FutureTask<?>[n];
+            Runnable hedge = () -> {
+                if (hedged.compareAndSet(false, true)) {
+                    for (int i = 1; i < n && !done.get(); i++) {
+                        try {
+                            worker.execute(racers[i]);
+                        }
+                        catch (RejectedExecutionException e) {
+                            // a racer that never ran has lost
+                            if (failures.incrementAndGet() == n && settle()) {
+                                send.receive(fail.apply(e));
+                            }
+                        }
+                    }
+                }
+            };
+            for (int i = 0; i < n; i++) {
+                int k = i;
+                racers[k] = new FutureTask<>(() -> {
+                    A action;
+                    try {
+                        action = race.blocks[k].call();
+                    }
+                    catch (Exception e) {
+                        if (failures.incrementAndGet() == n) {
+                            if (settle()) {
+                                send.receive(fail.apply(e));
+                            }
+                        }
+                        else if (k == 0) {
+                            // no point waiting for the primary anymore
+                            hedge.run();
+                        }
+                        return;
+                    }
+                    if (settle()) {
+                        interrupt(racers[k]);
+                        send.receive(action);
+                    }
+                }, null);
+            }
+            if (race.hedgeMillis <= 0) {
+                hedged.set(true);
+                launch(receipt, onTimeout, n, racers);
+            }
+            else {
+                launch(receipt, onTimeout, 1, racers);
+                hedgeTimer = HashedWheelTimer.shared()
+                        .schedule(hedge, race.hedgeMillis, TimeUnit.MILLISECONDS);
+                if (done.get()) {
+                    // settled before the handle was stored
+                    hedgeTimer.cancel();
+                }
+            }
+        }
+
+        /**
+         * Makes a task that calls the block once and, if it fails and the
+         * policy allows, submits the next attempt after the backoff.
+         */
+        private <A> FutureTask<?> attempt(
+                Retry<A> retry,
+                int n,
+                Fn.Proc<A> send,
+                Fn.Func<Throwable, A> fail
+        ) {
+            return new FutureTask<>(() -> {
+                retry.policy.attempt(n);
+                A action;
+                try {
+                    action = retry.block.call();
+                }
+                catch (Exception e) {
+                    if (done.get()) {
+                        // timed out or cancelled; not the block's fault
+                        return;
+                    }
+                    long wait = retry.policy.backoff(e, n);
+                    if (wait < 0) {
+                        if (settle()) {
+                            send.receive(fail.apply(e));
+                        }
+                    }
+                    else {
+                        FutureTask<?> next = attempt(retry, n + 1, send, fail);
+                        HashedWheelTimer.shared().schedule(() -> {
+                            tasks = new FutureTask<?>[] {next};
+                            // cancel() reads the tasks after setting done
+                            if (!done.get()) {
+                                try {
+                                    worker.execute(next);
+                                }
+                                catch (RejectedExecutionException rejected) {
+                                    if (settle()) {
+                                        send.receive(fail.apply(rejected));
+                                    }
+                                }
+                            }
+                        }, wait, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+                if (settle()) {
+                    send.receive(action);
+                }
+            }, null);
+        }
+
+        private <A> void schedule(Timed<A> timed, Fn.Proc<Cancellable> receipt, Fn.Proc<A> send) {
+            this.timed = timed;
+            arm(null);
+            if (receipt != null) {
+                receipt.receive(this);
+            }
+            long delay = timed.millis;
+            switch (timed.kind) {
+                case DEBOUNCE: {
+                    Pending<?> prev = debounced.put(timed.key, this);
+                    if (prev != null) {
+                        prev.cancel();
+                    }
+                    break;
+                }
+                case THROTTLE: {
+                    Pending<?> prev;
+                    synchronized (gates) {
+                        long now = System.nanoTime();
+                        Gate gate = gates.get(timed.key);
+                        if (gate == null || now - gate.until >= 0) {
+                            gate = new Gate(timed.key, now + TimeUnit.MILLISECONDS.toNanos(delay));
+                            gates.put(timed.key, gate);
+                            gate.closeAfter(delay);
+                            prev = null;
+                            delay = 0;
+                        }
+                        else {
+                            prev = gate.trailing;
+                            gate.trailing = this;
+                            delay = TimeUnit.NANOSECONDS.toMillis(gate.until - now);
+                        }
+                    }
+                    if (prev != null) {
+                        prev.cancel();
+                    }
+                    break;
+                }
+                default:
+                    break;
+            }
+            if (delay <= 0) {
+                if (timed.kind == Timed.Kind.DEBOUNCE) {
+                    debounced.remove(timed.key, this);
+                }
+                if (settle()) {
+                    send.receive(timed.action);
+                }
+                return;
+            }
+            timer = HashedWheelTimer.shared().schedule(() -> {
+                if (!release(timed)) {
+                    return;
+                }
+                if (settle()) {
+                    send.receive(timed.action);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Updates the gates when a timed action comes due.
+         *
+         * @return false if the action has been superseded in the meantime
+         */
+        private boolean release(Timed<?> timed) {
+            switch (timed.kind) {
+                case DEBOUNCE:
+                    return debounced.remove(timed.key, this);
+                case THROTTLE:
+                    synchronized (gates) {
+                        Gate gate = gates.get(timed.key);
+                        if (gate == null || gate.trailing != this) {
+                            return false;
+                        }
+                        // the trailing action opens the next window
+                        gate.trailing = null;
+                        gate.until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timed.millis);
+                        gate.closeAfter(timed.millis);
+                        return true;
+                    }
+                default:
+                    return true;
+            }
+        }
+
+        /**
+         * Unregisters a cancelled timed action so that its key does not
+         * stay in the debounce and throttle maps.
+         */
+        private void forget(Timed<?> timed) {
+            switch (timed.kind) {
+                case DEBOUNCE:
+                    debounced.remove(timed.key, this);
+                    break;
+                case THROTTLE:
+                    synchronized (gates) {
+                        Gate gate = gates.get(timed.key);
+                        if (gate != null && gate.trailing == this) {
+                            gate.trailing = null;
+                            if (System.nanoTime() - gate.until >= 0) {
+                                gates.remove(timed.key);
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        /**
+         * Waits for a continuation without holding a worker thread.
+         *
+         * @param block Receives the continuation
+         */
+        void deferMoore(Fn.Proc<Mu.Continuation<S>> block) {
+            arm(() -> execOrSend(Mu.Action.pure(Mu.raise(new TimeoutException()))));
+            try {
+                block.receive(action -> {
+                    if (action != null && settle()) {
+                        execOrSend(action);
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                abandon();
+                throw e;
+            }
+        }
+
+        void deferMealy(Fn.Proc<Mi.Continuation<S, E>> block) {
+            arm(() -> execOrSend(Mi.Action.pure(Mi.raise(new TimeoutException()))));
+            try {
+                block.receive(action -> {
+                    if (action != null && settle()) {
+                        execOrSend(action);
+                    }
+                });
+            }
+            catch (RuntimeException e) {
+                abandon();
+                throw e;
+            }
+        }
+
+        private void launch(Fn.Proc<Cancellable> receipt, Runnable onTimeout, FutureTask<?>... work) {
+            launch(receipt, onTimeout, work.length, work);
+        }
+
+        /**
+         * @param eager The number of tasks to submit right away; the rest
+         *              are submitted by the caller later
+         */
+        private void launch(
+                Fn.Proc<Cancellable> receipt,
+                Runnable onTimeout,
+                int eager,
+                FutureTask<?>[] work
+        ) {
+            arm(onTimeout);
+            tasks = work;
+            if (receipt != null) {
+                receipt.receive(this);
+            }
+            for (int i = 0; i < eager && !done.get(); i++) {
+                worker.execute(work[i]);
+            }
+        }
+
+        /**
+         * @param except The task that is giving up, which must not interrupt
+         *               its own thread
+         */
+        private void interrupt(Future<?> except) {
+            Future<?>[] ts = tasks;
+            if (ts != null) {
+                for (Future<?> t : ts) {
+                    if (t != except) {
+                        t.cancel(true);
+                    }
+                }
+            }
+        }
+
+        private void arm(Runnable onTimeout) {
+            int pending = pendingCount.incrementAndGet();
+            if (monitored) {
+                startedAt = System.nanoTime();
+                monitor.asyncStarted(startedAt, pending);
+            }
+            if (cancelPolicy != CancelPolicy.KEEP_RUNNING) {
+                sweep();
+                inFlight.add(this);
+            }
+            if (timeout > 0 && onTimeout != null) {
+                timer = HashedWheelTimer.shared().schedule(() -> {
+                    if (done.compareAndSet(false, true)) {
+                        disarmHedge();
+                        interrupt(null);
+                        inFlight.remove(this);
+                        if (monitored) {
+                            monitor.timedOut(startedAt, System.nanoTime());
+                        }
+                        onTimeout.run();
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+            }
+        }
+
+        /**
+         * Unregisters an action that failed to start.
+         */
+        private void abandon() {
+            if (settle()) {
+                finish();
+            }
+        }
+
+        /**
+         * @return true if the action completed before it timed out or got
+         * cancelled.
+         */
+        private boolean settle() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            if (timer != null) {
+                timer.cancel();
+            }
+            disarmHedge();
+            inFlight.remove(this);
+            return true;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!done.compareAndSet(false, true)) {
+                return false;
+            }
+            cancelled = true;
+            if (timer != null) {
+                timer.cancel();
+            }
+            disarmHedge();
+            if (timed != null) {
+                forget(timed);
+            }
+            interrupt(null);
+            inFlight.remove(this);
+            finish();
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        private void disarmHedge() {
+            HashedWheelTimer.Timeout t = hedgeTimer;
+            if (t != null) {
+                t.cancel();
+            }
+        }
+
+        private void finish() {
+            int pending = pendingCount.decrementAndGet();
+            if (monitored) {
+                monitor.asyncFinished(startedAt, System.nanoTime(), pending);
+            }
+        }
+
+        void execIfRunning(Mu.Action<S> action) {
+            Effects<S> fx = get();
+            if (fx != null && isRunning) {
+                exec(fx, action, false);
+            }
+        }
+
+        void execIfRunning(Mi.Action<S, E> action) {
+            E fx = get();
+            if (fx != null && isRunning) {
+                exec(fx, action, false);
+            }
+        }
+
+        void execOrSend(Mu.Action<S> action) {
+            Effects<S> fx = get();
+            finish();
+            if (fx != null && isRunning) {
+                exec(fx, action, false);
+            }
+            else {
+                addToBacklog(fx, Job.moore(action), false);
             }
         }
 
         void execOrSend(Mi.Action<S, E> action) {
-            E fx = weakEffects.get();
+            E fx = get();
+            finish();
             if (fx != null && isRunning) {
-                exec(fx, action);
+                exec(fx, action, false);
             }
             else {
-                backlog.offerLast(e -> e.mealy(fxClass, action));
-                // TODO: synchronize?
-                if (pendingCount.decrementAndGet() == 0) {
-                    backlog.offerLast(poisonPill);
+                addToBacklog(fx, Job.mealy(fxClass, action), false);
+            }
+        }
+    }
+
+    /**
+     * Runs a periodic action on the shared timer along a fixed grid.
+     * <p>
+     * Paused while the machine is stopped. Every arm bumps the generation so
+     * that a tick that was already on its way when the ticker got paused (and
+     * maybe resumed) can tell that it is stale.
+     */
+    private final class Ticker<A> implements Cancellable {
+        final Pending<?> receiver;
+        final long periodNanos;
+        final Runnable fire;
+        final long origin = System.nanoTime();
+        HashedWheelTimer.Timeout next;
+        int generation;
+        boolean cancelled;
+
+        Ticker(Pending<?> receiver, long periodMillis, Runnable fire) {
+            this.receiver = receiver;
+            periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+            this.fire = fire;
+            tickers.add(this);
+        }
+
+        synchronized void resume() {
+            if (!cancelled && next == null && isRunning) {
+                arm();
+            }
+        }
+
+        synchronized void pause() {
+            generation++;
+            if (next != null) {
+                next.cancel();
+                next = null;
+            }
+        }
+
+        private void arm() {
+            int g = ++generation;
+            long elapsed = System.nanoTime() - origin;
+            long due = (elapsed / periodNanos + 1) * periodNanos;
+            next = HashedWheelTimer.shared().schedule(() -> tick(g), due - elapsed, TimeUnit.NANOSECONDS);
+        }
+
+        private void tick(int g) {
+            synchronized (this) {
+                if (g != generation || cancelled) {
+                    return;
+                }
+                next = null;
+                if (receiver.get() == null) {
+                    cancel();
+                    return;
                 }
+                if (!isRunning) {
+                    // start() picks it up again
+                    return;
+                }
+                arm();
+            }
+            fire.run();
+        }
+
+        @Override
+        public synchronized boolean cancel() {
+            if (cancelled) {
+                return false;
             }
+            cancelled = true;
+            pause();
+            tickers.remove(this);
+            return true;
+        }
+
+        @Override
+        public synchronized boolean isCancelled() {
+            return cancelled;
         }
     }
 
-    private static class Timer {
-        static final ScheduledExecutorService INSTANCE =
-                Executors.newSingleThreadScheduledExecutor();
+    private final class Gate {
+        final Object key;
+        long until;
+        Pending<?> trailing;
+
+        Gate(Object key, long until) {
+            this.key = key;
+            this.until = until;
+        }
+
+        /**
+         * Removes this gate when the current window ends unless a trailing
+         * action is waiting to open the next one. Must hold the gates lock.
+         */
+        void closeAfter(long millis) {
+            HashedWheelTimer.shared().schedule(() -> {
+                synchronized (gates) {
+                    if (trailing == null
+                            && System.nanoTime() - until >= 0
+                            && gates.get(key) == this) {
+                        gates.remove(key);
+                    }
+                }
+            }, millis, TimeUnit.MILLISECONDS);
+        }
     }
 
-    private interface Job<S> {
-        void match(Case<S> e);
+    private static final class Letter<S> extends MpscQueue.Node<Letter<S>> {
+        final Effects<S> effects;
+        final Mu.Action<S> moore;
+        final Mi.Action<S, ?> mealy;
+        final long postedAt;
+
+        Letter(Effects<S> effects, Mu.Action<S> moore, Mi.Action<S, ?> mealy, long postedAt) {
+            this.effects = effects;
+            this.moore = moore;
+            this.mealy = mealy;
+            this.postedAt = postedAt;
+        }
+
+        void deliver(AsyncFst<S> machine) {
+            if (moore != null) {
+                machine.apply(effects, moore, postedAt);
+            }
+            else {
+                @SuppressWarnings("unchecked")
+                Mi.Action<S, Effects<S>> action = (Mi.Action<S, Effects<S>>) mealy;
+                machine.apply(effects, action, postedAt);
+            }
+        }
+    }
+
+    private static final class Job<S> extends MpscQueue.Node<Job<S>> {
+        @SuppressWarnings("rawtypes")
+        private static final AtomicReferenceFieldUpdater<Job, Job> CURRENT =
+                AtomicReferenceFieldUpdater.newUpdater(Job.class, Job.class, "current");
+
+        static <S> Job<S> moore(Mu.Action<S> action) {
+            return new Job<>(action, null, null);
+        }
+
+        static <S> Job<S> mealy(Class<?> target, Mi.Action<S, ?> action) {
+            return new Job<>(null, target, action);
+        }
+
+        final Object key;
+        private final Mu.Action<S> moore;
+        private final Class<?> target;
+        private final Mi.Action<S, ?> mealy;
+        private volatile Job<S> current = this;
+
+        private Job(Mu.Action<S> moore, Class<?> target, Mi.Action<S, ?> mealy) {
+            this.moore = moore;
+            this.target = target;
+            this.mealy = mealy;
+            key = Keyed.keyOf(moore != null ? moore : mealy);
+        }
+
+        /**
+         * Swaps out the action of a queued job while keeping its position.
+         *
+         * @param next The job whose action should run instead
+         * @return false if the job has already been taken out of the backlog.
+         */
+        @SuppressWarnings("unchecked")
+        boolean supersede(Job<S> next) {
+            while (true) {
+                Job<S> job = current;
+                if (job == null) {
+                    return false;
+                }
+                if (CURRENT.compareAndSet(this, job, next)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Takes the job out of the backlog. Only one of dispatch and eviction
+         * can win.
+         *
+         * @return the latest job to run in this position or null if it has
+         * already been taken.
+         */
+        @SuppressWarnings("unchecked")
+        Job<S> take() {
+            return CURRENT.getAndSet(this, null);
+        }
+
+        void match(Effects<S> fx, Case<S> e) {
+            if (moore != null) {
+                e.moore(fx, moore);
+            }
+            else {
+                e.mealy(fx, target, mealy);
+            }
+        }
 
-        interface Case<S> extends Runnable {
-            void moore(Mu.Action<S> action);
-            void mealy(Class<? extends Effects> target, Mi.Action action);
-            void kill();
+        interface Case<S> {
+            void moore(Effects<S> fx, Mu.Action<S> action);
+            void mealy(Effects<S> fx, Class<?> target, Mi.Action<S, ?> action);
         }
     }
 }
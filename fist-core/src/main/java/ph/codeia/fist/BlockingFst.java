@@ -19,18 +19,48 @@ import java.util.concurrent.Callable;
  */
 public class BlockingFst<S> implements Fst<S> {
 
+    private final Conflation conflation;
+    private final FstMonitor monitor;
+    private final boolean monitored;
     private S state;
+    private int pending;
+    private MooreDispatch spareMoore = new MooreDispatch();
+    private MealyDispatch<?> spareMealy = new MealyDispatch<>();
 
     /**
      * @param state The initial state
      */
     public BlockingFst(S state) {
+        this(state, Conflation.NONE);
+    }
+
+    /**
+     * @param state The initial state
+     * @param conflation How often the receiver is notified within an exec.
+     *                   {@link Conflation#BATCH} is the same as {@link
+     *                   Conflation#EXEC} here.
+     */
+    public BlockingFst(S state, Conflation conflation) {
+        this(state, conflation, FstMonitor.NONE);
+    }
+
+    /**
+     * @param state The initial state
+     * @param conflation How often the receiver is notified within an exec
+     * @param monitor Receives the timing of execs, notifications and async
+     *                blocks. There is no hop here, so every action is
+     *                dispatched as soon as it is enqueued.
+     */
+    public BlockingFst(S state, Conflation conflation, FstMonitor monitor) {
         this.state = state;
+        this.conflation = conflation;
+        this.monitor = monitor;
+        monitored = monitor != FstMonitor.NONE;
     }
 
     @Override
     public void start(Effects<S> effects) {
-        effects.onEnter(state);
+        onEnter(effects);
     }
 
     @Override
@@ -39,110 +69,234 @@ public class BlockingFst<S> implements Fst<S> {
 
     @Override
     public void exec(Effects<S> effects, Mu.Action<S> action) {
+        long t = clock();
+        MooreDispatch on = takeMoore();
+        on.effects = effects;
+        boolean dirty;
         try {
-            action.apply(state).run(new Mu.Case<S>() {
-                @Override
-                public void noop() {
-                }
-
-                @Override
-                public void reenter() {
-                    effects.onEnter(state);
-                }
-
-                @Override
-                public void enter(S newState) {
-                    state = newState;
-                    effects.onEnter(state);
-                }
-
-                @Override
-                public void forward(Mu.Action<S> action) {
-                    action.apply(state).run(this);
-                }
-
-                @Override
-                public void async(Callable<Mu.Action<S>> block) {
-                    try {
-                        forward(block.call());
-                    }
-                    catch (Exception e) {
-                        raise(e);
-                    }
-                }
-
-                @Override
-                public void defer(Fn.Proc<Mu.Continuation<S>> block) {
-                    Deferred<Mu.Action<S>> next = new Deferred<>();
-                    block.receive(next::offer);
-                    async(next);
-                }
-
-                @Override
-                public void raise(Throwable e) {
-                    effects.handle(e);
-                }
-            });
+            action.apply(state).run(on);
         }
         catch (RuntimeException e) {
             effects.handle(e);
         }
+        finally {
+            dirty = on.dirty;
+            on.effects = null;
+            on.dirty = false;
+            spareMoore = on;
+        }
+        if (dirty) {
+            onEnter(effects);
+        }
+        if (monitored) {
+            monitor.applied(t, System.nanoTime());
+        }
     }
 
     @Override
     public <E extends Effects<S>> void exec(E effects, Mi.Action<S, E> action) {
+        long t = clock();
+        MealyDispatch<E> on = takeMealy();
+        on.effects = effects;
+        boolean dirty;
         try {
-            action.apply(state, effects).run(new Mi.Case<S, E>() {
-                @Override
-                public void noop() {
-                }
-
-                @Override
-                public void reenter() {
-                    effects.onEnter(state);
-                }
-
-                @Override
-                public void enter(S newState) {
-                    state = newState;
-                    effects.onEnter(newState);
-                }
-
-                @Override
-                public void forward(Mi.Action<S, E> action) {
-                    action.apply(state, effects).run(this);
-                }
-
-                @Override
-                public void async(Callable<Mi.Action<S, E>> block) {
-                    try {
-                        forward(block.call());
-                    }
-                    catch (Exception e) {
-                        raise(e);
-                    }
-                }
-
-                @Override
-                public void defer(Fn.Proc<Mi.Continuation<S, E>> block) {
-                    Deferred<Mi.Action<S, E>> next = new Deferred<>();
-                    block.receive(next::offer);
-                    async(next);
-                }
-
-                @Override
-                public void raise(Throwable e) {
-                    effects.handle(e);
-                }
-            });
+            action.apply(state, effects).run(on);
         }
         catch (RuntimeException e) {
             effects.handle(e);
         }
+        finally {
+            dirty = on.dirty;
+            on.effects = null;
+            on.dirty = false;
+            spareMealy = on;
+        }
+        if (dirty) {
+            onEnter(effects);
+        }
+        if (monitored) {
+            monitor.applied(t, System.nanoTime());
+        }
     }
 
     @Override
     public <T> T project(Fn.Func<S, T> projection) {
         return projection.apply(state);
     }
+
+    /**
+     * @return the time now if the machine is monitored, otherwise 0.
+     */
+    private long clock() {
+        if (!monitored) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        monitor.enqueued(now);
+        monitor.dispatched(now, now);
+        return now;
+    }
+
+    private void onEnter(Effects<S> effects) {
+        if (monitored) {
+            monitor.entered(System.nanoTime());
+        }
+        effects.onEnter(state);
+    }
+
+    private <A> A await(Callable<A> block) throws Exception {
+        if (!monitored) {
+            return block.call();
+        }
+        long t = System.nanoTime();
+        monitor.asyncStarted(t, ++pending);
+        try {
+            return block.call();
+        }
+        finally {
+            monitor.asyncFinished(t, System.nanoTime(), --pending);
+        }
+    }
+
+    // the spare is taken out during exec so that a reentrant exec (e.g. from
+    // inside onEnter) gets its own dispatcher instead of clobbering this one
+
+    private MooreDispatch takeMoore() {
+        MooreDispatch on = spareMoore;
+        spareMoore = null;
+        return on != null ? on : new MooreDispatch();
+    }
+
+    @SuppressWarnings("unchecked")
+    private <E extends Effects<S>> MealyDispatch<E> takeMealy() {
+        MealyDispatch<?> on = spareMealy;
+        spareMealy = null;
+        return on != null ? (MealyDispatch<E>) on : new MealyDispatch<>();
+    }
+
+    private class MooreDispatch implements Mu.Trampolined<S> {
+        Effects<S> effects;
+        boolean dirty;
+
+        @Override
+        public void noop() {
+        }
+
+        @Override
+        public void reenter() {
+            render();
+        }
+
+        @Override
+        public void enter(S newState) {
+            state = newState;
+            render();
+        }
+
+        @Override
+        public void enterEagerly(S newState) {
+            state = newState;
+            dirty = false;
+            onEnter(effects);
+        }
+
+        @Override
+        public Mu<S> apply(Mu.Action<S> action) {
+            return action.apply(state);
+        }
+
+        @Override
+        public void async(Callable<Mu.Action<S>> block) {
+            try {
+                forward(await(block));
+            }
+            catch (Exception e) {
+                raise(e);
+            }
+        }
+
+        @Override
+        public void defer(Fn.Proc<Mu.Continuation<S>> block) {
+            Deferred<Mu.Action<S>> next = new Deferred<>();
+            block.receive(next::offer);
+            async(next);
+        }
+
+        @Override
+        public void raise(Throwable e) {
+            effects.handle(e);
+        }
+
+        private void render() {
+            if (conflation == Conflation.NONE) {
+                onEnter(effects);
+            }
+            else {
+                dirty = true;
+            }
+        }
+    }
+
+    private class MealyDispatch<E extends Effects<S>> implements Mi.Trampolined<S, E> {
+        E effects;
+        boolean dirty;
+
+        @Override
+        public void noop() {
+        }
+
+        @Override
+        public void reenter() {
+            render();
+        }
+
+        @Override
+        public void enter(S newState) {
+            state = newState;
+            render();
+        }
+
+        @Override
+        public void enterEagerly(S newState) {
+            state = newState;
+            dirty = false;
+            onEnter(effects);
+        }
+
+        @Override
+        public Mi<S, E> apply(Mi.Action<S, E> action) {
+            return action.apply(state, effects);
+        }
+
+        @Override
+        public void async(Callable<Mi.Action<S, E>> block) {
+            try {
+                forward(await(block));
+            }
+            catch (Exception e) {
+                raise(e);
+            }
+        }
+
+        @Override
+        public void defer(Fn.Proc<Mi.Continuation<S, E>> block) {
+            Deferred<Mi.Action<S, E>> next = new Deferred<>();
+            block.receive(next::offer);
+            async(next);
+        }
+
+        @Override
+        public void raise(Throwable e) {
+            effects.handle(e);
+        }
+
+        private void render() {
+            if (conflation == Conflation.NONE) {
+                onEnter(effects);
+            }
+            else {
+                dirty = true;
+            }
+        }
+    }
 }
@@ -0,0 +1,33 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+/**
+ * Determines which of the pending async actions of an {@link AsyncFst} are
+ * cancelled automatically.
+ *
+ * @see AsyncFst.Builder#cancelOn(CancelPolicy)
+ * @see Cancellable
+ */
+public enum CancelPolicy {
+    /**
+     * Async actions run to completion, or until they time out. Their
+     * continuations are queued if the machine is stopped by then.
+     */
+    KEEP_RUNNING,
+
+    /**
+     * Async actions are cancelled when the receiver that started them has
+     * been garbage collected. Collected receivers are detected when the
+     * machine starts, stops or runs another async action.
+     */
+    CANCEL_ON_GC,
+
+    /**
+     * Every pending async action is cancelled when the machine is stopped.
+     * Implies {@link #CANCEL_ON_GC}.
+     */
+    CANCEL_ON_STOP,
+}
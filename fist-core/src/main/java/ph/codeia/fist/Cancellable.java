@@ -0,0 +1,44 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+/**
+ * A handle to a running async action.
+ *
+ * @see Mu#async(java.util.concurrent.Callable, Fn.Proc)
+ * @see Mi#async(java.util.concurrent.Callable, Fn.Proc)
+ */
+public interface Cancellable {
+    /**
+     * A handle to an action that is already done or that cannot be
+     * interrupted, e.g. the async actions of a {@link BlockingFst}.
+     */
+    Cancellable DONE = new Cancellable() {
+        @Override
+        public boolean cancel() {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    /**
+     * Interrupts the action if it is running and discards its result.
+     * <p>
+     * The continuation of a cancelled action is never executed nor queued.
+     *
+     * @return false if the action has already completed, timed out or been
+     * cancelled.
+     */
+    boolean cancel();
+
+    /**
+     * @return true if {@link #cancel()} has succeeded.
+     */
+    boolean isCancelled();
+}
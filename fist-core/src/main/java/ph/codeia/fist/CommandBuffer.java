@@ -0,0 +1,78 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Flat storage for composite {@link Mu} and {@link Mi} commands.
+ * <p>
+ * A command made of more than one step is a view of the first {@code length}
+ * opcode/operand pairs of a buffer. Buffers only ever grow at the end and the
+ * slots that a view can see are never written again, so a buffer can be
+ * shared by any number of views. Appending to a view whose length is still
+ * the end of the buffer claims the next slots in place; appending to any
+ * other view (or when the buffer is full) copies into a new buffer with
+ * double the capacity. Either way, {@code then} is amortized O(1) per step.
+ */
+final class CommandBuffer {
+    static final byte NOOP = 0;
+    static final byte REENTER = 1;
+    static final byte ENTER = 2;
+    static final byte FORWARD = 3;
+    static final byte ASYNC = 4;
+    static final byte DEFER = 5;
+    static final byte RAISE = 6;
+    static final byte ENTER_EACH = 7;
+
+    private static final int MIN_CAPACITY = 8;
+
+    final byte[] codes;
+    final Object[] args;
+    private final AtomicInteger size;
+
+    /**
+     * @param capacity The maximum number of steps
+     * @param used The number of steps that the creator is about to write
+     */
+    CommandBuffer(int capacity, int used) {
+        capacity = Math.max(MIN_CAPACITY, capacity);
+        codes = new byte[capacity];
+        args = new Object[capacity];
+        size = new AtomicInteger(used);
+    }
+
+    /**
+     * Creates a buffer big enough to hold two views and some more.
+     *
+     * @param used The combined length of the views to be written
+     * @return a buffer whose first {@code used} slots are reserved
+     */
+    static CommandBuffer grow(int used) {
+        return new CommandBuffer(2 * used, used);
+    }
+
+    /**
+     * Claims the {@code n} slots after {@code end} if no other view has
+     * claimed them yet and there is room for them.
+     *
+     * @param end The length of the view being extended
+     * @param n The number of slots to claim
+     * @return true if the slots may be written to
+     */
+    boolean reserve(int end, int n) {
+        return end + n <= codes.length && size.compareAndSet(end, end + n);
+    }
+
+    void set(int i, byte code, Object arg) {
+        codes[i] = code;
+        args[i] = arg;
+    }
+
+    void copy(int length, CommandBuffer dest, int at) {
+        System.arraycopy(codes, 0, dest.codes, at, length);
+        System.arraycopy(args, 0, dest.args, at, length);
+    }
+}
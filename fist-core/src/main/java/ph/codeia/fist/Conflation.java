@@ -0,0 +1,44 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+/**
+ * Determines how often a machine calls {@link Effects#onEnter(Object)}.
+ * <p>
+ * State transitions are always applied as soon as they are produced; only
+ * the notification is held back. A conflating machine remembers that its
+ * receiver needs to be notified and calls it once with the final state at
+ * the end of the exec or batch. Commands that produce no ENTER or REENTER
+ * steps never cause a notification.
+ * <p>
+ * Note that this changes the order of outputs in Mealy actions that call the
+ * receiver directly: those calls happen before the conflated {@code onEnter}
+ * even if they were made after the ENTER step.
+ * <p>
+ * Side states, i.e. states that only exist to produce an output like a toast,
+ * can be entered with {@link Mu#enterEach(Object[])} or {@link
+ * Mi#enterEach(Object[])}. These are delivered right away regardless of the
+ * policy.
+ */
+public enum Conflation {
+    /**
+     * The receiver is notified once for every ENTER and REENTER step.
+     */
+    NONE,
+
+    /**
+     * The receiver is notified at most once per {@code exec} call, including
+     * all the actions forwarded to by the executed action. The continuation of
+     * an async or deferred action counts as a separate exec.
+     */
+    EXEC,
+
+    /**
+     * The receiver is notified at most once per main thread hop of a machine
+     * with {@link AsyncFst.Builder#batchDispatch() batch dispatch}. Same as
+     * {@link #EXEC} in other machines.
+     */
+    BATCH,
+}
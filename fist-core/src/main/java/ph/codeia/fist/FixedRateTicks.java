@@ -0,0 +1,122 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link TickSource} that ticks at a fixed rate in its own thread.
+ * <p>
+ * Ticks are aligned to a fixed grid starting from the time this was created,
+ * so requests that arrive between two grid points are all served by the same
+ * tick. The thread only wakes up when there is a pending request.
+ */
+public final class FixedRateTicks implements TickSource {
+
+    private static final AtomicInteger COUNT = new AtomicInteger(0);
+
+    /**
+     * @param ticks The number of ticks per second, e.g. 60
+     * @return a new tick source
+     */
+    public static FixedRateTicks perSecond(int ticks) {
+        if (ticks < 1) {
+            throw new IllegalArgumentException("ticks must be at least 1");
+        }
+        return new FixedRateTicks(TimeUnit.SECONDS.toNanos(1) / ticks, TimeUnit.NANOSECONDS);
+    }
+
+    private final MpscQueue<Request> requests = new MpscQueue<>();
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final Runnable tick = this::tick;
+    private final long origin = System.nanoTime();
+    private final long periodNanos;
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param period The time between ticks
+     * @param unit The unit of the period
+     */
+    public FixedRateTicks(long period, TimeUnit unit) {
+        periodNanos = unit.toNanos(period);
+        if (periodNanos <= 0) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        String name = "fist-ticks-" + COUNT.getAndIncrement();
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        timer = executor;
+    }
+
+    @Override
+    public void requestTick(Runnable onTick) {
+        requests.offer(new Request(onTick));
+        if (pending.getAndIncrement() == 0) {
+            scheduleNext();
+        }
+    }
+
+    /**
+     * @return the time between ticks in nanoseconds.
+     */
+    public long periodNanos() {
+        return periodNanos;
+    }
+
+    /**
+     * Stops the tick thread. Pending requests are dropped and further requests
+     * are rejected.
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+    }
+
+    private void scheduleNext() {
+        long phase = (System.nanoTime() - origin) % periodNanos;
+        timer.schedule(tick, periodNanos - phase, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Serves the requests that were counted before the tick started. Requests
+     * that arrive during the tick are left for the next one.
+     */
+    private void tick() {
+        int due = pending.get();
+        for (int served = 0; served < due; ) {
+            Request r = requests.poll();
+            if (r == null) {
+                // counted but not linked yet
+                Thread.yield();
+                continue;
+            }
+            served++;
+            try {
+                r.onTick.run();
+            }
+            catch (RuntimeException e) {
+                Thread t = Thread.currentThread();
+                t.getUncaughtExceptionHandler().uncaughtException(t, e);
+            }
+        }
+        if (pending.addAndGet(-due) != 0) {
+            scheduleNext();
+        }
+    }
+
+    private static final class Request extends MpscQueue.Node<Request> {
+        final Runnable onTick;
+
+        Request(Runnable onTick) {
+            this.onTick = onTick;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+ * An async block made of independent blocks whose results are combined into
+ * one action.
+ * <p>
+ * An {@link AsyncFst} submits every block to its worker at once and applies a
+ * single timeout to the whole group. Everywhere else, this is called like any
+ * other block and the blocks simply run one after the other.
+ *
+ * @param <T> The result type of the blocks
+ * @param <A> The action type
+ */
+final class Fork<T, A> implements Callable<A> {
+    final Callable<? extends T>[] blocks;
+    final Fn.Func<List<T>, A> combine;
+
+    Fork(Callable<? extends T>[] blocks, Fn.Func<List<T>, A> combine) {
+        this.blocks = blocks.clone();
+        this.combine = combine;
+    }
+
+    /**
+     * @param results The results of every block, in order
+     * @return the combined action
+     */
+    @SuppressWarnings("unchecked")
+    A join(Object[] results) {
+        return combine.apply((List<T>) Arrays.asList(results));
+    }
+
+    @Override
+    public A call() throws Exception {
+        List<T> results = new ArrayList<>(blocks.length);
+        for (Callable<? extends T> block : blocks) {
+            results.add(block.call());
+        }
+        return combine.apply(results);
+    }
+}
@@ -0,0 +1,219 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free {@link FstMonitor} that counts events and keeps latency
+ * histograms.
+ * <p>
+ * One instance can be shared by many machines to get totals. Reads are not
+ * atomic snapshots; a counter read while machines are running may be a few
+ * events behind another one.
+ */
+public final class FstMetrics implements FstMonitor {
+
+    /**
+     * A histogram of durations with power-of-two buckets.
+     * <p>
+     * Recording is a couple of atomic increments. Percentiles are reported as
+     * the upper bound of the bucket they fall in, so they are at most twice
+     * the actual value.
+     */
+    public static final class Histogram {
+        private final AtomicLongArray buckets = new AtomicLongArray(64);
+        private final AtomicLong count = new AtomicLong(0);
+        private final AtomicLong sum = new AtomicLong(0);
+        private final AtomicLong max = new AtomicLong(0);
+
+        /**
+         * @param nanos The duration to add; negative values count as zero
+         */
+        public void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            count.incrementAndGet();
+            sum.addAndGet(nanos);
+            while (true) {
+                long m = max.get();
+                if (nanos <= m || max.compareAndSet(m, nanos)) {
+                    break;
+                }
+            }
+        }
+
+        /**
+         * @return the number of recorded durations.
+         */
+        public long count() {
+            return count.get();
+        }
+
+        /**
+         * @return the longest recorded duration in nanoseconds.
+         */
+        public long max() {
+            return max.get();
+        }
+
+        /**
+         * @param unit The unit of the result
+         * @return the average duration, rounded down.
+         */
+        public long mean(TimeUnit unit) {
+            long n = count.get();
+            return n == 0 ? 0 : unit.convert(sum.get() / n, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * @param quantile A number from 0 to 1, e.g. 0.99 for the 99th
+         *                 percentile
+         * @return an upper bound of the duration in nanoseconds below which
+         * the given fraction of durations fall.
+         */
+        public long percentile(double quantile) {
+            long n = count.get();
+            if (n == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(quantile * n);
+            long seen = 0;
+            for (int i = 0; i < 64; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return Math.min(max.get(), i == 0 ? 0 : (1L << i) - 1);
+                }
+            }
+            return max.get();
+        }
+    }
+
+    private final AtomicLong execs = new AtomicLong(0);
+    private final AtomicLong enters = new AtomicLong(0);
+    private final AtomicLong asyncs = new AtomicLong(0);
+    private final AtomicLong timeouts = new AtomicLong(0);
+    private final AtomicInteger pending = new AtomicInteger(0);
+    private final AtomicInteger backlogPeak = new AtomicInteger(0);
+    private final Histogram hop = new Histogram();
+    private final Histogram apply = new Histogram();
+    private final Histogram async = new Histogram();
+
+    @Override
+    public void enqueued(long at) {
+        execs.incrementAndGet();
+    }
+
+    @Override
+    public void dispatched(long enqueuedAt, long at) {
+        hop.record(at - enqueuedAt);
+    }
+
+    @Override
+    public void applied(long dispatchedAt, long at) {
+        apply.record(at - dispatchedAt);
+    }
+
+    @Override
+    public void entered(long at) {
+        enters.incrementAndGet();
+    }
+
+    @Override
+    public void backlogged(long at, int depth) {
+        while (true) {
+            int peak = backlogPeak.get();
+            if (depth <= peak || backlogPeak.compareAndSet(peak, depth)) {
+                break;
+            }
+        }
+    }
+
+    @Override
+    public void asyncStarted(long at, int pending) {
+        asyncs.incrementAndGet();
+        this.pending.incrementAndGet();
+    }
+
+    @Override
+    public void asyncFinished(long startedAt, long at, int pending) {
+        this.pending.decrementAndGet();
+        async.record(at - startedAt);
+    }
+
+    @Override
+    public void timedOut(long startedAt, long at) {
+        timeouts.incrementAndGet();
+    }
+
+    /**
+     * @return the number of actions passed to {@code exec}.
+     */
+    public long execs() {
+        return execs.get();
+    }
+
+    /**
+     * @return the number of receiver notifications.
+     */
+    public long enters() {
+        return enters.get();
+    }
+
+    /**
+     * @return the number of async actions launched.
+     */
+    public long asyncs() {
+        return asyncs.get();
+    }
+
+    /**
+     * @return the number of async actions that timed out.
+     */
+    public long timeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * @return the number of async actions in flight across all monitored
+     * machines.
+     */
+    public int pending() {
+        return pending.get();
+    }
+
+    /**
+     * @return the largest backlog seen in any monitored machine.
+     */
+    public int backlogPeak() {
+        return backlogPeak.get();
+    }
+
+    /**
+     * @return the time from {@code exec} to the start of the apply, i.e. the
+     * main thread hop.
+     */
+    public Histogram hopLatency() {
+        return hop;
+    }
+
+    /**
+     * @return the time spent applying actions and running their commands.
+     */
+    public Histogram applyLatency() {
+        return apply;
+    }
+
+    /**
+     * @return the time from launching an async action to its completion,
+     * timeout or cancellation.
+     */
+    public Histogram asyncLatency() {
+        return async;
+    }
+}
@@ -0,0 +1,92 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+/**
+ * Receives timing events from the hot paths of a state machine.
+ * <p>
+ * Every timestamp is from {@link System#nanoTime()}, so only the differences
+ * between them are meaningful. The hooks are called in whatever thread the
+ * event happens in, often in the main thread, so they must be cheap and
+ * thread-safe and must never throw.
+ * <p>
+ * Machines skip the clock reads and the calls altogether when their monitor
+ * is {@link #NONE}.
+ *
+ * @see FstMetrics
+ * @see AsyncFst.Builder#monitor(FstMonitor)
+ */
+public interface FstMonitor {
+
+    /**
+     * Ignores everything. The default monitor of every machine.
+     */
+    FstMonitor NONE = new FstMonitor() {};
+
+    /**
+     * An action was passed to {@code exec}.
+     *
+     * @param at When the action was received
+     */
+    default void enqueued(long at) {}
+
+    /**
+     * An action has reached the main thread and is about to be applied.
+     *
+     * @param enqueuedAt When the action was received
+     * @param at Now
+     */
+    default void dispatched(long enqueuedAt, long at) {}
+
+    /**
+     * An action and the command it produced have finished running.
+     *
+     * @param dispatchedAt When the action started
+     * @param at Now
+     */
+    default void applied(long dispatchedAt, long at) {}
+
+    /**
+     * A receiver is about to be notified of the current state.
+     *
+     * @param at Now
+     */
+    default void entered(long at) {}
+
+    /**
+     * An action was kept to be replayed when the machine starts.
+     *
+     * @param at Now
+     * @param depth The number of actions in the backlog
+     */
+    default void backlogged(long at, int depth) {}
+
+    /**
+     * An async or deferred action was launched.
+     *
+     * @param at Now
+     * @param pending The number of async actions in flight, including this
+     */
+    default void asyncStarted(long at, int pending) {}
+
+    /**
+     * An async action is no longer in flight, whether it completed, timed
+     * out, failed to start or got cancelled.
+     *
+     * @param startedAt When the action was launched
+     * @param at Now
+     * @param pending The number of async actions still in flight
+     */
+    default void asyncFinished(long startedAt, long at, int pending) {}
+
+    /**
+     * An async action has run out of time. It is also reported as finished
+     * right after.
+     *
+     * @param startedAt When the action was launched
+     * @param at Now
+     */
+    default void timedOut(long startedAt, long at) {}
+}
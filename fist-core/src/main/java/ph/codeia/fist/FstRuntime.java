@@ -0,0 +1,175 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A fixed set of event loop threads shared by many {@link AsyncFst} machines.
+ * <p>
+ * Each machine is pinned to one loop when it is built and all of its backlog
+ * replays happen in that loop, so the actions of a machine are never replayed
+ * concurrently. A loop only runs when there is something to replay and parks
+ * otherwise; a started machine does not occupy a thread.
+ * <p>
+ * By default, every {@link AsyncFst.Builder} uses the {@link #shared()}
+ * runtime.
+ */
+public final class FstRuntime {
+
+    private static class Shared {
+        static final FstRuntime INSTANCE =
+                new FstRuntime(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return the runtime used by default by all machines in the process,
+     * with as many loops as there are available processors.
+     */
+    public static FstRuntime shared() {
+        return Shared.INSTANCE;
+    }
+
+    private static final AtomicInteger COUNT = new AtomicInteger(0);
+
+    private final EventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger(0);
+
+    /**
+     * @param size The number of event loop threads
+     */
+    public FstRuntime(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("size must be at least 1");
+        }
+        int id = COUNT.getAndIncrement();
+        loops = new EventLoop[size];
+        for (int i = 0; i < size; i++) {
+            loops[i] = new EventLoop("fist-loop-" + id + "-" + i);
+        }
+    }
+
+    /**
+     * Picks a loop for a new machine in round-robin order.
+     *
+     * @return an executor that always runs its tasks in the same thread, in
+     * the order they were submitted.
+     */
+    public Executor next() {
+        return loops[Math.abs(next.getAndIncrement() % loops.length)];
+    }
+
+    /**
+     * @return the number of event loop threads.
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    /**
+     * Stops all loops after they finish the tasks already submitted to them.
+     * Tasks submitted after this are rejected.
+     */
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    private static final class Task extends MpscQueue.Node<Task> {
+        private static final AtomicIntegerFieldUpdater<Task> CLAIMED =
+                AtomicIntegerFieldUpdater.newUpdater(Task.class, "claimed");
+
+        final Runnable body;
+        private volatile int claimed;
+
+        Task(Runnable body) {
+            this.body = body;
+        }
+
+        /**
+         * Decides between the loop running the task and the submitter
+         * taking it back.
+         *
+         * @return false if the other side got it first.
+         */
+        boolean claim() {
+            return CLAIMED.compareAndSet(this, 0, 1);
+        }
+    }
+
+    private static final class EventLoop implements Executor, Runnable {
+        private final MpscQueue<Task> tasks = new MpscQueue<>();
+        private final AtomicBoolean sleeping = new AtomicBoolean(false);
+        private final AtomicBoolean started = new AtomicBoolean(false);
+        private final Thread thread;
+        private volatile boolean isShutdown;
+
+        EventLoop(String name) {
+            thread = new Thread(this, name);
+            thread.setDaemon(true);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (isShutdown) {
+                throw new RejectedExecutionException("runtime has been shut down");
+            }
+            if (!started.get() && started.compareAndSet(false, true)) {
+                thread.start();
+            }
+            Task task = new Task(command);
+            tasks.offer(task);
+            if (isShutdown && task.claim()) {
+                // the loop might have exited before it could see the task
+                throw new RejectedExecutionException("runtime has been shut down");
+            }
+            wakeUp();
+        }
+
+        void shutdown() {
+            isShutdown = true;
+            wakeUp();
+        }
+
+        private void wakeUp() {
+            if (sleeping.get() && sleeping.compareAndSet(true, false)) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Task task = tasks.poll();
+                if (task != null) {
+                    if (!task.claim()) {
+                        continue;
+                    }
+                    try {
+                        task.body.run();
+                    }
+                    catch (Throwable e) {
+                        thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                    }
+                    continue;
+                }
+                if (isShutdown) {
+                    return;
+                }
+                sleeping.set(true);
+                if (tasks.isEmpty() && !isShutdown) {
+                    LockSupport.park(this);
+                }
+                sleeping.set(false);
+            }
+        }
+    }
+}
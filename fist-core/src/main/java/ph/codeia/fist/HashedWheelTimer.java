@@ -0,0 +1,289 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A coarse timer with O(1) scheduling and cancellation.
+ * <p>
+ * Timeouts are hashed into a ring of buckets by their deadline tick. A single
+ * daemon thread advances the ring one bucket per tick and runs whatever has
+ * expired in it. Scheduling and cancelling never take a lock; both are handed
+ * to the timer thread through {@link MpscQueue MPSC queues} and a cancelled
+ * timeout is unlinked from its bucket on the next tick. The task of a
+ * cancelled timeout is released immediately.
+ * <p>
+ * The timer thread parks indefinitely when there is nothing scheduled.
+ * <p>
+ * Tasks are run in the timer thread so they should be short. Anything thrown
+ * by a task is passed to the uncaught exception handler of the timer thread,
+ * which keeps running.
+ */
+final class HashedWheelTimer {
+
+    private static class Shared {
+        static final HashedWheelTimer INSTANCE =
+                new HashedWheelTimer(10, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * @return the timer shared by every machine in the process.
+     */
+    static HashedWheelTimer shared() {
+        return Shared.INSTANCE;
+    }
+
+    /**
+     * A scheduled task.
+     */
+    static final class Timeout extends MpscQueue.Node<Timeout> {
+        private static final int PENDING = 0;
+        private static final int ARMED = 1;
+        private static final int CANCELLED = 2;
+        private static final int EXPIRED = 3;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final long deadline;
+        private volatile Runnable task;
+        private volatile int state = PENDING;
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout succ;
+
+        Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Prevents the task from running if it hasn't yet.
+         *
+         * @return false if the task has already run or has already been
+         * cancelled.
+         */
+        boolean cancel() {
+            while (true) {
+                int s = state;
+                switch (s) {
+                    case PENDING:
+                        if (STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                            // never reached the wheel; the timer thread
+                            // will drop it when it gets transferred.
+                            task = null;
+                            return true;
+                        }
+                        break;
+                    case ARMED:
+                        if (STATE.compareAndSet(this, ARMED, CANCELLED)) {
+                            task = null;
+                            timer.cancelled.offer(this);
+                            return true;
+                        }
+                        break;
+                    default:
+                        return false;
+                }
+            }
+        }
+
+        boolean isCancelled() {
+            return state == CANCELLED;
+        }
+
+        boolean isExpired() {
+            return state == EXPIRED;
+        }
+
+        void expire() {
+            if (STATE.compareAndSet(this, ARMED, EXPIRED)) {
+                Runnable t = task;
+                task = null;
+                try {
+                    t.run();
+                }
+                catch (Throwable e) {
+                    Thread thread = Thread.currentThread();
+                    thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+                }
+            }
+        }
+    }
+
+    private static final class Bucket {
+        Timeout first;
+        Timeout last;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            if (first == null) {
+                first = last = t;
+            }
+            else {
+                last.succ = t;
+                t.prev = last;
+                last = t;
+            }
+        }
+
+        void remove(Timeout t) {
+            Timeout next = t.succ;
+            if (t.prev != null) {
+                t.prev.succ = next;
+            }
+            if (next != null) {
+                next.prev = t.prev;
+            }
+            if (t == first) {
+                first = next;
+            }
+            if (t == last) {
+                last = t.prev;
+            }
+            t.prev = null;
+            t.succ = null;
+            t.bucket = null;
+        }
+    }
+
+    private final MpscQueue<Timeout> pending = new MpscQueue<>();
+    private final MpscQueue<Timeout> cancelled = new MpscQueue<>();
+    private final AtomicLong size = new AtomicLong(0);
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final Thread thread;
+    private final long startTime = System.nanoTime();
+    private long tick;
+
+    /**
+     * @param tickDuration The resolution of the timer
+     * @param unit The unit of the tick duration
+     * @param ticksPerWheel The number of buckets, rounded up to a power of 2
+     */
+    HashedWheelTimer(long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        int n = 1;
+        while (n < ticksPerWheel) {
+            n <<= 1;
+        }
+        wheel = new Bucket[n];
+        for (int i = 0; i < n; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = n - 1;
+        tickNanos = unit.toNanos(tickDuration);
+        thread = new Thread(this::loop, "fist-timer");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Runs a task in the timer thread after some time.
+     *
+     * @param task The task to run
+     * @param delay The delay
+     * @param unit The unit of the delay
+     * @return a handle that can be used to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            thread.start();
+        }
+        long deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+        Timeout timeout = new Timeout(this, task, deadline);
+        boolean idle = size.getAndIncrement() == 0;
+        pending.offer(timeout);
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+        return timeout;
+    }
+
+    /**
+     * @return the number of tasks that have neither run nor been unlinked
+     * after cancellation.
+     */
+    long size() {
+        return size.get();
+    }
+
+    private void loop() {
+        tick = (System.nanoTime() - startTime) / tickNanos;
+        while (true) {
+            if (size.get() == 0) {
+                LockSupport.park(this);
+                // nothing was on the wheel so it's safe to skip ahead.
+                tick = Math.max(tick, (System.nanoTime() - startTime) / tickNanos);
+                continue;
+            }
+            long deadline = tickNanos * (tick + 1);
+            long sleep = deadline - (System.nanoTime() - startTime);
+            if (sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+            transferPending();
+            unlinkCancelled();
+            expire(wheel[(int) (tick & mask)], deadline);
+            tick++;
+        }
+    }
+
+    private void transferPending() {
+        // bounded so a flood of schedules can't starve the expiry
+        for (int i = 0; i < 100_000; i++) {
+            Timeout t = pending.poll();
+            if (t == null) {
+                return;
+            }
+            if (!Timeout.STATE.compareAndSet(t, Timeout.PENDING, Timeout.ARMED)) {
+                size.decrementAndGet();
+                continue;
+            }
+            long due = t.deadline / tickNanos;
+            t.remainingRounds = (due - tick) / wheel.length;
+            wheel[(int) (Math.max(due, tick) & mask)].add(t);
+        }
+    }
+
+    private void unlinkCancelled() {
+        for (Timeout t = cancelled.poll(); t != null; t = cancelled.poll()) {
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+                size.decrementAndGet();
+            }
+        }
+    }
+
+    private void expire(Bucket bucket, long deadline) {
+        Timeout t = bucket.first;
+        while (t != null) {
+            Timeout next = t.succ;
+            if (t.remainingRounds <= 0 && t.deadline <= deadline) {
+                bucket.remove(t);
+                size.decrementAndGet();
+                t.expire();
+            }
+            else if (t.isCancelled()) {
+                // the unlink request is still in the queue; do it now and let
+                // unlinkCancelled() skip it.
+                bucket.remove(t);
+                size.decrementAndGet();
+            }
+            else {
+                t.remainingRounds--;
+            }
+            t = next;
+        }
+    }
+}
@@ -0,0 +1,60 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+/**
+ * An action tagged with a key for backlog conflation.
+ * <p>
+ * Machines that never queue actions simply apply the wrapped action.
+ *
+ * @see Mu.Action#keyed(Object, Mu.Action)
+ * @see Mi.Action#keyed(Object, Mi.Action)
+ */
+abstract class Keyed {
+    final Object key;
+
+    Keyed(Object key) {
+        if (key == null) {
+            throw new NullPointerException("key");
+        }
+        this.key = key;
+    }
+
+    /**
+     * @param action A Moore or Mealy action
+     * @return the key of the action or null if it wasn't tagged.
+     */
+    static Object keyOf(Object action) {
+        return action instanceof Keyed ? ((Keyed) action).key : null;
+    }
+
+    static final class Moore<S> extends Keyed implements Mu.Action<S> {
+        private final Mu.Action<S> action;
+
+        Moore(Object key, Mu.Action<S> action) {
+            super(key);
+            this.action = action;
+        }
+
+        @Override
+        public Mu<S> apply(S state) {
+            return action.apply(state);
+        }
+    }
+
+    static final class Mealy<S, E> extends Keyed implements Mi.Action<S, E> {
+        private final Mi.Action<S, E> action;
+
+        Mealy(Object key, Mi.Action<S, E> action) {
+            super(key);
+            this.action = action;
+        }
+
+        @Override
+        public Mi<S, E> apply(S s, E e) {
+            return action.apply(s, e);
+        }
+    }
+}
@@ -4,7 +4,11 @@ package ph.codeia.fist;
  * This file is a part of the fist project.
  */
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Mealy state machine commands and static factories.
@@ -38,8 +42,9 @@ public final class Mi<S, E> {
      * @return a command object for the state machine
      * @see Case#noop()
      */
+    @SuppressWarnings("unchecked")
     public static <S, E> Mi<S, E> noop() {
-        return new Mi<>(Case::noop);
+        return (Mi<S, E>) NOOP;
     }
 
     /**
@@ -51,8 +56,9 @@ public final class Mi<S, E> {
      * @return a command object for the state machine
      * @see Case#reenter()
      */
+    @SuppressWarnings("unchecked")
     public static <S, E> Mi<S, E> reenter() {
-        return new Mi<>(Case::reenter);
+        return (Mi<S, E>) REENTER;
     }
 
     public static <S, E> Mi<S, E> reenterThen(Callable<Action<S, E>> block) {
@@ -75,7 +81,30 @@ public final class Mi<S, E> {
      * @see Case#enter(Object)
      */
     public static <S, E> Mi<S, E> enter(S newState) {
-        return new Mi<>(on -> on.enter(newState));
+        return new Mi<>(CommandBuffer.ENTER, newState);
+    }
+
+    /**
+     * Creates a command that emits a sequence of side states.
+     * <p>
+     * Only the last state sticks. Unlike a chain of {@link #enter(Object)}
+     * commands, the receiver is notified of every state even if the machine
+     * {@link Conflation conflates} notifications.
+     *
+     * @param states The sequence of states to enter
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object for the state machine
+     * @see Case#enterEagerly(Object)
+     */
+    @SafeVarargs
+    public static <S, E> Mi<S, E> enterEach(S... states) {
+        CommandBuffer buf = new CommandBuffer(states.length, states.length);
+        int length = 0;
+        for (S state : states) if (state != null) {
+            buf.set(length++, CommandBuffer.ENTER_EACH, state);
+        }
+        return length == 0 ? noop() : new Mi<>(buf, length);
     }
 
     public static <S, E> Mi<S, E> enterThen(S newState, Callable<Action<S, E>> block) {
@@ -98,7 +127,7 @@ public final class Mi<S, E> {
      * @see Case#forward(Action)
      */
     public static <S, E> Mi<S, E> forward(Action<S, E> action) {
-        return new Mi<>(on -> on.forward(action));
+        return new Mi<>(CommandBuffer.FORWARD, action);
     }
 
     /**
@@ -111,7 +140,211 @@ public final class Mi<S, E> {
      * @see Case#async(Callable)
      */
     public static <S, E> Mi<S, E> async(Callable<Action<S, E>> block) {
-        return new Mi<>(on -> on.async(block));
+        return new Mi<>(CommandBuffer.ASYNC, block);
+    }
+
+    /**
+     * Creates a command that runs an action in the background and hands out
+     * a handle that can be used to cancel it.
+     *
+     * @param block The async action to execute
+     * @param receipt Receives the handle of the action in the main thread
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object for the state machine
+     * @see Mu#async(Callable, Fn.Proc)
+     */
+    public static <S, E> Mi<S, E> async(
+            Callable<Action<S, E>> block,
+            Fn.Proc<Cancellable> receipt
+    ) {
+        return async(new Receipted<>(block, receipt));
+    }
+
+    /**
+     * Creates a command that runs independent blocks concurrently and
+     * combines their results into one action.
+     *
+     * @param combine Receives the results in the same order as the blocks
+     * @param blocks The blocks to run
+     * @param <T> The common result type of the blocks
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object for the state machine
+     * @see Mu#all(Fn.Func, Callable[])
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <T, S, E> Mi<S, E> all(
+            Fn.Func<List<T>, Action<S, E>> combine,
+            Callable<? extends T>... blocks
+    ) {
+        return async(new Fork<>(blocks, combine));
+    }
+
+    /**
+     * Creates a command that runs alternative blocks concurrently and
+     * continues with the first one to succeed.
+     *
+     * @param blocks The blocks to race
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object for the state machine
+     * @see Mu#race(Callable[])
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <S, E> Mi<S, E> race(Callable<Action<S, E>>... blocks) {
+        return async(new Race<>(blocks, 0, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Races the blocks but only starts the hedges if the first block has not
+     * succeeded after some time.
+     *
+     * @param delay How long to wait for the first block before hedging
+     * @param unit The unit of the delay
+     * @param blocks The primary block followed by the hedges
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object for the state machine
+     * @see Mu#hedge(long, TimeUnit, Callable[])
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <S, E> Mi<S, E> hedge(
+            long delay,
+            TimeUnit unit,
+            Callable<Action<S, E>>... blocks
+    ) {
+        return async(new Race<>(blocks, delay, unit));
+    }
+
+    /**
+     * Calls a block again when it fails, waiting longer before each attempt.
+     *
+     * @param block The async block to retry
+     * @param policy Decides how many attempts, which errors and how long
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object for the state machine
+     * @see Mu#retry(Callable, RetryPolicy)
+     */
+    public static <S, E> Mi<S, E> retry(Callable<Action<S, E>> block, RetryPolicy policy) {
+        return async(new Retry<>(block, policy));
+    }
+
+    /**
+     * Wraps an action so that a procedure sees every state that it enters.
+     *
+     * @param action The action to observe
+     * @param onEnter Receives the states
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return an action that behaves like the original
+     * @see Mu#tap(Mu.Action, Fn.Proc)
+     */
+    public static <S, E> Action<S, E> tap(Action<S, E> action, Fn.Proc<S> onEnter) {
+        Action<S, E> tapped = (state, effects) -> {
+            Mi<S, E> next = action.apply(state, effects);
+            return next == null ? null : next.tap(onEnter);
+        };
+        Object key = Keyed.keyOf(action);
+        return key == null ? tapped : Action.keyed(key, tapped);
+    }
+
+    /**
+     * Creates a command that executes an action after some time.
+     *
+     * @param delay How long to wait
+     * @param unit The unit of the delay
+     * @param action The action to execute later
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object for the state machine
+     * @see Mu#delay(long, TimeUnit, Mu.Action)
+     */
+    public static <S, E> Mi<S, E> delay(long delay, TimeUnit unit, Action<S, E> action) {
+        return async(new Timed<>(Timed.Kind.DELAY, null, delay, unit, action));
+    }
+
+    /**
+     * Creates a command that executes an action once things have settled
+     * down.
+     *
+     * @param key Identifies actions that supersede each other
+     * @param window How long things must be quiet
+     * @param unit The unit of the window
+     * @param action The action to execute
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object for the state machine
+     * @see Mu#debounce(Object, long, TimeUnit, Mu.Action)
+     */
+    public static <S, E> Mi<S, E> debounce(
+            Object key,
+            long window,
+            TimeUnit unit,
+            Action<S, E> action
+    ) {
+        return async(new Timed<>(Timed.Kind.DEBOUNCE, key, window, unit, action));
+    }
+
+    /**
+     * Creates a command that executes at most one action per window.
+     *
+     * @param key Identifies actions that share a window
+     * @param window The minimum time between two actions
+     * @param unit The unit of the window
+     * @param action The action to execute
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object for the state machine
+     * @see Mu#throttle(Object, long, TimeUnit, Mu.Action)
+     */
+    public static <S, E> Mi<S, E> throttle(
+            Object key,
+            long window,
+            TimeUnit unit,
+            Action<S, E> action
+    ) {
+        return async(new Timed<>(Timed.Kind.THROTTLE, key, window, unit, action));
+    }
+
+    /**
+     * Creates a command that executes an action periodically.
+     *
+     * @param period The time between runs
+     * @param unit The unit of the period
+     * @param action The action to execute on every tick
+     * @param receipt Receives the handle that stops the schedule
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object for the state machine
+     * @see Mu#every(long, TimeUnit, Mu.Action, Fn.Proc)
+     */
+    public static <S, E> Mi<S, E> every(
+            long period,
+            TimeUnit unit,
+            Action<S, E> action,
+            Fn.Proc<Cancellable> receipt
+    ) {
+        return async(new Receipted<>(new Periodic<>(period, unit, action), receipt));
+    }
+
+    /**
+     * Executes an action periodically for as long as the receiver lives.
+     *
+     * @param period The time between runs
+     * @param unit The unit of the period
+     * @param action The action to execute on every tick
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object for the state machine
+     * @see Mu#every(long, TimeUnit, Mu.Action)
+     */
+    public static <S, E> Mi<S, E> every(long period, TimeUnit unit, Action<S, E> action) {
+        return async(new Periodic<>(period, unit, action));
     }
 
     /**
@@ -126,7 +359,30 @@ public final class Mi<S, E> {
      * @see Case#defer(Fn.Proc)
      */
     public static <S, E> Mi<S, E> defer(Fn.Proc<Continuation<S, E>> block) {
-        return new Mi<>(on -> on.defer(block));
+        return new Mi<>(CommandBuffer.DEFER, block);
+    }
+
+    /**
+     * Creates a command that resumes the machine when a future completes.
+     *
+     * @param stage The future result
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a command object
+     * @see Mu#await(CompletionStage)
+     */
+    public static <S, E> Mi<S, E> await(CompletionStage<? extends Action<S, E>> stage) {
+        return defer(k -> stage.whenComplete((action, error) -> {
+            if (error != null) {
+                k.resume(Action.pure(raise(Mu.unwrap(error))));
+            }
+            else if (action != null) {
+                k.resume(action);
+            }
+            else {
+                k.ok();
+            }
+        }));
     }
 
     /**
@@ -140,13 +396,30 @@ public final class Mi<S, E> {
      * @see Case#raise(Throwable)
      */
     public static <S, E> Mi<S, E> raise(Throwable e) {
-        return new Mi<>(on -> on.raise(e));
+        return new Mi<>(CommandBuffer.RAISE, e);
     }
 
-    private final Command<S, E> command;
+    private static final Mi<?, ?> NOOP = new Mi<>(CommandBuffer.NOOP, null);
+    private static final Mi<?, ?> REENTER = new Mi<>(CommandBuffer.REENTER, null);
+
+    // single-step commands keep their step inline and don't have a buffer
+    private final byte code;
+    private final Object arg;
+    private final CommandBuffer steps;
+    private final int length;
+
+    private Mi(byte code, Object arg) {
+        this.code = code;
+        this.arg = arg;
+        steps = null;
+        length = 1;
+    }
 
-    private Mi(Command<S, E> command) {
-        this.command = command;
+    private Mi(CommandBuffer steps, int length) {
+        code = CommandBuffer.NOOP;
+        arg = null;
+        this.steps = steps;
+        this.length = length;
     }
 
     /**
@@ -155,7 +428,17 @@ public final class Mi<S, E> {
      * @param selector The selector object/pattern
      */
     public void run(Case<S, E> selector) {
-        command.run(selector);
+        if (selector instanceof Trampolined) {
+            bounce((Trampolined<S, E>) selector);
+        }
+        else if (steps == null) {
+            run(code, arg, selector);
+        }
+        else {
+            for (int i = 0; i < length; i++) {
+                run(steps.codes[i], steps.args[i], selector);
+            }
+        }
     }
 
     /**
@@ -165,10 +448,14 @@ public final class Mi<S, E> {
      * @return a command object
      */
     public Mi<S, E> then(Mi<S, E> next) {
-        return new Mi<>(machine -> {
-            run(machine);
-            next.run(machine);
-        });
+        CommandBuffer buf = steps;
+        int n = next.length;
+        if (buf == null || !buf.reserve(length, n)) {
+            buf = CommandBuffer.grow(length + n);
+            copyTo(buf, 0);
+        }
+        next.copyTo(buf, length);
+        return new Mi<>(buf, length + n);
     }
 
     /**
@@ -224,8 +511,150 @@ public final class Mi<S, E> {
         return async(thunk).then(this);
     }
 
-    private interface Command<S, E> {
-        void run(Case<S, E> selector);
+    /**
+     * Runs this command without recursing on FORWARD steps.
+     * <p>
+     * The command produced by a forwarded action is run in the same loop.
+     * If the FORWARD was not the last step, the rest of the current command
+     * is saved on an explicit stack and resumed afterwards; if it was the last
+     * step (i.e. a tail call), nothing is saved at all, so a chain of actions
+     * that forward to each other runs in constant space.
+     */
+    @SuppressWarnings("unchecked")
+    private void bounce(Trampolined<S, E> on) {
+        Mi<S, E> current = this;
+        int pc = 0;
+        Mi<?, ?>[] saved = null;
+        int[] savedPc = null;
+        int depth = 0;
+        while (true) {
+            if (pc == current.length) {
+                if (depth == 0) {
+                    return;
+                }
+                depth--;
+                current = (Mi<S, E>) saved[depth];
+                pc = savedPc[depth];
+                saved[depth] = null;
+                continue;
+            }
+            byte code;
+            Object arg;
+            if (current.steps == null) {
+                code = current.code;
+                arg = current.arg;
+            }
+            else {
+                code = current.steps.codes[pc];
+                arg = current.steps.args[pc];
+            }
+            pc++;
+            if (code != CommandBuffer.FORWARD) {
+                run(code, arg, on);
+                continue;
+            }
+            Mi<S, E> next = on.apply((Action<S, E>) arg);
+            if (pc < current.length) {
+                if (saved == null) {
+                    saved = new Mi<?, ?>[8];
+                    savedPc = new int[8];
+                }
+                else if (depth == saved.length) {
+                    saved = Arrays.copyOf(saved, depth * 2);
+                    savedPc = Arrays.copyOf(savedPc, depth * 2);
+                }
+                saved[depth] = current;
+                savedPc[depth] = pc;
+                depth++;
+            }
+            current = next;
+            pc = 0;
+        }
+    }
+
+    private Mi<S, E> tap(Fn.Proc<S> onEnter) {
+        if (steps == null) {
+            return tap(code, arg, onEnter);
+        }
+        CommandBuffer buf = new CommandBuffer(length, length);
+        for (int i = 0; i < length; i++) {
+            Mi<S, E> step = tap(steps.codes[i], steps.args[i], onEnter);
+            buf.set(i, step.code, step.arg);
+        }
+        return new Mi<>(buf, length);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S, E> Mi<S, E> tap(byte code, Object arg, Fn.Proc<S> onEnter) {
+        switch (code) {
+            case CommandBuffer.REENTER:
+                return forward((state, effects) -> {
+                    onEnter.receive(state);
+                    return reenter();
+                });
+            case CommandBuffer.ENTER:
+            case CommandBuffer.ENTER_EACH:
+                return forward((state, effects) -> {
+                    onEnter.receive((S) arg);
+                    return new Mi<>(code, arg);
+                });
+            case CommandBuffer.FORWARD:
+                return forward(tap((Action<S, E>) arg, onEnter));
+            case CommandBuffer.ASYNC:
+                return async(Tap.block(
+                        (Callable<Action<S, E>>) arg,
+                        action -> action == null ? null : tap(action, onEnter)
+                ));
+            case CommandBuffer.DEFER: {
+                Fn.Proc<Continuation<S, E>> block = (Fn.Proc<Continuation<S, E>>) arg;
+                return defer(k -> block.receive(action -> k.resume(
+                        action == null ? null : tap(action, onEnter)
+                )));
+            }
+            default:
+                return new Mi<>(code, arg);
+        }
+    }
+
+    private void copyTo(CommandBuffer dest, int at) {
+        if (steps == null) {
+            dest.set(at, code, arg);
+        }
+        else {
+            steps.copy(length, dest, at);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S, E> void run(byte code, Object arg, Case<S, E> on) {
+        switch (code) {
+            case CommandBuffer.NOOP:
+                on.noop();
+                break;
+            case CommandBuffer.REENTER:
+                on.reenter();
+                break;
+            case CommandBuffer.ENTER:
+                on.enter((S) arg);
+                break;
+            case CommandBuffer.ENTER_EACH:
+                on.enterEagerly((S) arg);
+                break;
+            case CommandBuffer.FORWARD:
+                on.forward((Action<S, E>) arg);
+                break;
+            case CommandBuffer.ASYNC:
+                on.async((Callable<Action<S, E>>) arg);
+                break;
+            case CommandBuffer.DEFER:
+                on.defer((Fn.Proc<Continuation<S, E>>) arg);
+                break;
+            case CommandBuffer.RAISE:
+                on.raise((Throwable) arg);
+                break;
+            default:
+                throw new IllegalStateException("unknown command: " + code);
+        }
     }
 
     /**
@@ -255,6 +684,24 @@ public final class Mi<S, E> {
          */
         Mi<S, E> apply(S s, E e);
 
+        /**
+         * Tags an action with a conflation key.
+         * <p>
+         * When an {@link AsyncFst} is stopped, a keyed action replaces the
+         * previous action with an equal key that is still waiting in the
+         * backlog.
+         *
+         * @param key Identifies actions that supersede each other
+         * @param action The action to tag
+         * @param <S> The state type
+         * @param <E> The receiver type
+         * @return an action that does the same thing as the given action
+         * @see Mu.Action#keyed(Object, Mu.Action)
+         */
+        static <S, E> Action<S, E> keyed(Object key, Action<S, E> action) {
+            return new Keyed.Mealy<>(key, action);
+        }
+
         /**
          * Produces a side effect without touching the current state.
          *
@@ -449,6 +896,19 @@ public final class Mi<S, E> {
          */
         void enter(S newState);
 
+        /**
+         * Same as {@link #enter(Object)} but the receiver must be notified
+         * right away even if the machine conflates notifications.
+         * <p>
+         * The default implementation simply calls {@link #enter(Object)}.
+         *
+         * @param newState The new state
+         * @see Conflation
+         */
+        default void enterEagerly(S newState) {
+            enter(newState);
+        }
+
         /**
          * Executes another action.
          *
@@ -480,6 +940,40 @@ public final class Mi<S, E> {
         void raise(Throwable e);
     }
 
+    /**
+     * A selector that knows how to apply actions on its own.
+     * <p>
+     * State machines should implement this instead of {@link Case} directly.
+     * When a command is run against a trampolined selector, FORWARD steps
+     * are not passed to {@link #forward(Action)}; the action is {@link
+     * #apply(Action) applied} and the resulting command is run in the same
+     * loop, so arbitrarily long chains of forwarded actions run in constant
+     * stack depth.
+     *
+     * @param <S> The state type
+     * @param <E> The receiver type
+     */
+    public interface Trampolined<S, E> extends Case<S, E> {
+        /**
+         * Applies an action to the current state and receiver without
+         * running the resulting command.
+         *
+         * @param action The action to apply
+         * @return the command returned by the action
+         */
+        Mi<S, E> apply(Action<S, E> action);
+
+        /**
+         * Runs the result of {@link #apply(Action)} against this.
+         *
+         * @param action The next action
+         */
+        @Override
+        default void forward(Action<S, E> action) {
+            apply(action).run(this);
+        }
+    }
+
     /**
      * Argument passed to {@link #defer} calls that sends an action back to
      * the state machine.
@@ -14,6 +14,21 @@ import java.util.concurrent.Callable;
  */
 public class MooreToMealy<S, E extends Effects<S>> implements Mi.Action<S, E> {
 
+    /**
+     * Converts an action, keeping its {@link Mu.Action#keyed(Object,
+     * Mu.Action) key} if it has one.
+     *
+     * @param action The Moore action to convert
+     * @param <S> The state type
+     * @param <E> The receiver type
+     * @return a Mealy action
+     */
+    static <S, E extends Effects<S>> Mi.Action<S, E> of(Mu.Action<S> action) {
+        Object key = Keyed.keyOf(action);
+        Mi.Action<S, E> converted = new MooreToMealy<>(action);
+        return key == null ? converted : Mi.Action.keyed(key, converted);
+    }
+
     private final Mu.Action<S> source;
 
     /**
@@ -30,43 +45,59 @@ public class MooreToMealy<S, E extends Effects<S>> implements Mi.Action<S, E> {
 
             {
                 source.apply(state).run(this);
+                if (command == null) {
+                    command = Mi.noop();
+                }
+            }
+
+            void append(Mi<S, E> step) {
+                command = command == null ? step : command.then(step);
             }
 
             @Override
             public void noop() {
-                command = Mi.noop();
             }
 
             @Override
             public void enter(S newState) {
-                command = Mi.enter(newState);
+                append(Mi.enter(newState));
+            }
+
+            @Override
+            public void enterEagerly(S newState) {
+                append(Mi.enterEach(newState));
             }
 
             @Override
             public void reenter() {
-                command = Mi.reenter();
+                append(Mi.reenter());
             }
 
             @Override
             public void forward(Mu.Action<S> action) {
-                command = Mi.forward(new MooreToMealy<>(action));
+                append(Mi.forward(of(action)));
             }
 
             @Override
             public void async(Callable<Mu.Action<S>> block) {
-                command = Mi.async(() -> new MooreToMealy<>(block.call()));
+                // rebuilt rather than wrapped so that the machines still
+                // see timed, periodic, retried and other special blocks.
+                append(Mi.async(Tap.<Mu.Action<S>, Mi.Action<S, E>>block(
+                        block,
+                        action -> action == null ? null : of(action)
+                )));
             }
 
             @Override
             public void defer(Fn.Proc<Mu.Continuation<S>> block) {
-                command = Mi.defer(inner -> block.receive(
-                        nextAction -> inner.resume(new MooreToMealy<>(nextAction))
-                ));
+                append(Mi.defer(inner -> block.receive(
+                        nextAction -> inner.resume(of(nextAction))
+                )));
             }
 
             @Override
             public void raise(Throwable e) {
-                command = Mi.raise(e);
+                append(Mi.raise(e));
             }
         }.command;
     }
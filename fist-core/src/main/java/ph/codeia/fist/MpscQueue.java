@@ -0,0 +1,103 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An unbounded, lock-free, intrusive multi-producer single-consumer queue.
+ * <p>
+ * This is Dmitry Vyukov's intrusive MPSC node queue. Producers never block
+ * and never allocate; the elements carry their own link field. An element
+ * must not be offered again until it has been polled out.
+ * <p>
+ * {@link #offer(Node)} may be called from any thread, but {@link #poll()} and
+ * {@link #isEmpty()} must only be called by one thread at a time.
+ *
+ * @param <T> The element type
+ */
+final class MpscQueue<T extends MpscQueue.Node<T>> {
+
+    /**
+     * Base class of queue elements.
+     *
+     * @param <T> The element type
+     */
+    static abstract class Node<T> {
+        volatile T next;
+    }
+
+    private static final class Stub extends Node<Object> {}
+
+    private final AtomicReference<Node<T>> head;
+    private final Node<T> stub;
+    private Node<T> tail;
+
+    @SuppressWarnings("unchecked")
+    MpscQueue() {
+        stub = (Node<T>) (Node<?>) new Stub();
+        head = new AtomicReference<>(stub);
+        tail = stub;
+    }
+
+    /**
+     * Appends an element to the end of the queue. Wait-free.
+     *
+     * @param node The element to add
+     */
+    void offer(T node) {
+        push(node);
+    }
+
+    /**
+     * Removes the element at the front of the queue.
+     *
+     * @return the oldest element or null if the queue is empty or if the
+     * producer that added the next element has not yet linked it.
+     */
+    @SuppressWarnings("unchecked")
+    T poll() {
+        Node<T> first = tail;
+        T next = first.next;
+        if (first == stub) {
+            if (next == null) {
+                return null;
+            }
+            tail = next;
+            first = next;
+            next = next.next;
+        }
+        if (next != null) {
+            tail = next;
+            first.next = null;
+            return (T) first;
+        }
+        if (first != head.get()) {
+            return null;
+        }
+        push((T) stub);
+        next = first.next;
+        if (next != null) {
+            tail = next;
+            first.next = null;
+            return (T) first;
+        }
+        return null;
+    }
+
+    /**
+     * @return true if there are no elements that can be polled.
+     */
+    boolean isEmpty() {
+        return tail == stub && stub.next == null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void push(Node<T> node) {
+        node.next = null;
+        Node<T> prev = head.getAndSet(node);
+        prev.next = (T) node;
+    }
+}
@@ -4,7 +4,12 @@ package ph.codeia.fist;
  * This file is a part of the fist project.
  */
 
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Associated Moore machine types, factories and convenience functions.
@@ -27,8 +32,9 @@ public final class Mu<S> {
      * @return a command object
      * @see Case#noop()
      */
+    @SuppressWarnings("unchecked")
     public static <S> Mu<S> noop() {
-        return new Mu<>(Case::noop);
+        return (Mu<S>) NOOP;
     }
 
     /**
@@ -39,8 +45,9 @@ public final class Mu<S> {
      * @return a command object
      * @see Case#reenter()
      */
+    @SuppressWarnings("unchecked")
     public static <S> Mu<S> reenter() {
-        return new Mu<>(Case::reenter);
+        return (Mu<S>) REENTER;
     }
 
     /**
@@ -52,7 +59,7 @@ public final class Mu<S> {
      * @see Case#enter(Object)
      */
     public static <S> Mu<S> enter(S newState) {
-        return new Mu<>(sm -> sm.enter(newState));
+        return new Mu<>(CommandBuffer.ENTER, newState);
     }
 
     /**
@@ -65,7 +72,9 @@ public final class Mu<S> {
      * This is used for "side states", i.e. states that don't really
      * represent a state that the system might be in at some point in time
      * but are just there to produce outputs. Examples are logging and
-     * toasts/snackbars.
+     * toasts/snackbars. Use {@link #enterEach(Object[])} instead if the
+     * machine {@link Conflation conflates} notifications, otherwise the side
+     * states will never be seen.
      *
      * @param states The sequence of states to enter
      * @param <S> The state type
@@ -73,12 +82,27 @@ public final class Mu<S> {
      * @see #enter(Object)
      */
     @SafeVarargs
+    @SuppressWarnings("varargs")
     public static <S> Mu<S> enterMany(S... states) {
-        Mu<S> acc = noop();
-        for (S state : states) if (state != null) {
-            acc = acc.then(enter(state));
-        }
-        return acc;
+        return many(CommandBuffer.ENTER, states);
+    }
+
+    /**
+     * Creates a command that emits a sequence of side states.
+     * <p>
+     * Same as {@link #enterMany(Object[])}, but the receiver is notified of
+     * every state even if the machine {@link Conflation conflates}
+     * notifications.
+     *
+     * @param states The sequence of states to enter
+     * @param <S> The state type
+     * @return a command object
+     * @see Case#enterEagerly(Object)
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <S> Mu<S> enterEach(S... states) {
+        return many(CommandBuffer.ENTER_EACH, states);
     }
 
     /**
@@ -90,7 +114,7 @@ public final class Mu<S> {
      * @see Case#forward(Action)
      */
     public static <S> Mu<S> forward(Action<S> action) {
-        return new Mu<>(sm -> sm.forward(action));
+        return new Mu<>(CommandBuffer.FORWARD, action);
     }
 
     /**
@@ -102,12 +126,243 @@ public final class Mu<S> {
      * @see Case#async(Callable)
      */
     public static <S> Mu<S> async(Callable<Action<S>> block) {
-        return new Mu<>(sm -> sm.async(block));
+        return new Mu<>(CommandBuffer.ASYNC, block);
+    }
+
+    /**
+     * Creates a command that runs an action in the background and hands out
+     * a handle that can be used to cancel it.
+     * <p>
+     * The receipt is called in the main thread before the block starts.
+     * Machines that cannot interrupt async actions pass {@link
+     * Cancellable#DONE}.
+     *
+     * @param block The async action to execute
+     * @param receipt Receives the handle of the action
+     * @param <S> The state type
+     * @return a command object
+     * @see CancelPolicy
+     */
+    public static <S> Mu<S> async(Callable<Action<S>> block, Fn.Proc<Cancellable> receipt) {
+        return async(new Receipted<>(block, receipt));
+    }
+
+    /**
+     * Creates a command that runs independent blocks concurrently and
+     * combines their results into one action.
+     * <p>
+     * An {@link AsyncFst} submits every block to its worker at once, so the
+     * whole thing takes as long as the slowest block if the worker has
+     * enough threads (see {@link AsyncFst.Builder#workOnVirtualThreads()}).
+     * The timeout applies to the group. The first block to throw cancels the
+     * others and its exception is raised. Synchronous machines run the
+     * blocks one after the other.
+     *
+     * @param combine Receives the results in the same order as the blocks
+     * @param blocks The blocks to run
+     * @param <T> The common result type of the blocks
+     * @param <S> The state type
+     * @return a command object
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <T, S> Mu<S> all(
+            Fn.Func<List<T>, Action<S>> combine,
+            Callable<? extends T>... blocks
+    ) {
+        return async(new Fork<>(blocks, combine));
+    }
+
+    /**
+     * Creates a command that runs alternative blocks concurrently and
+     * continues with the first one to succeed.
+     * <p>
+     * In an {@link AsyncFst}, the losers are cancelled as soon as there is a
+     * winner. If every block fails, the last failure is raised. Synchronous
+     * machines try the blocks one after the other until one succeeds.
+     *
+     * @param blocks The blocks to race
+     * @param <S> The state type
+     * @return a command object
+     * @see #hedge(long, TimeUnit, Callable[])
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <S> Mu<S> race(Callable<Action<S>>... blocks) {
+        return async(new Race<>(blocks, 0, TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * Same as {@link #race(Callable[])} but only the first block starts right
+     * away. The rest start if the first block has not succeeded after the
+     * given delay, or as soon as it fails.
+     * <p>
+     * This cuts tail latency without doubling the load: with a delay around
+     * the 95th percentile latency of the primary, only about 5% of requests
+     * are sent twice.
+     *
+     * @param delay How long to wait for the first block before hedging
+     * @param unit The unit of the delay
+     * @param blocks The primary block followed by the hedges
+     * @param <S> The state type
+     * @return a command object
+     */
+    @SafeVarargs
+    @SuppressWarnings("varargs")
+    public static <S> Mu<S> hedge(long delay, TimeUnit unit, Callable<Action<S>>... blocks) {
+        return async(new Race<>(blocks, delay, unit));
+    }
+
+    /**
+     * Creates a command that calls a block again when it fails, waiting
+     * longer before each attempt.
+     * <p>
+     * An {@link AsyncFst} waits out the backoff on a shared timer, so no
+     * worker thread is held between attempts; the async timeout covers all
+     * attempts together. Synchronous machines sleep between attempts. When
+     * the policy gives up, the last failure is raised.
+     *
+     * @param block The async block to retry
+     * @param policy Decides how many attempts, which errors and how long
+     * @param <S> The state type
+     * @return a command object
+     */
+    public static <S> Mu<S> retry(Callable<Action<S>> block, RetryPolicy policy) {
+        return async(new Retry<>(block, policy));
+    }
+
+    /**
+     * Wraps an action so that a procedure sees every state that it enters,
+     * directly or through the actions it forwards, awaits or defers to.
+     * <p>
+     * The procedure is called in the machine's main thread right before the
+     * state is entered, and with the current state before a reenter. Keys
+     * of {@link Action#keyed(Object, Action) keyed actions} are kept.
+     *
+     * @param action The action to observe
+     * @param onEnter Receives the states
+     * @param <S> The state type
+     * @return an action that behaves like the original
+     */
+    public static <S> Action<S> tap(Action<S> action, Fn.Proc<S> onEnter) {
+        Action<S> tapped = state -> {
+            Mu<S> next = action.apply(state);
+            return next == null ? null : next.tap(onEnter);
+        };
+        Object key = Keyed.keyOf(action);
+        return key == null ? tapped : Action.keyed(key, tapped);
+    }
+
+    /**
+     * Creates a command that executes an action after some time.
+     * <p>
+     * An {@link AsyncFst} schedules the action on a shared timer with about
+     * 10ms resolution, so no thread is held while waiting. The async timeout
+     * does not apply but the {@link CancelPolicy} does. A {@link SteppingFst}
+     * releases the action when its clock is advanced far enough. Other
+     * synchronous machines sleep.
+     *
+     * @param delay How long to wait
+     * @param unit The unit of the delay
+     * @param action The action to execute later
+     * @param <S> The state type
+     * @return a command object
+     */
+    public static <S> Mu<S> delay(long delay, TimeUnit unit, Action<S> action) {
+        return async(new Timed<>(Timed.Kind.DELAY, null, delay, unit, action));
+    }
+
+    /**
+     * Creates a command that executes an action once things have settled
+     * down.
+     * <p>
+     * The action is delayed by the window. If another debounced action with
+     * an equal key arrives before that, this one is dropped and the new one
+     * waits for a whole window again. Useful for search-as-you-type. The
+     * synchronous machines other than {@link SteppingFst} execute every
+     * action right away.
+     *
+     * @param key Identifies actions that supersede each other
+     * @param window How long things must be quiet
+     * @param unit The unit of the window
+     * @param action The action to execute
+     * @param <S> The state type
+     * @return a command object
+     */
+    public static <S> Mu<S> debounce(Object key, long window, TimeUnit unit, Action<S> action) {
+        return async(new Timed<>(Timed.Kind.DEBOUNCE, key, window, unit, action));
+    }
+
+    /**
+     * Creates a command that executes at most one action per window.
+     * <p>
+     * The first throttled action with a given key is executed right away
+     * and opens a window. Actions with an equal key that arrive within the
+     * window are held back; at the end of the window the latest of them is
+     * executed and opens a new window. The synchronous machines other than
+     * {@link SteppingFst} execute every action right away.
+     *
+     * @param key Identifies actions that share a window
+     * @param window The minimum time between two actions
+     * @param unit The unit of the window
+     * @param action The action to execute
+     * @param <S> The state type
+     * @return a command object
+     */
+    public static <S> Mu<S> throttle(Object key, long window, TimeUnit unit, Action<S> action) {
+        return async(new Timed<>(Timed.Kind.THROTTLE, key, window, unit, action));
+    }
+
+    /**
+     * Creates a command that executes an action periodically.
+     * <p>
+     * In an {@link AsyncFst}, the first run happens one period after this
+     * command and the following ones on a fixed grid, so delays in one run
+     * do not push back the next. Ticks that fall while the machine is
+     * stopped are skipped rather than queued; the schedule resumes on the
+     * same grid when the machine starts again. The schedule ends when the
+     * handle is cancelled or the receiver is garbage collected.
+     * <p>
+     * A {@link SteppingFst} fires on its virtual clock. Other synchronous
+     * machines execute the action once, right away.
+     *
+     * @param period The time between runs
+     * @param unit The unit of the period
+     * @param action The action to execute on every tick
+     * @param receipt Receives the handle that stops the schedule
+     * @param <S> The state type
+     * @return a command object
+     */
+    public static <S> Mu<S> every(
+            long period,
+            TimeUnit unit,
+            Action<S> action,
+            Fn.Proc<Cancellable> receipt
+    ) {
+        return async(new Receipted<>(new Periodic<>(period, unit, action), receipt));
+    }
+
+    /**
+     * Same as {@link #every(long, TimeUnit, Action, Fn.Proc)} without a
+     * handle, i.e. the schedule lasts as long as the receiver.
+     *
+     * @param period The time between runs
+     * @param unit The unit of the period
+     * @param action The action to execute on every tick
+     * @param <S> The state type
+     * @return a command object
+     */
+    public static <S> Mu<S> every(long period, TimeUnit unit, Action<S> action) {
+        return async(new Periodic<>(period, unit, action));
     }
 
     /**
      * Creates a command that allows a service to do work on its own thread and
      * send back an action to the state machine once.
+     * <p>
+     * An {@link AsyncFst} does not hold a thread while waiting for the
+     * continuation; resuming it simply executes the action. The synchronous
+     * machines block the caller until the continuation is resumed.
      *
      * @param block The block that does some work and calls back to the state
      *              machine with the result.
@@ -116,7 +371,37 @@ public final class Mu<S> {
      * @see Case#defer(Fn.Proc)
      */
     public static <S> Mu<S> defer(Fn.Proc<Continuation<S>> block) {
-        return new Mu<>(sm -> sm.defer(block));
+        return new Mu<>(CommandBuffer.DEFER, block);
+    }
+
+    /**
+     * Creates a command that resumes the machine when a future completes.
+     * <p>
+     * This is a {@link #defer(Fn.Proc) deferred} action that is resumed from
+     * {@link CompletionStage#whenComplete}, so an {@link AsyncFst} does not
+     * hold a thread while waiting and applies its usual timeout. An
+     * exceptional completion is raised, unwrapped from {@link
+     * CompletionException}. A null action is treated as a noop. The
+     * synchronous machines block the caller until the stage completes.
+     * <p>
+     * On Android, this requires API level 24.
+     *
+     * @param stage The future result
+     * @param <S> The state type
+     * @return a command object
+     */
+    public static <S> Mu<S> await(CompletionStage<? extends Action<S>> stage) {
+        return defer(k -> stage.whenComplete((action, error) -> {
+            if (error != null) {
+                k.resume(Action.pure(raise(unwrap(error))));
+            }
+            else if (action != null) {
+                k.resume(action);
+            }
+            else {
+                k.ok();
+            }
+        }));
     }
 
     /**
@@ -129,13 +414,30 @@ public final class Mu<S> {
      * @see Case#raise(Throwable)
      */
     public static <S> Mu<S> raise(Throwable e) {
-        return new Mu<>(sm -> sm.raise(e));
+        return new Mu<>(CommandBuffer.RAISE, e);
     }
 
-    private final Command<S> command;
+    private static final Mu<?> NOOP = new Mu<>(CommandBuffer.NOOP, null);
+    private static final Mu<?> REENTER = new Mu<>(CommandBuffer.REENTER, null);
+
+    // single-step commands keep their step inline and don't have a buffer
+    private final byte code;
+    private final Object arg;
+    private final CommandBuffer steps;
+    private final int length;
 
-    private Mu(Command<S> command) {
-        this.command = command;
+    private Mu(byte code, Object arg) {
+        this.code = code;
+        this.arg = arg;
+        steps = null;
+        length = 1;
+    }
+
+    private Mu(CommandBuffer steps, int length) {
+        code = CommandBuffer.NOOP;
+        arg = null;
+        this.steps = steps;
+        this.length = length;
     }
 
     /**
@@ -144,7 +446,17 @@ public final class Mu<S> {
      * @param selector The selector object/pattern
      */
     public void run(Case<S> selector) {
-        command.run(selector);
+        if (selector instanceof Trampolined) {
+            bounce((Trampolined<S>) selector);
+        }
+        else if (steps == null) {
+            run(code, arg, selector);
+        }
+        else {
+            for (int i = 0; i < length; i++) {
+                run(steps.codes[i], steps.args[i], selector);
+            }
+        }
     }
 
     /**
@@ -154,10 +466,14 @@ public final class Mu<S> {
      * @return a command object
      */
     public Mu<S> then(Mu<S> next) {
-        return new Mu<>(sm -> {
-            run(sm);
-            next.run(sm);
-        });
+        CommandBuffer buf = steps;
+        int n = next.length;
+        if (buf == null || !buf.reserve(length, n)) {
+            buf = CommandBuffer.grow(length + n);
+            copyTo(buf, 0);
+        }
+        next.copyTo(buf, length);
+        return new Mu<>(buf, length + n);
     }
 
     /**
@@ -213,8 +529,166 @@ public final class Mu<S> {
         return async(thunk).then(this);
     }
 
-    private interface Command<S> {
-        void run(Case<S> selector);
+    /**
+     * Runs this command without recursing on FORWARD steps.
+     * <p>
+     * The command produced by a forwarded action is run in the same loop.
+     * If the FORWARD was not the last step, the rest of the current command
+     * is saved on an explicit stack and resumed afterwards; if it was the last
+     * step (i.e. a tail call), nothing is saved at all, so a chain of actions
+     * that forward to each other runs in constant space.
+     */
+    @SuppressWarnings("unchecked")
+    private void bounce(Trampolined<S> on) {
+        Mu<S> current = this;
+        int pc = 0;
+        Mu<?>[] saved = null;
+        int[] savedPc = null;
+        int depth = 0;
+        while (true) {
+            if (pc == current.length) {
+                if (depth == 0) {
+                    return;
+                }
+                depth--;
+                current = (Mu<S>) saved[depth];
+                pc = savedPc[depth];
+                saved[depth] = null;
+                continue;
+            }
+            byte code;
+            Object arg;
+            if (current.steps == null) {
+                code = current.code;
+                arg = current.arg;
+            }
+            else {
+                code = current.steps.codes[pc];
+                arg = current.steps.args[pc];
+            }
+            pc++;
+            if (code != CommandBuffer.FORWARD) {
+                run(code, arg, on);
+                continue;
+            }
+            Mu<S> next = on.apply((Action<S>) arg);
+            if (pc < current.length) {
+                if (saved == null) {
+                    saved = new Mu<?>[8];
+                    savedPc = new int[8];
+                }
+                else if (depth == saved.length) {
+                    saved = Arrays.copyOf(saved, depth * 2);
+                    savedPc = Arrays.copyOf(savedPc, depth * 2);
+                }
+                saved[depth] = current;
+                savedPc[depth] = pc;
+                depth++;
+            }
+            current = next;
+            pc = 0;
+        }
+    }
+
+    static Throwable unwrap(Throwable error) {
+        if (error instanceof CompletionException && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+
+    private static <S> Mu<S> many(byte code, S[] states) {
+        CommandBuffer buf = new CommandBuffer(states.length, states.length);
+        int length = 0;
+        for (S state : states) if (state != null) {
+            buf.set(length++, code, state);
+        }
+        return length == 0 ? noop() : new Mu<>(buf, length);
+    }
+
+    private Mu<S> tap(Fn.Proc<S> onEnter) {
+        if (steps == null) {
+            return tap(code, arg, onEnter);
+        }
+        CommandBuffer buf = new CommandBuffer(length, length);
+        for (int i = 0; i < length; i++) {
+            Mu<S> step = tap(steps.codes[i], steps.args[i], onEnter);
+            buf.set(i, step.code, step.arg);
+        }
+        return new Mu<>(buf, length);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S> Mu<S> tap(byte code, Object arg, Fn.Proc<S> onEnter) {
+        switch (code) {
+            case CommandBuffer.REENTER:
+                return forward(state -> {
+                    onEnter.receive(state);
+                    return reenter();
+                });
+            case CommandBuffer.ENTER:
+            case CommandBuffer.ENTER_EACH:
+                return forward(state -> {
+                    onEnter.receive((S) arg);
+                    return new Mu<>(code, arg);
+                });
+            case CommandBuffer.FORWARD:
+                return forward(tap((Action<S>) arg, onEnter));
+            case CommandBuffer.ASYNC:
+                return async(Tap.block(
+                        (Callable<Action<S>>) arg,
+                        action -> action == null ? null : tap(action, onEnter)
+                ));
+            case CommandBuffer.DEFER: {
+                Fn.Proc<Continuation<S>> block = (Fn.Proc<Continuation<S>>) arg;
+                return defer(k -> block.receive(action -> k.resume(
+                        action == null ? null : tap(action, onEnter)
+                )));
+            }
+            default:
+                return new Mu<>(code, arg);
+        }
+    }
+
+    private void copyTo(CommandBuffer dest, int at) {
+        if (steps == null) {
+            dest.set(at, code, arg);
+        }
+        else {
+            steps.copy(length, dest, at);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <S> void run(byte code, Object arg, Case<S> on) {
+        switch (code) {
+            case CommandBuffer.NOOP:
+                on.noop();
+                break;
+            case CommandBuffer.REENTER:
+                on.reenter();
+                break;
+            case CommandBuffer.ENTER:
+                on.enter((S) arg);
+                break;
+            case CommandBuffer.ENTER_EACH:
+                on.enterEagerly((S) arg);
+                break;
+            case CommandBuffer.FORWARD:
+                on.forward((Action<S>) arg);
+                break;
+            case CommandBuffer.ASYNC:
+                on.async((Callable<Action<S>>) arg);
+                break;
+            case CommandBuffer.DEFER:
+                on.defer((Fn.Proc<Continuation<S>>) arg);
+                break;
+            case CommandBuffer.RAISE:
+                on.raise((Throwable) arg);
+                break;
+            default:
+                throw new IllegalStateException("unknown command: " + code);
+        }
     }
 
     /**
@@ -272,6 +746,25 @@ public final class Mu<S> {
             return s -> Mu.async(thunk);
         }
 
+        /**
+         * Tags an action with a conflation key.
+         * <p>
+         * When an {@link AsyncFst} is stopped, a keyed action replaces the
+         * previous action with an equal key that is still waiting in the
+         * backlog. Only the latest action per key is replayed on start,
+         * at the position of the earliest one. Useful for actions that
+         * overwrite each other, e.g. {@link #pure(Object)}, position
+         * updates or search queries.
+         *
+         * @param key Identifies actions that supersede each other
+         * @param action The action to tag
+         * @param <S> The state type
+         * @return an action that does the same thing as the given action
+         */
+        static <S> Action<S> keyed(Object key, Action<S> action) {
+            return new Keyed.Moore<>(key, action);
+        }
+
         /**
          * Produces an action that computes a new state from the current state.
          *
@@ -374,7 +867,7 @@ public final class Mu<S> {
          * @return a Mealy command object
          */
         default <E extends Effects<S>> Mi.Action<S, E> toMealy() {
-            return new MooreToMealy<>(this);
+            return MooreToMealy.of(this);
         }
     }
 
@@ -403,6 +896,19 @@ public final class Mu<S> {
          */
         void enter(S newState);
 
+        /**
+         * Same as {@link #enter(Object)} but the receiver must be notified
+         * right away even if the machine conflates notifications.
+         * <p>
+         * The default implementation simply calls {@link #enter(Object)}.
+         *
+         * @param newState The new state
+         * @see Conflation
+         */
+        default void enterEagerly(S newState) {
+            enter(newState);
+        }
+
         /**
          * Executes another action.
          *
@@ -434,6 +940,40 @@ public final class Mu<S> {
         void raise(Throwable e);
     }
 
+    /**
+     * A selector that knows how to apply actions on its own.
+     * <p>
+     * State machines should implement this instead of {@link Case} directly.
+     * When a command is run against a trampolined selector, FORWARD steps
+     * are not passed to {@link #forward(Action)}; the action is {@link
+     * #apply(Action) applied} and the resulting command is run in the same
+     * loop. This way, actions that keep forwarding to other actions, e.g. a
+     * parser or a retry loop, never overflow the stack no matter how long the
+     * chain is.
+     *
+     * @param <S> The state type
+     */
+    public interface Trampolined<S> extends Case<S> {
+        /**
+         * Applies an action to the current state without running the
+         * resulting command.
+         *
+         * @param action The action to apply
+         * @return the command returned by the action
+         */
+        Mu<S> apply(Action<S> action);
+
+        /**
+         * Runs the result of {@link #apply(Action)} against this.
+         *
+         * @param action The next action
+         */
+        @Override
+        default void forward(Action<S> action) {
+            apply(action).run(this);
+        }
+    }
+
     /**
      * Argument passed to {@link #defer} calls that sends an action back to
      * the state machine.
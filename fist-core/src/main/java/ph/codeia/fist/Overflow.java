@@ -0,0 +1,47 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * What an {@link AsyncFst} does with an action that arrives while it is
+ * stopped and its backlog is full.
+ *
+ * @see AsyncFst.Builder#backlog(int, Overflow)
+ */
+public enum Overflow {
+    /**
+     * The caller waits until the backlog has room, i.e. until the machine is
+     * started and has replayed some of it. Never use this if the caller
+     * might be the thread that restarts the machine, e.g. the main thread.
+     * If the waiting thread is interrupted, the action is treated as if the
+     * policy were {@link #FAIL}.
+     * <p>
+     * Only callers of {@link Fst#exec(Effects, Mu.Action) exec} wait. The
+     * actions that the machine sends to itself, e.g. the results of async
+     * blocks, timers and deferred continuations, are run in shared timer,
+     * worker and loop threads that must never be parked, so they are always
+     * added even if that puts the backlog over its capacity.
+     */
+    BLOCK,
+
+    /**
+     * The oldest action in the backlog is discarded to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * The incoming action is discarded.
+     */
+    DROP_NEWEST,
+
+    /**
+     * The incoming action is discarded and a {@link
+     * RejectedExecutionException} is sent to {@link Effects#handle(Throwable)}
+     * of the receiver that executed it, if it is still reachable.
+     */
+    FAIL,
+}
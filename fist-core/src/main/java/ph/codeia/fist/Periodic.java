@@ -0,0 +1,35 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An async block that releases the same action over and over.
+ * <p>
+ * An {@link AsyncFst} fires it on a timer along a fixed grid and a {@link
+ * SteppingFst} on its virtual clock. Everywhere else, this is called like any
+ * other block and the action is executed once.
+ *
+ * @param <A> The action type
+ */
+final class Periodic<A> implements Callable<A> {
+    final long periodMillis;
+    final A action;
+
+    Periodic(long period, TimeUnit unit, A action) {
+        periodMillis = unit.toMillis(period);
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("period must be at least 1ms");
+        }
+        this.action = action;
+    }
+
+    @Override
+    public A call() {
+        return action;
+    }
+}
@@ -0,0 +1,46 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An async block made of alternative blocks where the first one to succeed
+ * wins.
+ * <p>
+ * An {@link AsyncFst} starts the first block right away and the rest either
+ * at the same time or after the hedge delay, cancelling the losers as soon as
+ * there is a winner. Everywhere else, this is called like any other block and
+ * the blocks are tried one after the other until one succeeds.
+ *
+ * @param <A> The action type
+ */
+final class Race<A> implements Callable<A> {
+    final Callable<? extends A>[] blocks;
+    final long hedgeMillis;
+
+    Race(Callable<? extends A>[] blocks, long hedgeDelay, TimeUnit unit) {
+        if (blocks.length == 0) {
+            throw new IllegalArgumentException("nothing to race");
+        }
+        this.blocks = blocks.clone();
+        hedgeMillis = unit.toMillis(hedgeDelay);
+    }
+
+    @Override
+    public A call() throws Exception {
+        Exception error = null;
+        for (Callable<? extends A> block : blocks) {
+            try {
+                return block.call();
+            }
+            catch (Exception e) {
+                error = e;
+            }
+        }
+        throw error;
+    }
+}
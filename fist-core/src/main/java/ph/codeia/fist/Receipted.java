@@ -0,0 +1,32 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.Callable;
+
+/**
+ * An async block that wants a handle to itself.
+ * <p>
+ * Machines that can cancel async actions hand out their own handle to the
+ * receipt and run the block directly. Everywhere else, this is called like
+ * any other block and the receipt gets {@link Cancellable#DONE}.
+ *
+ * @param <T> The result type
+ */
+final class Receipted<T> implements Callable<T> {
+    final Callable<T> block;
+    final Fn.Proc<Cancellable> receipt;
+
+    Receipted(Callable<T> block, Fn.Proc<Cancellable> receipt) {
+        this.block = block;
+        this.receipt = receipt;
+    }
+
+    @Override
+    public T call() throws Exception {
+        receipt.receive(Cancellable.DONE);
+        return block.call();
+    }
+}
@@ -0,0 +1,49 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.Callable;
+
+/**
+ * An async block that is called again when it fails, as long as the policy
+ * allows.
+ * <p>
+ * An {@link AsyncFst} waits out the backoff on a timer and releases the
+ * worker between attempts. Everywhere else, this is called like any other
+ * block and the backoff is slept in the caller's thread.
+ *
+ * @param <A> The action type
+ */
+final class Retry<A> implements Callable<A> {
+    final Callable<? extends A> block;
+    final RetryPolicy policy;
+
+    Retry(Callable<? extends A> block, RetryPolicy policy) {
+        if (policy == null) {
+            throw new NullPointerException("policy");
+        }
+        this.block = block;
+        this.policy = policy;
+    }
+
+    @Override
+    public A call() throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            policy.attempt(attempt);
+            try {
+                return block.call();
+            }
+            catch (Exception e) {
+                long wait = policy.backoff(e, attempt);
+                if (wait < 0) {
+                    throw e;
+                }
+                if (wait > 0) {
+                    Thread.sleep(wait);
+                }
+            }
+        }
+    }
+}
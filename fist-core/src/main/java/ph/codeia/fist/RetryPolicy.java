@@ -0,0 +1,206 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether and when a failed async block is tried again.
+ * <p>
+ * The wait before retry {@code n} grows exponentially from the initial
+ * backoff up to the maximum backoff. Jitter spreads the retries of many
+ * clients that failed at the same time; with the default full jitter, the
+ * actual wait is drawn uniformly from zero to the computed backoff.
+ * <p>
+ * A policy is immutable apart from its counters, so it can be shared by
+ * every command that retries the same kind of work. The counters are totals
+ * across all of those commands and are meant to be polled by metrics.
+ *
+ * @see Mu#retry(java.util.concurrent.Callable, RetryPolicy)
+ */
+public final class RetryPolicy {
+
+    /**
+     * Tries once and never retries.
+     */
+    public static final RetryPolicy NONE = new Builder().maxAttempts(1).build();
+
+    /**
+     * Builder object to customize a {@link RetryPolicy}.
+     * <p>
+     * By default, a block is called up to 3 times with full jitter on a
+     * backoff that starts at 100ms and doubles up to 30s.
+     */
+    public static class Builder {
+        private int maxAttempts = 3;
+        private long initialMillis = 100;
+        private long maxMillis = 30_000;
+        private double multiplier = 2;
+        private double jitter = 1;
+        private Fn.Func<? super Exception, Boolean> retryable = e -> true;
+
+        /**
+         * Sets the maximum number of times a block is called, including the
+         * first. Default is 3.
+         *
+         * @param n The number of attempts; at least 1
+         * @return this
+         */
+        public Builder maxAttempts(int n) {
+            if (n < 1) {
+                throw new IllegalArgumentException("maxAttempts must be at least 1");
+            }
+            maxAttempts = n;
+            return this;
+        }
+
+        /**
+         * Sets the wait before the first retry and the cap on the following
+         * waits. Default is 100ms growing up to 30s.
+         *
+         * @param initial The wait before the first retry
+         * @param max The longest wait between attempts
+         * @param unit The unit of both durations
+         * @return this
+         */
+        public Builder backoff(long initial, long max, TimeUnit unit) {
+            if (initial < 0 || max < initial) {
+                throw new IllegalArgumentException("bad backoff range");
+            }
+            initialMillis = unit.toMillis(initial);
+            maxMillis = unit.toMillis(max);
+            return this;
+        }
+
+        /**
+         * Sets the growth factor of the wait between attempts. Default is 2.
+         *
+         * @param factor At least 1; 1 means a constant backoff
+         * @return this
+         */
+        public Builder multiplier(double factor) {
+            if (!(factor >= 1)) {
+                throw new IllegalArgumentException("multiplier must be at least 1");
+            }
+            multiplier = factor;
+            return this;
+        }
+
+        /**
+         * Sets the fraction of each wait that is randomized. Default is 1,
+         * i.e. full jitter.
+         *
+         * @param fraction 0 for exact waits, up to 1 for full jitter
+         * @return this
+         */
+        public Builder jitter(double fraction) {
+            if (!(fraction >= 0 && fraction <= 1)) {
+                throw new IllegalArgumentException("jitter must be between 0 and 1");
+            }
+            jitter = fraction;
+            return this;
+        }
+
+        /**
+         * Limits the retries to some errors. By default, every exception
+         * except {@link InterruptedException} is retried.
+         *
+         * @param predicate Returns true if the error is worth retrying
+         * @return this
+         */
+        public Builder retryIf(Fn.Func<? super Exception, Boolean> predicate) {
+            retryable = predicate;
+            return this;
+        }
+
+        /**
+         * @return a new policy with fresh counters
+         */
+        public RetryPolicy build() {
+            return new RetryPolicy(this);
+        }
+    }
+
+    final int maxAttempts;
+    private static final Random RANDOM = new Random();
+
+    private final long initialMillis;
+    private final long maxMillis;
+    private final double multiplier;
+    private final double jitter;
+    private final Fn.Func<? super Exception, Boolean> retryable;
+    private final AtomicLong attempts = new AtomicLong(0);
+    private final AtomicLong retries = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+
+    private RetryPolicy(Builder b) {
+        maxAttempts = b.maxAttempts;
+        initialMillis = b.initialMillis;
+        maxMillis = b.maxMillis;
+        multiplier = b.multiplier;
+        jitter = b.jitter;
+        retryable = b.retryable;
+    }
+
+    /**
+     * @return the number of times a block has been called under this policy.
+     */
+    public long attempts() {
+        return attempts.get();
+    }
+
+    /**
+     * @return the number of attempts that were not the first of their block.
+     */
+    public long retries() {
+        return retries.get();
+    }
+
+    /**
+     * @return the number of blocks that failed for good, either because the
+     * error was not retryable or because they ran out of attempts.
+     */
+    public long failures() {
+        return failures.get();
+    }
+
+    /**
+     * Counts an attempt that is about to start.
+     *
+     * @param attempt 1 for the first call of a block
+     */
+    void attempt(int attempt) {
+        attempts.incrementAndGet();
+        if (attempt > 1) {
+            retries.incrementAndGet();
+        }
+    }
+
+    /**
+     * Decides what to do after a failed attempt.
+     *
+     * @param error The failure
+     * @param attempt The number of the attempt that failed, starting at 1
+     * @return the wait in milliseconds before the next attempt or a negative
+     * number to give up.
+     */
+    long backoff(Exception error, int attempt) {
+        if (attempt >= maxAttempts
+                || error instanceof InterruptedException
+                || !retryable.apply(error)) {
+            failures.incrementAndGet();
+            return -1;
+        }
+        double exp = initialMillis * Math.pow(multiplier, attempt - 1);
+        long wait = (long) Math.min(maxMillis, exp);
+        long spread = (long) (wait * jitter);
+        if (spread <= 0) {
+            return wait;
+        }
+        return wait - spread + (long) (RANDOM.nextDouble() * (spread + 1));
+    }
+}
@@ -5,8 +5,12 @@ package ph.codeia.fist;
  */
 
 import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Queue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 
 public class SteppingFst<S, E extends Effects<S>> implements Fst.Binding<S, E> {
@@ -16,8 +20,13 @@ public class SteppingFst<S, E extends Effects<S>> implements Fst.Binding<S, E> {
     }
 
     private final Queue<Runnable> steps = new ArrayDeque<>();
+    private final PriorityQueue<Alarm> alarms = new PriorityQueue<>();
+    private final Map<Object, Alarm> debounced = new HashMap<>();
+    private final Map<Object, Gate> gates = new HashMap<>();
     private final E effects;
     private S state;
+    private long now;
+    private long alarmCount;
 
     public SteppingFst(S initialState, E effects) {
         this.effects = effects;
@@ -39,6 +48,37 @@ public class SteppingFst<S, E extends Effects<S>> implements Fst.Binding<S, E> {
         return state;
     }
 
+    /**
+     * Moves the virtual clock forward.
+     * <p>
+     * Delayed, debounced, throttled and periodic actions and retries that
+     * come due are enqueued as steps in the order of their deadlines;
+     * nothing runs until they are stepped through.
+     *
+     * @param duration How much time passes
+     * @param unit The unit of the duration
+     * @return the current state
+     */
+    public S advance(long duration, TimeUnit unit) {
+        long target = now + unit.toMillis(duration);
+        while (!alarms.isEmpty() && alarms.peek().at <= target) {
+            Alarm alarm = alarms.remove();
+            now = alarm.at;
+            if (!alarm.cancelled) {
+                alarm.fire.run();
+            }
+        }
+        now = target;
+        return state;
+    }
+
+    /**
+     * @return the virtual time in milliseconds since this was created.
+     */
+    public long now() {
+        return now;
+    }
+
     @Override
     public void start() {
         effects.onEnter(state);
@@ -50,7 +90,7 @@ public class SteppingFst<S, E extends Effects<S>> implements Fst.Binding<S, E> {
 
     @Override
     public void exec(Mu.Action<S> action) {
-        steps.add(() -> action.apply(state).run(new Mu.Case<S>() {
+        steps.add(() -> action.apply(state).run(new Mu.Trampolined<S>() {
             boolean firstCall = true;
 
             @Override
@@ -84,13 +124,31 @@ public class SteppingFst<S, E extends Effects<S>> implements Fst.Binding<S, E> {
             }
 
             @Override
-            public void forward(Mu.Action<S> action) {
-                action.apply(state).run(this);
+            public Mu<S> apply(Mu.Action<S> action) {
+                return action.apply(state);
             }
 
             @Override
+            @SuppressWarnings("unchecked")
             public void async(Callable<Mu.Action<S>> block) {
-                if (firstCall) {
+                if (repeat(block, SteppingFst.this::exec)) {
+                    firstCall = false;
+                    return;
+                }
+                if (block instanceof Timed) {
+                    schedule((Timed<Mu.Action<S>>) block, SteppingFst.this::exec);
+                }
+                else if (block instanceof Retry) {
+                    Retry<Mu.Action<S>> r = (Retry<Mu.Action<S>>) block;
+                    Fn.Func<Throwable, Mu.Action<S>> fail = e -> Mu.Action.pure(Mu.raise(e));
+                    if (firstCall) {
+                        retry(r, 1, SteppingFst.this::exec, fail);
+                    }
+                    else {
+                        steps.add(() -> retry(r, 1, SteppingFst.this::exec, fail));
+                    }
+                }
+                else if (firstCall) {
                     try {
                         forward(block.call());
                     }
@@ -133,7 +191,7 @@ public class SteppingFst<S, E extends Effects<S>> implements Fst.Binding<S, E> {
 
     @Override
     public void exec(Mi.Action<S, E> action) {
-        steps.add(() -> action.apply(state, effects).run(new Mi.Case<S, E>() {
+        steps.add(() -> action.apply(state, effects).run(new Mi.Trampolined<S, E>() {
             boolean firstCall = true;
 
             @Override
@@ -167,13 +225,31 @@ public class SteppingFst<S, E extends Effects<S>> implements Fst.Binding<S, E> {
             }
 
             @Override
-            public void forward(Mi.Action<S, E> action) {
-                action.apply(state, effects).run(this);
+            public Mi<S, E> apply(Mi.Action<S, E> action) {
+                return action.apply(state, effects);
             }
 
             @Override
+            @SuppressWarnings("unchecked")
             public void async(Callable<Mi.Action<S, E>> block) {
-                if (firstCall) {
+                if (repeat(block, SteppingFst.this::exec)) {
+                    firstCall = false;
+                    return;
+                }
+                if (block instanceof Timed) {
+                    schedule((Timed<Mi.Action<S, E>>) block, SteppingFst.this::exec);
+                }
+                else if (block instanceof Retry) {
+                    Retry<Mi.Action<S, E>> r = (Retry<Mi.Action<S, E>>) block;
+                    Fn.Func<Throwable, Mi.Action<S, E>> fail = e -> Mi.Action.pure(Mi.raise(e));
+                    if (firstCall) {
+                        retry(r, 1, SteppingFst.this::exec, fail);
+                    }
+                    else {
+                        steps.add(() -> retry(r, 1, SteppingFst.this::exec, fail));
+                    }
+                }
+                else if (firstCall) {
                     try {
                         forward(block.call());
                     }
@@ -218,5 +294,162 @@ public class SteppingFst<S, E extends Effects<S>> implements Fst.Binding<S, E> {
     public <T> T project(Fn.Func<S, T> projection) {
         return projection.apply(state);
     }
+
+    private <A> void schedule(Timed<A> timed, Fn.Proc<A> exec) {
+        switch (timed.kind) {
+            case DEBOUNCE: {
+                Alarm prev = debounced.get(timed.key);
+                if (prev != null) {
+                    prev.cancelled = true;
+                }
+                Alarm[] self = new Alarm[1];
+                self[0] = alarm(now + timed.millis, () -> {
+                    debounced.remove(timed.key, self[0]);
+                    exec.receive(timed.action);
+                });
+                debounced.put(timed.key, self[0]);
+                break;
+            }
+            case THROTTLE: {
+                Gate gate = gates.get(timed.key);
+                if (gate == null || now >= gate.until) {
+                    gates.put(timed.key, new Gate(now + timed.millis));
+                    exec.receive(timed.action);
+                    break;
+                }
+                if (gate.trailing != null) {
+                    gate.trailing.cancelled = true;
+                }
+                gate.trailing = alarm(gate.until, () -> {
+                    gate.trailing = null;
+                    gate.until = now + timed.millis;
+                    exec.receive(timed.action);
+                });
+                break;
+            }
+            default:
+                alarm(now + timed.millis, () -> exec.receive(timed.action));
+                break;
+        }
+    }
+
+    /**
+     * Makes an attempt now and, if it fails, sets an alarm that enqueues the
+     * next one.
+     */
+    private <A> void retry(Retry<A> retry, int n, Fn.Proc<A> exec, Fn.Func<Throwable, A> fail) {
+        retry.policy.attempt(n);
+        A action;
+        try {
+            action = retry.block.call();
+        }
+        catch (Exception e) {
+            long wait = retry.policy.backoff(e, n);
+            if (wait < 0) {
+                exec.receive(fail.apply(e));
+            }
+            else {
+                alarm(now + wait, () -> steps.add(() -> retry(retry, n + 1, exec, fail)));
+            }
+            return;
+        }
+        exec.receive(action);
+    }
+
+    /**
+     * Sets up a repeating alarm if the block is periodic.
+     *
+     * @return false if the block is not periodic
+     */
+    @SuppressWarnings("unchecked")
+    private <A> boolean repeat(Callable<A> block, Fn.Proc<A> exec) {
+        Fn.Proc<Cancellable> receipt = null;
+        if (block instanceof Receipted) {
+            Receipted<A> r = (Receipted<A>) block;
+            if (!(r.block instanceof Periodic)) {
+                return false;
+            }
+            receipt = r.receipt;
+            block = r.block;
+        }
+        if (!(block instanceof Periodic)) {
+            return false;
+        }
+        Periodic<A> periodic = (Periodic<A>) block;
+        Repeat repeat = new Repeat(periodic.periodMillis, () -> exec.receive(periodic.action));
+        if (receipt != null) {
+            receipt.receive(repeat);
+        }
+        repeat.arm();
+        return true;
+    }
+
+    private final class Repeat implements Cancellable {
+        final long period;
+        final Runnable fire;
+        Alarm next;
+        boolean cancelled;
+
+        Repeat(long period, Runnable fire) {
+            this.period = period;
+            this.fire = fire;
+        }
+
+        void arm() {
+            next = alarm(now + period, () -> {
+                arm();
+                fire.run();
+            });
+        }
+
+        @Override
+        public boolean cancel() {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            next.cancelled = true;
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+    }
+
+    private Alarm alarm(long at, Runnable fire) {
+        Alarm alarm = new Alarm(at, alarmCount++, fire);
+        alarms.add(alarm);
+        return alarm;
+    }
+
+    private static final class Alarm implements Comparable<Alarm> {
+        final long at;
+        final long seq;
+        final Runnable fire;
+        boolean cancelled;
+
+        Alarm(long at, long seq, Runnable fire) {
+            this.at = at;
+            this.seq = seq;
+            this.fire = fire;
+        }
+
+        @Override
+        public int compareTo(Alarm o) {
+            int c = Long.compare(at, o.at);
+            return c != 0 ? c : Long.compare(seq, o.seq);
+        }
+    }
+
+    private static final class Gate {
+        long until;
+        Alarm trailing;
+
+        Gate(long until) {
+            this.until = until;
+        }
+    }
 }
 
@@ -0,0 +1,72 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes the result of an async block through a function.
+ * <p>
+ * The machines recognize the special blocks made by {@link Mu} and {@link Mi}
+ * by their class, so a special block is rebuilt around the new function
+ * instead of being wrapped.
+ *
+ * @see Mu#tap(Mu.Action, Fn.Proc)
+ * @see Mi#tap(Mi.Action, Fn.Proc)
+ */
+final class Tap {
+
+    private Tap() {}
+
+    /**
+     * @param block The block whose result is to be transformed
+     * @param f The transform
+     * @param <A> The result type of the original block
+     * @param <B> The result type of the new block
+     * @return a block of the same kind as the original
+     */
+    static <A, B> Callable<B> block(
+            Callable<? extends A> block,
+            Fn.Func<? super A, ? extends B> f
+    ) {
+        if (block instanceof Receipted) {
+            Receipted<? extends A> r = (Receipted<? extends A>) block;
+            return new Receipted<B>(block(r.block, f), r.receipt);
+        }
+        if (block instanceof Timed) {
+            Timed<? extends A> t = (Timed<? extends A>) block;
+            return new Timed<B>(t.kind, t.key, t.millis, TimeUnit.MILLISECONDS, f.apply(t.action));
+        }
+        if (block instanceof Periodic) {
+            Periodic<? extends A> p = (Periodic<? extends A>) block;
+            return new Periodic<B>(p.periodMillis, TimeUnit.MILLISECONDS, f.apply(p.action));
+        }
+        if (block instanceof Retry) {
+            Retry<? extends A> r = (Retry<? extends A>) block;
+            return new Retry<B>(block(r.block, f), r.policy);
+        }
+        if (block instanceof Race) {
+            Race<? extends A> r = (Race<? extends A>) block;
+            @SuppressWarnings("unchecked")
+            Callable<B>[] blocks = (Callable<B>[]) new Callable<?>[r.blocks.length];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = block(r.blocks[i], f);
+            }
+            return new Race<>(blocks, r.hedgeMillis, TimeUnit.MILLISECONDS);
+        }
+        if (block instanceof Fork) {
+            return fork((Fork<?, ? extends A>) block, f);
+        }
+        return () -> f.apply(block.call());
+    }
+
+    private static <T, A, B> Fork<T, B> fork(
+            Fork<T, ? extends A> fork,
+            Fn.Func<? super A, ? extends B> f
+    ) {
+        return new Fork<>(fork.blocks, results -> f.apply(fork.combine.apply(results)));
+    }
+}
@@ -0,0 +1,30 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+/**
+ * A clock that paces the notifications of an {@link AsyncFst}, e.g. the
+ * display's vsync.
+ * <p>
+ * A machine that {@link AsyncFst.Builder#renderOn(TickSource) renders on} a
+ * tick source applies its state transitions as usual but only remembers that
+ * its receiver needs to be notified. It then requests a tick and calls
+ * {@link Effects#onEnter(Object)} once with the latest state when the tick
+ * arrives. At most one tick is requested per machine at a time no matter how
+ * many transitions happen in between.
+ *
+ * @see FixedRateTicks
+ */
+public interface TickSource {
+    /**
+     * Calls a procedure once on the next tick.
+     * <p>
+     * This may be called from any thread. The procedure may be called in any
+     * thread as well; the machine takes care of hopping to the main thread.
+     *
+     * @param onTick The procedure to call
+     */
+    void requestTick(Runnable onTick);
+}
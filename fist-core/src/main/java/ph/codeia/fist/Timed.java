@@ -0,0 +1,46 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An async block that releases an action according to a clock.
+ * <p>
+ * An {@link AsyncFst} schedules these on a timer without holding any thread
+ * and a {@link SteppingFst} on its virtual clock. Everywhere else, this is
+ * called like any other block: a delay sleeps in the caller's thread and the
+ * debounce and throttle gates let every action through since a synchronous
+ * machine never has two actions in flight.
+ *
+ * @param <A> The action type
+ */
+final class Timed<A> implements Callable<A> {
+    enum Kind {DELAY, DEBOUNCE, THROTTLE}
+
+    final Kind kind;
+    final Object key;
+    final long millis;
+    final A action;
+
+    Timed(Kind kind, Object key, long duration, TimeUnit unit, A action) {
+        if (kind != Kind.DELAY && key == null) {
+            throw new NullPointerException("key");
+        }
+        this.kind = kind;
+        this.key = key;
+        millis = unit.toMillis(duration);
+        this.action = action;
+    }
+
+    @Override
+    public A call() throws InterruptedException {
+        if (kind == Kind.DELAY && millis > 0) {
+            Thread.sleep(millis);
+        }
+        return action;
+    }
+}
@@ -23,6 +23,8 @@ public class TrackingFst<S> implements Fst<S> {
     private final Queue<Kind> path = new ArrayDeque<>();
     private S state;
     private Throwable error;
+    private MooreDispatch spareMoore = new MooreDispatch();
+    private MealyDispatch<?> spareMealy = new MealyDispatch<>();
 
     public TrackingFst(S initialState) {
         state = initialState;
@@ -140,109 +142,145 @@ public class TrackingFst<S> implements Fst<S> {
 
     @Override
     public void exec(Effects<S> effects, Mu.Action<S> action) {
-        action.apply(state).run(new Mu.Case<S>() {
-            @Override
-            public void noop() {
-                path.add(Kind.NOOP);
-            }
-
-            @Override
-            public void reenter() {
-                path.add(Kind.REENTER);
-                effects.onEnter(state);
-            }
-
-            @Override
-            public void enter(S newState) {
-                path.add(Kind.ENTER);
-                state = newState;
-                effects.onEnter(newState);
-            }
-
-            @Override
-            public void forward(Mu.Action<S> action) {
-                action.apply(state).run(this);
-            }
-
-            @Override
-            public void async(Callable<Mu.Action<S>> block) {
-                try {
-                    forward(block.call());
-                }
-                catch (Exception e) {
-                    raise(e);
-                }
-            }
-
-            @Override
-            public void defer(Fn.Proc<Mu.Continuation<S>> block) {
-                Deferred<Mu.Action<S>> next = new Deferred<>();
-                block.receive(next::offer);
-                async(next);
-            }
-
-            @Override
-            public void raise(Throwable e) {
-                path.add(Kind.RAISE);
-                error = e;
-            }
-        });
+        MooreDispatch on = takeMoore();
+        on.effects = effects;
+        try {
+            action.apply(state).run(on);
+        }
+        finally {
+            on.effects = null;
+            spareMoore = on;
+        }
     }
 
     @Override
     public <E extends Effects<S>> void exec(E effects, Mi.Action<S, E> action) {
-        action.apply(state, effects).run(new Mi.Case<S, E>() {
-            @Override
-            public void noop() {
-                path.add(Kind.NOOP);
-            }
-
-            @Override
-            public void reenter() {
-                path.add(Kind.REENTER);
-                effects.onEnter(state);
-            }
+        MealyDispatch<E> on = takeMealy();
+        on.effects = effects;
+        try {
+            action.apply(state, effects).run(on);
+        }
+        finally {
+            on.effects = null;
+            spareMealy = on;
+        }
+    }
 
-            @Override
-            public void enter(S newState) {
-                path.add(Kind.ENTER);
-                state = newState;
-                effects.onEnter(newState);
-            }
+    @Override
+    public <T> T project(Fn.Func<S, T> projection) {
+        return projection.apply(state);
+    }
 
-            @Override
-            public void forward(Mi.Action<S, E> action) {
-                action.apply(state, effects).run(this);
-            }
+    private MooreDispatch takeMoore() {
+        MooreDispatch on = spareMoore;
+        spareMoore = null;
+        return on != null ? on : new MooreDispatch();
+    }
 
-            @Override
-            public void async(Callable<Mi.Action<S, E>> block) {
-                try {
-                    forward(block.call());
-                }
-                catch (Exception e) {
-                    raise(e);
-                }
-            }
+    @SuppressWarnings("unchecked")
+    private <E extends Effects<S>> MealyDispatch<E> takeMealy() {
+        MealyDispatch<?> on = spareMealy;
+        spareMealy = null;
+        return on != null ? (MealyDispatch<E>) on : new MealyDispatch<>();
+    }
 
-            @Override
-            public void defer(Fn.Proc<Mi.Continuation<S, E>> block) {
-                Deferred<Mi.Action<S, E>> next = new Deferred<>();
-                block.receive(next::offer);
-                async(next);
+    private class MooreDispatch implements Mu.Trampolined<S> {
+        Effects<S> effects;
+
+        @Override
+        public void noop() {
+            path.add(Kind.NOOP);
+        }
+
+        @Override
+        public void reenter() {
+            path.add(Kind.REENTER);
+            effects.onEnter(state);
+        }
+
+        @Override
+        public void enter(S newState) {
+            path.add(Kind.ENTER);
+            state = newState;
+            effects.onEnter(newState);
+        }
+
+        @Override
+        public Mu<S> apply(Mu.Action<S> action) {
+            return action.apply(state);
+        }
+
+        @Override
+        public void async(Callable<Mu.Action<S>> block) {
+            try {
+                forward(block.call());
             }
-
-            @Override
-            public void raise(Throwable e) {
-                path.add(Kind.RAISE);
-                error = e;
+            catch (Exception e) {
+                raise(e);
             }
-        });
+        }
+
+        @Override
+        public void defer(Fn.Proc<Mu.Continuation<S>> block) {
+            Deferred<Mu.Action<S>> next = new Deferred<>();
+            block.receive(next::offer);
+            async(next);
+        }
+
+        @Override
+        public void raise(Throwable e) {
+            path.add(Kind.RAISE);
+            error = e;
+        }
     }
 
-    @Override
-    public <T> T project(Fn.Func<S, T> projection) {
-        return projection.apply(state);
+    private class MealyDispatch<E extends Effects<S>> implements Mi.Trampolined<S, E> {
+        E effects;
+
+        @Override
+        public void noop() {
+            path.add(Kind.NOOP);
+        }
+
+        @Override
+        public void reenter() {
+            path.add(Kind.REENTER);
+            effects.onEnter(state);
+        }
+
+        @Override
+        public void enter(S newState) {
+            path.add(Kind.ENTER);
+            state = newState;
+            effects.onEnter(newState);
+        }
+
+        @Override
+        public Mi<S, E> apply(Mi.Action<S, E> action) {
+            return action.apply(state, effects);
+        }
+
+        @Override
+        public void async(Callable<Mi.Action<S, E>> block) {
+            try {
+                forward(block.call());
+            }
+            catch (Exception e) {
+                raise(e);
+            }
+        }
+
+        @Override
+        public void defer(Fn.Proc<Mi.Continuation<S, E>> block) {
+            Deferred<Mi.Action<S, E>> next = new Deferred<>();
+            block.receive(next::offer);
+            async(next);
+        }
+
+        @Override
+        public void raise(Throwable e) {
+            path.add(Kind.RAISE);
+            error = e;
+        }
     }
 }
-
@@ -39,4 +39,14 @@ public class UnconfinedFst<S> extends AsyncFst<S> {
     protected void runOnMainThread(Runnable proc) {
         proc.run();
     }
+
+    /**
+     * Every thread is the main thread.
+     *
+     * @return true
+     */
+    @Override
+    protected boolean isMainThread() {
+        return true;
+    }
 }
@@ -0,0 +1,43 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Provides a thread-per-task executor for async actions.
+ * <p>
+ * This is the Java 8 version which falls back to an unbounded pool of daemon
+ * platform threads. The JDK 21+ version in {@code META-INF/versions/21}
+ * starts a virtual thread per task instead.
+ */
+final class VirtualThreads {
+
+    private static class Holder {
+        static final Executor INSTANCE = Executors.newCachedThreadPool(new ThreadFactory());
+    }
+
+    private static class ThreadFactory implements java.util.concurrent.ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger(0);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "fist-worker-" + count.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * @return the shared thread-per-task executor.
+     */
+    static Executor executor() {
+        return Holder.INSTANCE;
+    }
+
+    private VirtualThreads() {}
+}
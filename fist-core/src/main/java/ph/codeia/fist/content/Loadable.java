@@ -6,6 +6,7 @@ package ph.codeia.fist.content;
 
 import ph.codeia.fist.Effects;
 import ph.codeia.fist.Fst;
+import ph.codeia.fist.Mi;
 import ph.codeia.fist.Mu;
 
 @SuppressWarnings("NewApi")
@@ -67,4 +68,29 @@ public class Loadable<T> {
         data = null;
         return Mu.reenter();
     }
+
+    static <T> Mi.Action<Loadable<T>, Ui<T>> fetchIfAllowed(Mi<Loadable<T>, Ui<T>> fetch) {
+        return (content, view) -> {
+            final boolean canFetch;
+            switch (content.state) {
+            case BEGIN:
+                canFetch = view.shouldFetch(Ui.Event.INIT, null);
+                break;
+            case NOTHING:
+                canFetch = view.shouldFetch(Ui.Event.LOAD, null);
+                break;
+            case LOADED:
+                canFetch = view.shouldFetch(Ui.Event.REFRESH, content.data);
+                break;
+            default:
+                canFetch = false;
+                break;
+            }
+            if (!canFetch) return Mi.noop();
+            content.state = content.state == State.LOADED ?
+                    State.REFRESHING :
+                    State.LOADING;
+            return Mi.Action.pure(fetch).after(Mi.reenter());
+        };
+    }
 }
@@ -5,6 +5,7 @@ package ph.codeia.fist.content;
  */
 
 import ph.codeia.fist.Mi;
+import ph.codeia.fist.RetryPolicy;
 
 @SuppressWarnings("NewApi")
 public interface Loader<T> {
@@ -12,28 +13,18 @@ public interface Loader<T> {
     T onFetch() throws Exception;
 
     default Mi.Action<Loadable<T>, Loadable.Ui<T>> load() {
-        return (content, view) -> {
-            final boolean canFetch;
-            switch (content.state) {
-            case BEGIN:
-                canFetch = view.shouldFetch(Loadable.Ui.Event.INIT, null);
-                break;
-            case NOTHING:
-                canFetch = view.shouldFetch(Loadable.Ui.Event.LOAD, null);
-                break;
-            case LOADED:
-                canFetch = view.shouldFetch(Loadable.Ui.Event.REFRESH, content.data);
-                break;
-            default:
-                canFetch = false;
-                break;
-            }
-            if (!canFetch) return Mi.noop();
-            content.state = content.state == Loadable.State.LOADED ?
-                    Loadable.State.REFRESHING :
-                    Loadable.State.LOADING;
-            return Mi.Action.pure(this::fetch).after(Mi.reenter());
-        };
+        return Loadable.fetchIfAllowed(Mi.async(this::fetch));
+    }
+
+    /**
+     * Same as {@link #load()} but failed fetches are retried according to
+     * the policy before the error is raised.
+     *
+     * @param policy The retry policy for {@link #onFetch()}
+     * @return an action that fetches if the view allows it
+     */
+    default Mi.Action<Loadable<T>, Loadable.Ui<T>> load(RetryPolicy policy) {
+        return Loadable.fetchIfAllowed(Mi.retry(this::fetch, policy));
     }
 
     default Mi.Action<Loadable<T>, Loadable.Ui<T>> fetch() throws Exception {
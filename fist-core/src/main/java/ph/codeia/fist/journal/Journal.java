@@ -0,0 +1,792 @@
+package ph.codeia.fist.journal;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log of states in memory-mapped segment files.
+ * <p>
+ * Every record is a length, a CRC32, a sequence number and the encoded
+ * state. A record that was torn by a crash fails the checksum and ends the
+ * log; everything before it is still readable, and whatever follows it is
+ * cleared when the journal is opened.
+ * <p>
+ * Appends only copy into the mapped segment. Everything that touches the
+ * disk is done by a background thread: it makes the appends durable in
+ * groups, forcing the segment at most once per commit interval no matter
+ * how many records were appended in between, and it also names the new
+ * segments, writes the snapshots and deletes the old files. {@link #sync()}
+ * waits for the next group commit. With a zero commit interval there is no
+ * background thread; all of that is done by {@link #append(Object)} itself,
+ * so every append is durable before it returns.
+ * <p>
+ * A segment has a fixed size. When the next record does not fit, appending
+ * continues in a spare segment that the background thread has already
+ * created; it is renamed after the sequence number of its first record
+ * later. Only the newest few segments are kept.
+ * <p>
+ * Opening a journal checks the checksums of every record in the newest
+ * segment but only decodes the last one. With a {@link SnapshotStore}, it
+ * also reads the latest snapshot and stops looking at older segments once
+ * they are covered by it.
+ * <p>
+ * If the background work fails, the journal stops accepting records and
+ * the next {@link #append(Object)} or {@link #sync()} throws the error.
+ * <p>
+ * Appends are serialized; the journal can be shared by threads.
+ *
+ * @param <S> The state type
+ */
+public final class Journal<S> implements Closeable {
+
+    public static class Builder<S> {
+        private final File dir;
+        private final StateCodec<S> codec;
+        private int segmentBytes = 16 << 20;
+        private long commitMillis = 10;
+        private int retain = 2;
+        private SnapshotStore<S> snapshots;
+
+        /**
+         * @param dir The directory of the segment files; created if missing
+         * @param codec The state codec
+         */
+        public Builder(File dir, StateCodec<S> codec) {
+            this.dir = dir;
+            this.codec = codec;
+        }
+
+        /**
+         * Sets the size of a segment file. Default is 16MB.
+         *
+         * @param bytes The size, which also limits the size of a record
+         * @return this
+         */
+        public Builder<S> segmentSize(int bytes) {
+            if (bytes < 1024) {
+                throw new IllegalArgumentException("segment must be at least 1KB");
+            }
+            segmentBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Sets how long appends are gathered before they are forced to disk
+         * together. Default is 10ms.
+         *
+         * @param interval The group commit interval; 0 to force every append
+         * @param unit The unit of the interval
+         * @return this
+         */
+        public Builder<S> commitEvery(long interval, TimeUnit unit) {
+            commitMillis = unit.toMillis(interval);
+            return this;
+        }
+
+        /**
+         * Sets how many segment files are kept. Older ones are deleted after
+         * a new segment is started. Default is 2.
+         *
+         * @param segments At least 1
+         * @return this
+         */
+        public Builder<S> retain(int segments) {
+            if (segments < 1) {
+                throw new IllegalArgumentException("must retain at least 1 segment");
+            }
+            retain = segments;
+            return this;
+        }
+
+        /**
+         * Takes snapshots as often as the store is configured to. Segments
+         * covered by a snapshot are deleted, and recovery starts from the
+         * latest snapshot. None by default.
+         * <p>
+         * The journal hands its own encoded states to the store, so the store
+         * must be built with the same codec as this journal, or with one
+         * that is {@link Object#equals(Object) equal} to it. Codecs that do
+         * not override equals must be the same instance.
+         *
+         * @param store Where the snapshots go
+         * @return this
+         * @throws IllegalArgumentException if the store has a different codec
+         */
+        public Builder<S> snapshots(SnapshotStore<S> store) {
+            if (store != null && !codec.equals(store.codec())) {
+                throw new IllegalArgumentException(
+                        "the snapshot store must use the journal's codec");
+            }
+            snapshots = store;
+            return this;
+        }
+
+        /**
+         * Opens the journal, creating it if it does not exist yet.
+         *
+         * @return a journal positioned after its last valid record
+         * @throws IOException if the directory or the newest segment can't
+         * be read or written
+         */
+        public Journal<S> open() throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("cannot create " + dir);
+            }
+            return new Journal<>(this);
+        }
+    }
+
+    static final int HEADER = 16;
+    static final String SUFFIX = ".journal";
+    static final String SPARE_SUFFIX = ".spare";
+
+    /**
+     * A byte array output stream that lets the array be read in place.
+     */
+    static final class Bytes extends ByteArrayOutputStream {
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * A mapped segment file. A spare segment has a temporary name until the
+     * sequence number of its first record is known.
+     */
+    private static final class Segment {
+        final RandomAccessFile raf;
+        final MappedByteBuffer buf;
+        File file;
+        long firstSeq;
+        volatile boolean named;
+
+        Segment(File file, int size, long firstSeq, boolean named) throws IOException {
+            this.file = file;
+            this.firstSeq = firstSeq;
+            this.named = named;
+            raf = new RandomAccessFile(file, "rw");
+            if (raf.length() < size) {
+                raf.setLength(size);
+            }
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        void rename(File dest) throws IOException {
+            if (!file.renameTo(dest)) {
+                throw new IOException("cannot rename " + file + " to " + dest);
+            }
+            file = dest;
+            named = true;
+        }
+    }
+
+    private final File dir;
+    private final StateCodec<S> codec;
+    private final int segmentBytes;
+    private final long commitMillis;
+    private final int retain;
+    private final SnapshotStore<S> snapshots;
+    private final Bytes bytes = new Bytes();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+    private final CRC32 crc = new CRC32();
+    private final ByteBuffer seqBytes = ByteBuffer.allocate(8);
+    private final List<Segment> retired = new ArrayList<>();
+    private final Thread committer;
+    private byte[] scratch = new byte[256];
+    private Segment current;
+    private Segment spare;
+    private int spares;
+    private S last;
+    private long lastSeq;
+    private long durableSeq;
+    private long recordsSinceSnapshot;
+    private long bytesSinceSnapshot;
+    private long snapshotSeq;
+    private byte[] snapshotBytes;
+    private IOException failure;
+    private boolean closed;
+    private boolean pruned;  // only touched by maintain()
+
+    private Journal(Builder<S> b) throws IOException {
+        dir = b.dir;
+        codec = b.codec;
+        segmentBytes = b.segmentBytes;
+        commitMillis = b.commitMillis;
+        retain = b.retain;
+        snapshots = b.snapshots;
+        SnapshotStore.Snapshot<S> snapshot = snapshots == null ? null : snapshots.latest();
+        long covered = snapshot == null ? 0 : snapshot.seq;
+        adoptSpares();
+        File[] segments = segments(dir);
+        if (segments.length == 0) {
+            current = new Segment(new File(dir, name(covered + 1)), segmentBytes, covered + 1, true);
+            lastSeq = covered;
+        }
+        else {
+            File newest = segments[segments.length - 1];
+            current = new Segment(newest, segmentBytes, firstSeq(newest), true);
+            lastSeq = current.firstSeq - 1;
+            recover(current.buf);
+            if (clearTail(current.buf)) {
+                current.buf.force();
+            }
+            // a segment holds nothing newer than the snapshot if the one
+            // after it starts at or before the snapshot.
+            for (int i = segments.length - 2;
+                 i >= 0 && last == null && firstSeq(segments[i + 1]) - 1 > covered;
+                 i--) {
+                recoverFrom(segments[i]);
+            }
+        }
+        if (snapshot != null && (last == null || snapshot.seq >= lastSeq)) {
+            if (snapshot.seq > lastSeq) {
+                // the snapshot reached the disk but the records before it
+                // did not. the next record must not follow the last one in
+                // this segment or the gap would end the segment on reopen.
+                current.raf.close();
+                current = new Segment(
+                        new File(dir, name(snapshot.seq + 1)),
+                        segmentBytes,
+                        snapshot.seq + 1,
+                        true
+                );
+                lastSeq = snapshot.seq;
+            }
+            last = snapshot.state;
+        }
+        syncDirectory(dir);
+        durableSeq = lastSeq;
+        if (commitMillis > 0) {
+            committer = new Thread(this::commitLoop, "fist-journal-" + dir.getName());
+            committer.setDaemon(true);
+            committer.start();
+        }
+        else {
+            committer = null;
+        }
+    }
+
+    /**
+     * @return the last state in the journal when it was opened or the last
+     * state appended since, or null if the journal is empty.
+     */
+    public synchronized S recover() {
+        return last;
+    }
+
+    /**
+     * Same as {@link #recover()} but never null.
+     *
+     * @param initial The state to return if the journal is empty
+     * @return the last state or the initial state
+     */
+    public S recover(S initial) {
+        S s = recover();
+        return s != null ? s : initial;
+    }
+
+    /**
+     * @return the sequence number of the last record, or 0 if there is none.
+     */
+    public synchronized long lastSequence() {
+        return lastSeq;
+    }
+
+    /**
+     * Writes a state at the end of the journal.
+     * <p>
+     * The record is durable when this returns only if the commit interval is
+     * zero; otherwise, call {@link #sync()} or wait for the next group
+     * commit. This does no disk I/O unless the commit interval is zero or
+     * a segment fills up before the background thread has prepared the
+     * next one.
+     *
+     * @param state The state to write
+     * @return the sequence number of the record
+     * @throws IOException if the state can't be encoded or the journal has
+     * failed
+     */
+    public synchronized long append(S state) throws IOException {
+        if (closed) {
+            throw new IOException("journal is closed");
+        }
+        if (failure != null) {
+            throw new IOException("journal has failed", failure);
+        }
+        bytes.reset();
+        codec.encode(state, out);
+        int n = bytes.size();
+        if (n == 0) {
+            throw new IOException("codec wrote nothing");
+        }
+        if (HEADER + n > segmentBytes) {
+            throw new IOException("record too large: " + n + " bytes");
+        }
+        long seq = lastSeq + 1;
+        if (current.buf.remaining() < HEADER + n) {
+            rotate(seq);
+        }
+        current.buf.putInt(n)
+                .putInt(checksum(seq, bytes.array(), n))
+                .putLong(seq)
+                .put(bytes.array(), 0, n);
+        lastSeq = seq;
+        last = state;
+        if (snapshots != null) {
+            recordsSinceSnapshot++;
+            bytesSinceSnapshot += HEADER + n;
+            if (snapshots.isDue(recordsSinceSnapshot, bytesSinceSnapshot)) {
+                // written by the committer once the record is durable
+                snapshotSeq = seq;
+                snapshotBytes = Arrays.copyOf(bytes.array(), n);
+                recordsSinceSnapshot = 0;
+                bytesSinceSnapshot = 0;
+            }
+        }
+        if (committer == null) {
+            maintain();
+        }
+        else {
+            notifyAll();
+        }
+        return seq;
+    }
+
+    /**
+     * Waits until every record appended so far is on disk.
+     *
+     * @throws InterruptedIOException if interrupted while waiting
+     * @throws IOException if the journal has failed
+     */
+    public synchronized void sync() throws IOException {
+        long target = lastSeq;
+        try {
+            while (durableSeq < target && !closed && failure == null) {
+                wait();
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        if (failure != null) {
+            throw new IOException("journal has failed", failure);
+        }
+    }
+
+    /**
+     * Forces everything to disk, writes the pending snapshot if any and
+     * stops the committer thread.
+     *
+     * @throws IOException if the journal has failed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        if (committer != null) {
+            boolean interrupted = false;
+            while (committer.isAlive()) {
+                try {
+                    committer.join();
+                }
+                catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        maintain();
+        synchronized (this) {
+            current.raf.close();
+            if (spare != null) {
+                spare.raf.close();
+                //noinspection ResultOfMethodCallIgnored
+                spare.file.delete();
+                spare = null;
+            }
+            notifyAll();
+            if (failure != null) {
+                throw new IOException("journal has failed", failure);
+            }
+        }
+    }
+
+    private void commitLoop() {
+        try {
+            while (true) {
+                boolean gather;
+                synchronized (this) {
+                    while (!closed && !hasWork()) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                    gather = durableSeq < lastSeq && retired.isEmpty();
+                }
+                if (gather) {
+                    // let the appends pile up so they share one force
+                    Thread.sleep(commitMillis);
+                }
+                maintain();
+            }
+        }
+        catch (InterruptedException ignored) {
+        }
+    }
+
+    private boolean hasWork() {
+        return failure == null && (durableSeq < lastSeq
+                || !retired.isEmpty()
+                || snapshotBytes != null
+                || spare == null
+                || !current.named);
+    }
+
+    /**
+     * Switches to the spare segment. Must hold the lock.
+     */
+    private void rotate(long firstSeq) throws IOException {
+        if (spare == null) {
+            // the committer hasn't caught up, or there is no committer
+            spare = newSpare();
+        }
+        retired.add(current);
+        current = spare;
+        current.firstSeq = firstSeq;
+        spare = null;
+    }
+
+    private Segment newSpare() throws IOException {
+        int n;
+        synchronized (this) {
+            n = spares++;
+        }
+        String name = String.format(Locale.ROOT, "%020d%s", n, SPARE_SUFFIX);
+        return new Segment(new File(dir, name), segmentBytes, 0, false);
+    }
+
+    /**
+     * Does all the disk work: forces and names the segments, writes the
+     * pending snapshot, deletes the files that are no longer needed and
+     * prepares the next spare segment. Only ever run by one thread at a
+     * time: the committer, the appender when there is no committer, or
+     * {@link #close()} after the committer has stopped.
+     */
+    private void maintain() {
+        Segment target;
+        List<Segment> full;
+        long seq;
+        long snapSeq;
+        byte[] snap;
+        boolean needsSpare;
+        synchronized (this) {
+            if (failure != null) {
+                return;
+            }
+            target = current;
+            seq = lastSeq;
+            full = new ArrayList<>(retired);
+            retired.clear();
+            snapSeq = snapshotSeq;
+            snap = snapshotBytes;
+            snapshotBytes = null;
+            needsSpare = spare == null && !closed;
+        }
+        try {
+            boolean renamed = false;
+            for (Segment s : full) {
+                s.buf.force();
+                if (!s.named) {
+                    s.rename(new File(dir, name(s.firstSeq)));
+                    renamed = true;
+                }
+                s.raf.close();
+            }
+            target.buf.force();
+            if (!target.named) {
+                target.rename(new File(dir, name(target.firstSeq)));
+                renamed = true;
+            }
+            if (renamed) {
+                syncDirectory(dir);
+            }
+            synchronized (this) {
+                if (seq > durableSeq) {
+                    durableSeq = seq;
+                }
+                notifyAll();
+            }
+            if (snap != null || !full.isEmpty() || !pruned) {
+                // nothing can be deleted until a segment fills up or a
+                // snapshot is taken, so don't list the directory for
+                // every group commit.
+                pruned = true;
+                prune(snapSeq, snap);
+            }
+            if (needsSpare) {
+                Segment s = newSpare();
+                synchronized (this) {
+                    if (spare == null && !closed) {
+                        spare = s;
+                        s = null;
+                    }
+                }
+                if (s != null) {
+                    s.raf.close();
+                    //noinspection ResultOfMethodCallIgnored
+                    s.file.delete();
+                }
+            }
+        }
+        catch (IOException | RuntimeException e) {
+            synchronized (this) {
+                failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Writes the snapshot if any and deletes the segments that are beyond
+     * the retention limit or covered by the snapshot.
+     */
+    private void prune(long snapSeq, byte[] snap) throws IOException {
+        boolean deleted = false;
+        File[] segments = segments(dir);
+        int keep = Math.max(0, segments.length - retain);
+        if (snap != null) {
+            snapshots.save(snapSeq, snap, snap.length);
+            // the records in a segment are all covered if the next
+            // segment starts right after the snapshot or earlier.
+            while (keep + 1 < segments.length
+                    && firstSeq(segments[keep + 1]) <= snapSeq + 1) {
+                keep++;
+            }
+        }
+        for (int i = 0; i < keep; i++) {
+            deleted |= segments[i].delete();
+        }
+        if (deleted) {
+            syncDirectory(dir);
+        }
+    }
+
+    /**
+     * Names the spare segments that were written to before a crash after
+     * their first record and deletes the rest.
+     */
+    private void adoptSpares() throws IOException {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SPARE_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        for (File f : files) {
+            long first = -1;
+            try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+                FileChannel ch = raf.getChannel();
+                ByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+                if (scan(buf) >= 0) {
+                    first = buf.getLong(8);
+                }
+            }
+            if (first < 0) {
+                if (!f.delete()) {
+                    throw new IOException("cannot delete " + f);
+                }
+            }
+            else if (!f.renameTo(new File(dir, name(first)))) {
+                throw new IOException("cannot rename " + f);
+            }
+        }
+    }
+
+    private void recoverFrom(File f) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r")) {
+            FileChannel ch = raf.getChannel();
+            long seq = lastSeq;
+            recover(ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+            lastSeq = seq;
+        }
+    }
+
+    /**
+     * Finds the last valid record in a segment, decodes it and leaves the
+     * buffer positioned after it.
+     */
+    private void recover(ByteBuffer buf) throws IOException {
+        int at = scan(buf);
+        if (at < 0) {
+            return;
+        }
+        int n = buf.getInt(at);
+        long seq = buf.getLong(at + 8);
+        byte[] payload = new byte[n];
+        ByteBuffer view = buf.duplicate();
+        view.position(at + HEADER);
+        view.get(payload);
+        lastSeq = seq;
+        last = codec.decode(new DataInputStream(new ByteArrayInputStream(payload)));
+    }
+
+    /**
+     * Checks records from the start of a segment until the first invalid
+     * one and leaves the buffer positioned there.
+     *
+     * @return the offset of the last valid record or -1 if there is none.
+     */
+    private int scan(ByteBuffer buf) {
+        int lastAt = -1;
+        long prev = -1;
+        while (buf.remaining() >= HEADER) {
+            int start = buf.position();
+            int n = buf.getInt();
+            int sum = buf.getInt();
+            long seq = buf.getLong();
+            if (n <= 0 || n > buf.remaining() || (prev != -1 && seq != prev + 1)) {
+                buf.position(start);
+                break;
+            }
+            if (scratch.length < n) {
+                scratch = new byte[Math.max(n, 2 * scratch.length)];
+            }
+            buf.get(scratch, 0, n);
+            if (checksum(seq, scratch, n) != sum) {
+                buf.position(start);
+                break;
+            }
+            prev = seq;
+            lastAt = start;
+        }
+        return lastAt;
+    }
+
+    /**
+     * Clears whatever follows the last valid record so that the remains of
+     * a record written before a crash can't become valid again once new
+     * records are written up to them. Only writes where there is something
+     * to clear so the unused part of a sparse file stays unallocated.
+     *
+     * @return true if anything was cleared
+     */
+    private static boolean clearTail(MappedByteBuffer buf) {
+        boolean dirty = false;
+        int i = buf.position();
+        int end = buf.limit();
+        for (; i < end && (i & 7) != 0; i++) {
+            if (buf.get(i) != 0) {
+                buf.put(i, (byte) 0);
+                dirty = true;
+            }
+        }
+        for (; i + 8 <= end; i += 8) {
+            if (buf.getLong(i) != 0) {
+                buf.putLong(i, 0);
+                dirty = true;
+            }
+        }
+        for (; i < end; i++) {
+            if (buf.get(i) != 0) {
+                buf.put(i, (byte) 0);
+                dirty = true;
+            }
+        }
+        return dirty;
+    }
+
+    /**
+     * Makes the creation, renaming and deletion of files in a directory
+     * durable. Not every platform allows a directory to be opened; there
+     * is nothing else that can be done there so the error is ignored.
+     */
+    static void syncDirectory(File dir) {
+        if (DirectoryChannel.SUPPORTED) {
+            DirectoryChannel.force(dir);
+        }
+    }
+
+    /**
+     * Keeps the java.nio.file references out of the journal so that it
+     * still loads where that package is missing, like Android before
+     * API 26. The directory is simply not forced there.
+     */
+    private static final class DirectoryChannel {
+        static final boolean SUPPORTED = exists("java.nio.file.StandardOpenOption");
+
+        static boolean exists(String className) {
+            try {
+                Class.forName(className);
+                return true;
+            }
+            catch (ClassNotFoundException e) {
+                return false;
+            }
+        }
+
+        static void force(File dir) {
+            try (FileChannel ch = FileChannel.open(
+                    dir.toPath(),
+                    java.nio.file.StandardOpenOption.READ
+            )) {
+                ch.force(true);
+            }
+            catch (IOException ignored) {
+            }
+        }
+    }
+
+    private int checksum(long seq, byte[] payload, int n) {
+        crc.reset();
+        seqBytes.clear();
+        seqBytes.putLong(seq);
+        crc.update(seqBytes.array(), 0, 8);
+        crc.update(payload, 0, n);
+        return (int) crc.getValue();
+    }
+
+    static String name(long firstSeq) {
+        return String.format(Locale.ROOT, "%020d%s", firstSeq, SUFFIX);
+    }
+
+    static long firstSeq(File f) {
+        String name = f.getName();
+        return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+    }
+
+    static File[] segments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+}
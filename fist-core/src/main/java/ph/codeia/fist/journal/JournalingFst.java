@@ -0,0 +1,110 @@
+package ph.codeia.fist.journal;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.io.IOException;
+
+import ph.codeia.fist.Effects;
+import ph.codeia.fist.Fn;
+import ph.codeia.fist.Fst;
+import ph.codeia.fist.Mi;
+import ph.codeia.fist.Mu;
+
+/**
+ * Writes every state that a machine enters to a {@link Journal}.
+ * <p>
+ * Every executed action is {@link Mu#tap(Mu.Action, Fn.Proc) tapped}, so the
+ * states entered through forwards, async blocks and deferred continuations
+ * are journaled too, in the order the machine enters them. A reenter writes
+ * the current state again since it may have been mutated in place.
+ * <p>
+ * A failed append is raised as an {@link AppendException} before the
+ * state is entered, which the machine passes to {@link
+ * Effects#handle(Throwable)}; the state is not entered in that case.
+ * <p>
+ * Use {@link #restore(Journal, Object, Fst.Builder)} to start from the last
+ * journaled state. Give the journal a {@link SnapshotStore} to keep that
+ * bounded as the history grows.
+ *
+ * @param <S> The state type
+ */
+public class JournalingFst<S> implements Fst<S> {
+
+    /**
+     * Wraps the error of a failed append so that it can be raised from an
+     * action.
+     */
+    public static final class AppendException extends RuntimeException {
+        AppendException(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+
+    /**
+     * Builds a machine in the last state found in the journal.
+     *
+     * @param journal The journal to recover from and append to
+     * @param initial The state to start with if the journal is empty
+     * @param builder Builds the underlying machine
+     * @param <S> The state type
+     * @return a journaling machine
+     */
+    public static <S> JournalingFst<S> restore(
+            Journal<S> journal,
+            S initial,
+            Fst.Builder builder
+    ) {
+        return new JournalingFst<>(builder.build(journal.recover(initial)), journal);
+    }
+
+    private final Fst<S> delegate;
+    private final Fn.Proc<S> append;
+
+    /**
+     * @param delegate The machine to observe
+     * @param journal The journal to append to; not closed by this machine
+     */
+    public JournalingFst(Fst<S> delegate, Journal<S> journal) {
+        this.delegate = delegate;
+        append = state -> {
+            try {
+                journal.append(state);
+            }
+            catch (IOException e) {
+                throw new AppendException(e);
+            }
+        };
+    }
+
+    @Override
+    public void start(Effects<S> effects) {
+        delegate.start(effects);
+    }
+
+    @Override
+    public void stop() {
+        delegate.stop();
+    }
+
+    @Override
+    public void exec(Effects<S> effects, Mu.Action<S> action) {
+        delegate.exec(effects, Mu.tap(action, append));
+    }
+
+    @Override
+    public <E extends Effects<S>> void exec(E effects, Mi.Action<S, E> action) {
+        delegate.exec(effects, Mi.tap(action, append));
+    }
+
+    @Override
+    public <T> T project(Fn.Func<S, T> projection) {
+        return delegate.project(projection);
+    }
+}
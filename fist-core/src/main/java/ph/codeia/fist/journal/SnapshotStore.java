@@ -0,0 +1,264 @@
+package ph.codeia.fist.journal;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps binary snapshots of a state in a directory.
+ * <p>
+ * A snapshot file is a magic number, the sequence number of the journal
+ * record it was taken at, the payload length and a CRC32, followed by the
+ * state encoded with a {@link StateCodec}. It is written to a temporary file,
+ * forced to disk and then renamed, and the directory is forced after the
+ * rename, so a crash never leaves a partial file under a snapshot name. Only
+ * the newest few snapshots are kept.
+ * <p>
+ * Given to a {@link Journal.Builder#snapshots(SnapshotStore) journal}, a
+ * snapshot is taken every so many records or bytes appended and the journal
+ * segments that it covers are deleted. On open, the journal reads the latest
+ * valid snapshot and only scans the segments written after it, so recovery
+ * time does not grow with the length of the history.
+ *
+ * @param <S> The state type
+ */
+public final class SnapshotStore<S> {
+
+    public static class Builder<S> {
+        private final File dir;
+        private final StateCodec<S> codec;
+        private long records = Long.MAX_VALUE;
+        private long bytes = Long.MAX_VALUE;
+        private int retain = 2;
+
+        /**
+         * @param dir The directory of the snapshot files; created if missing
+         * @param codec The state codec
+         */
+        public Builder(File dir, StateCodec<S> codec) {
+            this.dir = dir;
+            this.codec = codec;
+        }
+
+        /**
+         * Takes a snapshot after this many journal records since the last
+         * one. Unlimited by default.
+         *
+         * @param count At least 1
+         * @return this
+         */
+        public Builder<S> everyRecords(long count) {
+            if (count < 1) {
+                throw new IllegalArgumentException("count must be at least 1");
+            }
+            records = count;
+            return this;
+        }
+
+        /**
+         * Takes a snapshot after this many bytes of journal records since
+         * the last one. Unlimited by default.
+         *
+         * @param size At least 1
+         * @return this
+         */
+        public Builder<S> everyBytes(long size) {
+            if (size < 1) {
+                throw new IllegalArgumentException("size must be at least 1");
+            }
+            bytes = size;
+            return this;
+        }
+
+        /**
+         * Sets how many snapshots are kept. Default is 2, so that a corrupt
+         * newest snapshot can fall back to the one before it.
+         *
+         * @param snapshots At least 1
+         * @return this
+         */
+        public Builder<S> retain(int snapshots) {
+            if (snapshots < 1) {
+                throw new IllegalArgumentException("must retain at least 1 snapshot");
+            }
+            retain = snapshots;
+            return this;
+        }
+
+        /**
+         * @return the store
+         * @throws IOException if the directory can't be created
+         */
+        public SnapshotStore<S> build() throws IOException {
+            if (!dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("cannot create " + dir);
+            }
+            return new SnapshotStore<>(this);
+        }
+    }
+
+    /**
+     * A state and the sequence number of the journal record it was taken at.
+     *
+     * @param <S> The state type
+     */
+    public static final class Snapshot<S> {
+        public final long seq;
+        public final S state;
+
+        Snapshot(long seq, S state) {
+            this.seq = seq;
+            this.state = state;
+        }
+    }
+
+    static final int MAGIC = 0x46535431;  // "FST1"
+    static final int HEADER = 20;
+    static final String SUFFIX = ".snapshot";
+
+    private final File dir;
+    private final StateCodec<S> codec;
+    private final long everyRecords;
+    private final long everyBytes;
+    private final int retain;
+
+    private SnapshotStore(Builder<S> b) {
+        dir = b.dir;
+        codec = b.codec;
+        everyRecords = b.records;
+        everyBytes = b.bytes;
+        retain = b.retain;
+    }
+
+    /**
+     * Writes a snapshot and deletes the old ones.
+     *
+     * @param seq The sequence number of the last record the state reflects
+     * @param state The state to save
+     * @throws IOException if the state can't be encoded or written
+     */
+    public void save(long seq, S state) throws IOException {
+        Journal.Bytes bytes = new Journal.Bytes();
+        codec.encode(state, new DataOutputStream(bytes));
+        save(seq, bytes.array(), bytes.size());
+    }
+
+    /**
+     * Reads the newest snapshot that is intact.
+     *
+     * @return the snapshot or null if there is none
+     * @throws IOException if a snapshot file can't be read
+     */
+    public Snapshot<S> latest() throws IOException {
+        File[] files = list(dir);
+        for (int i = files.length - 1; i >= 0; i--) {
+            Snapshot<S> s = read(files[i]);
+            if (s != null) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    StateCodec<S> codec() {
+        return codec;
+    }
+
+    boolean isDue(long records, long bytes) {
+        return records >= everyRecords || bytes >= everyBytes;
+    }
+
+    void save(long seq, byte[] payload, int length) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, length);
+        ByteBuffer header = ByteBuffer.allocate(HEADER)
+                .putInt(MAGIC)
+                .putLong(seq)
+                .putInt(length)
+                .putInt((int) crc.getValue());
+        header.flip();
+        ByteBuffer body = ByteBuffer.wrap(payload, 0, length);
+        File tmp = new File(dir, name(seq) + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            FileChannel ch = out.getChannel();
+            ByteBuffer[] buffers = {header, body};
+            while (header.hasRemaining() || body.hasRemaining()) {
+                ch.write(buffers);
+            }
+            ch.force(true);
+        }
+        File dest = new File(dir, name(seq));
+        if (!tmp.renameTo(dest)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            throw new IOException("cannot rename " + tmp + " to " + dest);
+        }
+        File[] files = list(dir);
+        for (int i = 0; i < files.length - retain; i++) {
+            //noinspection ResultOfMethodCallIgnored
+            files[i].delete();
+        }
+        Journal.syncDirectory(dir);
+    }
+
+    private Snapshot<S> read(File f) throws IOException {
+        try (FileInputStream in = new FileInputStream(f)) {
+            FileChannel ch = in.getChannel();
+            long size = ch.size();
+            if (size < HEADER || size > Integer.MAX_VALUE) {
+                return null;
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining()) {
+                if (ch.read(buf) < 0) {
+                    throw new EOFException("truncated snapshot " + f);
+                }
+            }
+            buf.flip();
+            if (buf.remaining() < HEADER || buf.getInt() != MAGIC) {
+                return null;
+            }
+            long seq = buf.getLong();
+            int n = buf.getInt();
+            int sum = buf.getInt();
+            if (n < 0 || n != buf.remaining()) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buf.array(), HEADER, n);
+            if ((int) crc.getValue() != sum) {
+                return null;
+            }
+            S state = codec.decode(new DataInputStream(
+                    new ByteArrayInputStream(buf.array(), HEADER, n)));
+            return new Snapshot<>(seq, state);
+        }
+    }
+
+    static String name(long seq) {
+        return String.format(Locale.ROOT, "%020d%s", seq, SUFFIX);
+    }
+
+    static File[] list(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        Arrays.sort(files);
+        return files;
+    }
+}
@@ -0,0 +1,34 @@
+package ph.codeia.fist.journal;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Converts states to and from bytes.
+ * <p>
+ * A codec must be able to decode everything it has ever encoded, so add new
+ * fields at the end and give them defaults when they are missing.
+ *
+ * @param <S> The state type
+ */
+public interface StateCodec<S> {
+
+    /**
+     * @param state The state to write
+     * @param out The sink
+     * @throws IOException if the sink fails
+     */
+    void encode(S state, DataOutput out) throws IOException;
+
+    /**
+     * @param in The bytes written by {@link #encode(Object, DataOutput)}
+     * @return the state
+     * @throws IOException if the bytes are malformed
+     */
+    S decode(DataInput in) throws IOException;
+}
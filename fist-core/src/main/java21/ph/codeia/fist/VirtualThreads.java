@@ -0,0 +1,30 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+/**
+ * Provides a thread-per-task executor for async actions.
+ * <p>
+ * This is the JDK 21+ version; every task is run in a new virtual thread.
+ */
+final class VirtualThreads {
+
+    private static class Holder {
+        static final Executor INSTANCE = Executors.newThreadPerTaskExecutor(
+                Thread.ofVirtual().name("fist-worker-", 0).factory());
+    }
+
+    /**
+     * @return the shared thread-per-task executor.
+     */
+    static Executor executor() {
+        return Holder.INSTANCE;
+    }
+
+    private VirtualThreads() {}
+}
@@ -0,0 +1,86 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class AllocationFreeExecTest {
+
+    static final int N = 200_000;
+    static final Mu<Integer> ENTER = Mu.enter(1);
+    static final Mu<Integer> REENTER = Mu.reenter();
+    static final Mu<Integer> NOOP = Mu.noop();
+    static final Mi<Integer, Effects<Integer>> MI_ENTER = Mi.enter(1);
+
+    final Effects<Integer> fx = n -> {};
+    final Mu.Action<Integer> enter = n -> ENTER;
+    final Mu.Action<Integer> reenter = n -> REENTER;
+    final Mu.Action<Integer> noop = n -> NOOP;
+    final Mi.Action<Integer, Effects<Integer>> miEnter = (n, e) -> MI_ENTER;
+    com.sun.management.ThreadMXBean threads;
+
+    @Before
+    public void setUp() {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    long allocatedBy(Fst<Integer> fst) {
+        for (int i = 0; i < N; i++) {
+            run(fst);
+        }
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < N; i++) {
+            run(fst);
+        }
+        return threads.getThreadAllocatedBytes(id) - before;
+    }
+
+    void run(Fst<Integer> fst) {
+        fst.exec(fx, enter);
+        fst.exec(fx, reenter);
+        fst.exec(fx, noop);
+        fst.exec(fx, miEnter);
+    }
+
+    @Test
+    public void blocking_fst() {
+        assertTrue(allocatedBy(new BlockingFst<>(0)) < N);
+    }
+
+    @Test
+    public void tracking_fst() {
+        TrackingFst<Integer> fst = new TrackingFst<Integer>(0) {
+            @Override
+            public void exec(Effects<Integer> effects, Mu.Action<Integer> action) {
+                super.exec(effects, action);
+                didNothing();
+            }
+
+            @Override
+            public <E extends Effects<Integer>> void exec(E effects, Mi.Action<Integer, E> action) {
+                super.exec(effects, action);
+                didNothing();
+            }
+        };
+        assertTrue(allocatedBy(fst) < N);
+    }
+
+    @Test
+    public void unconfined_fst() {
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        fst.start(fx);
+        assertTrue(allocatedBy(fst) < N);
+    }
+}
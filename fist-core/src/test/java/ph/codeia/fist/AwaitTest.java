@@ -0,0 +1,93 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AwaitTest {
+
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    final CountDownLatch raised = new CountDownLatch(1);
+    final Effects<Integer> fx = new Effects<Integer>() {
+        @Override
+        public void onEnter(Integer state) {
+        }
+
+        @Override
+        public void handle(Throwable e) {
+            error.set(e);
+            raised.countDown();
+        }
+    };
+
+    @Test
+    public void resumes_when_the_future_completes() {
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        fst.start(fx);
+        CompletableFuture<Mu.Action<Integer>> future = new CompletableFuture<>();
+        fst.exec(fx, n -> Mu.await(future));
+        fst.inspect(n -> assertEquals(0, n.intValue()));
+        future.complete(Mu.Action.pure(1));
+        fst.inspect(n -> assertEquals(1, n.intValue()));
+    }
+
+    @Test
+    public void already_completed_future_resumes_immediately() {
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        fst.start(fx);
+        fst.exec(fx, (n, e) -> Mi.await(CompletableFuture.completedFuture(Mi.Action.pure(5))));
+        fst.inspect(n -> assertEquals(5, n.intValue()));
+    }
+
+    @Test
+    public void failure_is_raised_unwrapped() {
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        fst.start(fx);
+        CompletableFuture<Mu.Action<Integer>> future = new CompletableFuture<>();
+        fst.exec(fx, n -> Mu.await(future.thenApply(a -> a)));
+        future.completeExceptionally(new IOException("offline"));
+        assertTrue(error.get() instanceof IOException);
+    }
+
+    @Test
+    public void null_result_is_a_noop() {
+        Fst<Integer> fst = new BlockingFst<>(3);
+        fst.exec(fx, n -> Mu.await(CompletableFuture.completedFuture(null)));
+        fst.inspect(n -> assertEquals(3, n.intValue()));
+        assertNull(error.get());
+    }
+
+    @Test(timeout = 1000)
+    public void blocking_machine_waits_for_the_future() {
+        Fst<Integer> fst = new BlockingFst<>(0);
+        fst.exec(fx, n -> Mu.await(CompletableFuture.supplyAsync(() -> Mu.Action.pure(n + 7))));
+        fst.inspect(n -> assertEquals(7, n.intValue()));
+    }
+
+    @Test(timeout = 1000)
+    public void stepping_machine_waits_for_the_future() {
+        SteppingFst<Integer, ?> fst = SteppingFst.of(0);
+        fst.exec(n -> Mu.await(CompletableFuture.supplyAsync(() -> Mu.Action.pure(n + 7))));
+        assertEquals(7, fst.drain().intValue());
+    }
+
+    @Test(timeout = 1000)
+    public void incomplete_future_times_out() throws InterruptedException {
+        Fst<Integer> fst = new AsyncFst.Builder().timeout(30).build(0);
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.await(new CompletableFuture<>()));
+        assertTrue(raised.await(500, TimeUnit.MILLISECONDS));
+        assertTrue(error.get() instanceof TimeoutException);
+    }
+}
@@ -0,0 +1,91 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+
+public class BatchDispatchTest {
+
+    final Queue<Runnable> main = new ArrayDeque<>();
+    final List<Integer> rendered = new ArrayList<>();
+    final Effects<Integer> fx = rendered::add;
+
+    void runMain() {
+        while (!main.isEmpty()) {
+            main.remove().run();
+        }
+    }
+
+    @Test
+    public void unbatched_machine_hops_once_per_action() {
+        Fst<Integer> fst = new ExecutorFst.Builder(main::add).build(0);
+        fst.start(fx);
+        for (int i = 0; i < 3; i++) {
+            fst.exec(fx, n -> Mu.enter(n + 1));
+        }
+        assertEquals(3, main.size());
+        runMain();
+        assertEquals(Arrays.asList(0, 1, 2, 3), rendered);
+    }
+
+    @Test
+    public void batched_machine_hops_once_per_burst() {
+        Fst<Integer> fst = new ExecutorFst.Builder(main::add).batchDispatch().build(0);
+        fst.start(fx);
+        for (int i = 0; i < 3; i++) {
+            fst.exec(fx, n -> Mu.enter(n + 1));
+        }
+        assertEquals(1, main.size());
+        runMain();
+        assertEquals(Arrays.asList(0, 1, 2, 3), rendered);
+
+        fst.exec(fx, n -> Mu.enter(n * 10));
+        assertEquals(1, main.size());
+        runMain();
+        fst.inspect(n -> assertEquals(30, n.intValue()));
+    }
+
+    @Test
+    public void enter_once_renders_the_final_state_of_the_batch() {
+        Fst<Integer> fst = new ExecutorFst.Builder(main::add).batchDispatch(true).build(0);
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.enterMany(n + 1, n + 2));
+        fst.exec(fx, n -> Mu.noop());
+        fst.exec(fx, n -> Mu.enter(n + 10));
+        runMain();
+        assertEquals(Arrays.asList(0, 12), rendered);
+
+        fst.exec(fx, n -> Mu.noop());
+        runMain();
+        assertEquals(Arrays.asList(0, 12), rendered);
+    }
+
+    @Test
+    public void actions_posted_during_a_flush_ride_along() {
+        Fst<Integer> fst = new ExecutorFst.Builder(main::add).batchDispatch().build(0);
+        Effects<Integer> reentrant = new Effects<Integer>() {
+            @Override
+            public void onEnter(Integer n) {
+                rendered.add(n);
+                if (n == 1) {
+                    fst.exec(this, i -> Mu.enter(i + 1));
+                }
+            }
+        };
+        fst.start(reentrant);
+        fst.exec(reentrant, n -> Mu.enter(n + 1));
+        main.remove().run();
+        assertTrue(main.isEmpty());
+        assertEquals(Arrays.asList(0, 1, 2), rendered);
+    }
+}
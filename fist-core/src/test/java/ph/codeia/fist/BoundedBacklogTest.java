@@ -0,0 +1,172 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BoundedBacklogTest {
+
+    static final Executor SYNC = Runnable::run;
+
+    final List<Integer> rendered = Collections.synchronizedList(new ArrayList<>());
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<>());
+    final Effects<Integer> fx = new Effects<Integer>() {
+        @Override
+        public void onEnter(Integer state) {
+            rendered.add(state);
+        }
+
+        @Override
+        public void handle(Throwable error) {
+            errors.add(error);
+        }
+    };
+
+    AsyncFst<Integer> build(int capacity, Overflow overflow) {
+        return (AsyncFst<Integer>) new AsyncFst.Builder()
+                .receiveOn(SYNC)
+                .backlog(capacity, overflow)
+                .build(0);
+    }
+
+    void push(Fst<Integer> fst, int... values) {
+        for (int v : values) {
+            fst.exec(fx, n -> Mu.enter(v));
+        }
+    }
+
+    @Test
+    public void unbounded_by_default() {
+        AsyncFst<Integer> fst = (AsyncFst<Integer>) new AsyncFst.Builder().receiveOn(SYNC).build(0);
+        for (int i = 0; i < 1000; i++) {
+            push(fst, i);
+        }
+        assertEquals(1000, fst.backlogSize());
+        fst.start(fx);
+        assertEquals(0, fst.backlogSize());
+        assertEquals(1001, rendered.size());
+    }
+
+    @Test
+    public void drop_newest_keeps_the_first_actions() {
+        AsyncFst<Integer> fst = build(2, Overflow.DROP_NEWEST);
+        push(fst, 1, 2, 3, 4);
+        assertEquals(2, fst.backlogSize());
+        fst.start(fx);
+        assertEquals(Arrays.asList(0, 1, 2), rendered);
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void drop_oldest_keeps_the_last_actions() {
+        AsyncFst<Integer> fst = build(2, Overflow.DROP_OLDEST);
+        push(fst, 1, 2, 3, 4, 5);
+        assertEquals(2, fst.backlogSize());
+        fst.start(fx);
+        assertEquals(Arrays.asList(0, 4, 5), rendered);
+        assertEquals(0, fst.backlogSize());
+    }
+
+    @Test
+    public void fail_reports_the_rejected_action() {
+        AsyncFst<Integer> fst = build(1, Overflow.FAIL);
+        push(fst, 1, 2, 3);
+        assertEquals(1, fst.backlogSize());
+        assertEquals(2, errors.size());
+        assertTrue(errors.get(0) instanceof RejectedExecutionException);
+        fst.start(fx);
+        assertEquals(Arrays.asList(0, 1), rendered);
+    }
+
+    @Test(timeout = 2000)
+    public void block_waits_until_the_machine_replays() throws InterruptedException {
+        AsyncFst<Integer> fst = build(1, Overflow.BLOCK);
+        push(fst, 1);
+        CountDownLatch sent = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            push(fst, 2);
+            sent.countDown();
+        });
+        producer.start();
+        assertFalse(sent.await(100, TimeUnit.MILLISECONDS));
+        fst.start(fx);
+        assertTrue(sent.await(1, TimeUnit.SECONDS));
+        producer.join();
+        assertEquals(2, fst.project(n -> n).intValue());
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test(timeout = 2000)
+    public void block_never_parks_the_timer_thread() throws InterruptedException {
+        AsyncFst<Integer> fst = build(1, Overflow.BLOCK);
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.delay(20, TimeUnit.MILLISECONDS, Mu.Action.pure(1)));
+        fst.stop();
+        push(fst, 2);
+
+        CountDownLatch fired = new CountDownLatch(1);
+        Fst<Integer> other = new UnconfinedFst<>(0);
+        Effects<Integer> otherFx = n -> {
+            if (n == 1) {
+                fired.countDown();
+            }
+        };
+        other.start(otherFx);
+        Thread.sleep(50);
+        other.exec(otherFx, n -> Mu.delay(10, TimeUnit.MILLISECONDS, Mu.Action.pure(1)));
+        assertTrue(fired.await(1, TimeUnit.SECONDS));
+
+        rendered.clear();
+        fst.start(fx);
+        assertEquals(Arrays.asList(0, 2, 1), rendered);
+        assertEquals(0, fst.backlogSize());
+    }
+
+    @Test(timeout = 2000)
+    public void interrupted_block_is_rejected() throws InterruptedException {
+        AsyncFst<Integer> fst = build(1, Overflow.BLOCK);
+        push(fst, 1);
+        Thread producer = new Thread(() -> push(fst, 2));
+        producer.start();
+        Thread.sleep(50);
+        producer.interrupt();
+        producer.join();
+        assertEquals(1, errors.size());
+        assertTrue(errors.get(0) instanceof RejectedExecutionException);
+        assertEquals(1, fst.backlogSize());
+    }
+
+    @Test(timeout = 5000)
+    public void concurrent_drop_oldest_never_exceeds_capacity() throws InterruptedException {
+        AsyncFst<Integer> fst = build(16, Overflow.DROP_OLDEST);
+        Thread[] producers = new Thread[4];
+        for (int t = 0; t < producers.length; t++) {
+            producers[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    push(fst, i);
+                }
+            });
+            producers[t].start();
+        }
+        for (Thread t : producers) {
+            t.join();
+        }
+        assertEquals(16, fst.backlogSize());
+        fst.start(fx);
+        assertEquals(17, rendered.size());
+        assertEquals(0, fst.backlogSize());
+    }
+}
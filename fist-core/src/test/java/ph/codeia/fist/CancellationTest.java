@@ -0,0 +1,143 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class CancellationTest {
+
+    static final Executor SYNC = Runnable::run;
+
+    final List<Integer> rendered = Collections.synchronizedList(new ArrayList<>());
+    final Effects<Integer> fx = rendered::add;
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+
+    Callable<Mu.Action<Integer>> sleepThenEnter(int value) {
+        return () -> {
+            started.countDown();
+            try {
+                Thread.sleep(5_000);
+            }
+            catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return Mu.Action.pure(value);
+        };
+    }
+
+    AsyncFst<Integer> build(CancelPolicy policy) {
+        return (AsyncFst<Integer>) new AsyncFst.Builder()
+                .workOn(VirtualThreads.executor())
+                .receiveOn(SYNC)
+                .cancelOn(policy)
+                .build(0);
+    }
+
+    @Test(timeout = 2000)
+    public void receipt_cancels_the_action() throws InterruptedException {
+        AsyncFst<Integer> fst = build(CancelPolicy.KEEP_RUNNING);
+        AtomicReference<Cancellable> handle = new AtomicReference<>();
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.async(sleepThenEnter(1), handle::set));
+        assertNotNull(handle.get());
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        assertTrue(handle.get().cancel());
+        assertTrue(handle.get().isCancelled());
+        assertFalse(handle.get().cancel());
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(Collections.singletonList(0), rendered);
+    }
+
+    @Test(timeout = 2000)
+    public void cancelling_in_the_receipt_never_starts_the_action() throws InterruptedException {
+        AsyncFst<Integer> fst = build(CancelPolicy.KEEP_RUNNING);
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.async(() -> {
+            started.countDown();
+            return Mu.Action.pure(1);
+        }, Cancellable::cancel));
+        assertFalse(started.await(100, TimeUnit.MILLISECONDS));
+        assertEquals(Collections.singletonList(0), rendered);
+    }
+
+    @Test(timeout = 2000)
+    public void cancel_on_stop_interrupts_pending_actions() throws InterruptedException {
+        AsyncFst<Integer> fst = build(CancelPolicy.CANCEL_ON_STOP);
+        fst.start(fx);
+        fst.exec(fx, Mu.Action.pure(sleepThenEnter(1)));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        fst.stop();
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(0, fst.backlogSize());
+        fst.start(fx);
+        fst.inspect(n -> assertEquals(0, n.intValue()));
+    }
+
+    @Test(timeout = 2000)
+    public void keep_running_queues_the_result_while_stopped() throws InterruptedException {
+        AsyncFst<Integer> fst = build(CancelPolicy.KEEP_RUNNING);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch sent = new CountDownLatch(1);
+        fst.start(fx);
+        fst.exec(fx, Mu.Action.pure(() -> {
+            release.await();
+            return n -> {
+                sent.countDown();
+                return Mu.enter(1);
+            };
+        }));
+        fst.stop();
+        release.countDown();
+        while (fst.backlogSize() == 0) {
+            Thread.sleep(10);
+        }
+        fst.start(fx);
+        assertTrue(sent.await(1, TimeUnit.SECONDS));
+        fst.inspect(n -> assertEquals(1, n.intValue()));
+    }
+
+    @Test(timeout = 5000)
+    public void cancel_on_gc_interrupts_actions_of_collected_receivers() throws InterruptedException {
+        AsyncFst<Integer> fst = build(CancelPolicy.CANCEL_ON_GC);
+        Effects<Integer> temp = new AsyncLeakTest.Noop<>();
+        fst.start(temp);
+        fst.exec(temp, Mu.Action.pure(sleepThenEnter(1)));
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        temp = null;
+        fst.stop();
+        while (interrupted.getCount() > 0) {
+            System.gc();
+            fst.start(fx);
+            fst.stop();
+            interrupted.await(50, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(0, fst.backlogSize());
+    }
+
+    @Test
+    public void blocking_machine_hands_out_a_done_handle() {
+        AtomicReference<Cancellable> handle = new AtomicReference<>();
+        Fst<Integer> fst = new BlockingFst<>(0);
+        fst.exec(fx, n -> Mu.async(() -> Mu.Action.pure(1), handle::set));
+        assertSame(Cancellable.DONE, handle.get());
+        assertFalse(handle.get().cancel());
+        assertEquals(Collections.singletonList(1), rendered);
+    }
+}
@@ -0,0 +1,97 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CommandBufferTest {
+
+    static <S> List<S> entered(Mu<S> command) {
+        List<S> states = new ArrayList<>();
+        command.run(new Mu.Case<S>() {
+            @Override
+            public void noop() {
+            }
+
+            @Override
+            public void reenter() {
+            }
+
+            @Override
+            public void enter(S newState) {
+                states.add(newState);
+            }
+
+            @Override
+            public void forward(Mu.Action<S> action) {
+            }
+
+            @Override
+            public void async(java.util.concurrent.Callable<Mu.Action<S>> block) {
+            }
+
+            @Override
+            public void defer(Fn.Proc<Mu.Continuation<S>> block) {
+            }
+
+            @Override
+            public void raise(Throwable e) {
+            }
+        });
+        return states;
+    }
+
+    @Test
+    public void noop_and_reenter_are_shared() {
+        assertSame(Mu.noop(), Mu.noop());
+        assertSame(Mu.reenter(), Mu.reenter());
+        assertSame(Mi.noop(), Mi.noop());
+        assertSame(Mi.reenter(), Mi.reenter());
+    }
+
+    @Test
+    public void extending_a_shared_prefix_does_not_affect_siblings() {
+        Mu<Integer> prefix = Mu.enter(1).then(Mu.enter(2));
+        Mu<Integer> a = prefix.then(Mu.enter(3));
+        Mu<Integer> b = prefix.then(Mu.enter(4)).then(Mu.enter(5));
+        Mu<Integer> c = a.then(prefix);
+        assertEquals(Arrays.asList(1, 2), entered(prefix));
+        assertEquals(Arrays.asList(1, 2, 3), entered(a));
+        assertEquals(Arrays.asList(1, 2, 4, 5), entered(b));
+        assertEquals(Arrays.asList(1, 2, 3, 1, 2), entered(c));
+        assertEquals(Arrays.asList(1, 2, 3, 1, 2, 1, 2, 3, 1, 2), entered(c.then(c)));
+    }
+
+    @Test
+    public void appending_to_the_shared_noop_does_not_change_it() {
+        Mu<Integer> noop = Mu.noop();
+        assertEquals(Arrays.asList(1), entered(noop.then(Mu.enter(1))));
+        assertEquals(Arrays.asList(2), entered(noop.then(Mu.enter(2))));
+        assertTrue(entered(Mu.<Integer> noop()).isEmpty());
+    }
+
+    @Test
+    public void enter_many_skips_nulls() {
+        assertEquals(Arrays.asList(1, 3), entered(Mu.enterMany(1, null, 3)));
+        assertSame(Mu.noop(), Mu.enterMany((Integer) null));
+    }
+
+    @Test
+    public void long_chains_run_in_constant_stack_depth() {
+        Mu<Integer> command = Mu.noop();
+        for (int i = 0; i < 200_000; i++) {
+            command = command.then(Mu.enter(i));
+        }
+        List<Integer> states = entered(command);
+        assertEquals(200_000, states.size());
+        assertEquals(199_999, states.get(199_999).intValue());
+    }
+}
@@ -0,0 +1,125 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+
+import static org.junit.Assert.*;
+
+public class ConflationTest {
+
+    final Queue<Runnable> main = new ArrayDeque<>();
+    final List<Integer> rendered = new ArrayList<>();
+    final Effects<Integer> fx = rendered::add;
+
+    void runMain() {
+        while (!main.isEmpty()) {
+            main.remove().run();
+        }
+    }
+
+    @Test
+    public void no_conflation_renders_every_intermediate_state() {
+        Fst<Integer> fst = new BlockingFst<>(0);
+        fst.exec(fx, n -> Mu.enterMany(1, 2, 3));
+        assertEquals(Arrays.asList(1, 2, 3), rendered);
+    }
+
+    @Test
+    public void exec_conflation_renders_once_with_the_final_state() {
+        Fst<Integer> fst = new BlockingFst<>(0, Conflation.EXEC);
+        fst.exec(fx, n -> Mu.enterMany(1, 2, 3));
+        assertEquals(Collections.singletonList(3), rendered);
+
+        rendered.clear();
+        fst.exec(fx, n -> Mu.<Integer>enter(n + 1)
+                .then(Mu.reenter())
+                .then(m -> Mu.enter(m * 10)));
+        assertEquals(Collections.singletonList(40), rendered);
+    }
+
+    @Test
+    public void mealy_commands_are_conflated_too() {
+        Fst<Integer> fst = new BlockingFst<>(0, Conflation.EXEC);
+        fst.exec(fx, (n, e) -> Mi.<Integer, Effects<Integer>>enter(1)
+                .then(Mi.enter(2))
+                .then(Mi.enter(3)));
+        assertEquals(Collections.singletonList(3), rendered);
+    }
+
+    @Test
+    public void commands_without_enter_do_not_render() {
+        Fst<Integer> fst = new BlockingFst<>(0, Conflation.EXEC);
+        fst.exec(fx, n -> Mu.noop());
+        assertTrue(rendered.isEmpty());
+    }
+
+    @Test
+    public void enter_each_is_never_conflated() {
+        Fst<Integer> fst = new BlockingFst<>(0, Conflation.EXEC);
+        fst.exec(fx, n -> Mu.<Integer>enter(1)
+                .then(Mu.enterEach(-1, 2)));
+        assertEquals(Arrays.asList(-1, 2), rendered);
+
+        rendered.clear();
+        fst.exec(fx, n -> Mu.<Integer>enterEach(-1).then(Mu.enter(5)));
+        assertEquals(Arrays.asList(-1, 5), rendered);
+    }
+
+    @Test
+    public void state_is_committed_even_if_the_receiver_is_not_notified_yet() {
+        Fst<Integer> fst = new BlockingFst<>(0, Conflation.EXEC);
+        fst.exec(fx, n -> Mu.<Integer>enter(1).then(m -> {
+            assertEquals(1, m.intValue());
+            assertTrue(rendered.isEmpty());
+            return Mu.enter(m + 1);
+        }));
+        assertEquals(Collections.singletonList(2), rendered);
+    }
+
+    @Test
+    public void async_machine_conflates_per_exec() {
+        Fst<Integer> fst = new ExecutorFst.Builder(main::add)
+                .conflate(Conflation.EXEC)
+                .build(0);
+        fst.start(fx);
+        runMain();
+        rendered.clear();
+        fst.exec(fx, n -> Mu.enterMany(1, 2));
+        fst.exec(fx, n -> Mu.enterMany(3, 4));
+        runMain();
+        assertEquals(Arrays.asList(2, 4), rendered);
+    }
+
+    @Test
+    public void batch_conflation_renders_once_per_hop() {
+        Fst<Integer> fst = new ExecutorFst.Builder(main::add)
+                .batchDispatch()
+                .conflate(Conflation.BATCH)
+                .build(0);
+        fst.start(fx);
+        rendered.clear();
+        fst.exec(fx, n -> Mu.enterMany(1, 2));
+        fst.exec(fx, n -> Mu.enterEach(-1));
+        fst.exec(fx, n -> Mu.enterMany(3, 4));
+        runMain();
+        assertEquals(Arrays.asList(-1, 4), rendered);
+    }
+
+    @Test
+    public void converted_moore_actions_keep_every_step() {
+        Fst<Integer> fst = new BlockingFst<>(0);
+        fst.exec(fx, new MooreToMealy<Integer, Effects<Integer>>(
+                n -> Mu.<Integer>enter(1).then(Mu.enterEach(2)).then(Mu.enter(3))));
+        assertEquals(Arrays.asList(1, 2, 3), rendered);
+    }
+}
@@ -0,0 +1,100 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.*;
+
+public class EveryTest {
+
+    @Test(timeout = 2000)
+    public void runs_repeatedly_until_cancelled() throws InterruptedException {
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        CountDownLatch three = new CountDownLatch(3);
+        AtomicReference<Cancellable> handle = new AtomicReference<>();
+        Effects<Integer> fx = n -> {
+            if (n > 0) {
+                three.countDown();
+            }
+        };
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.every(20, MILLISECONDS, k -> Mu.enter(k + 1), handle::set));
+        assertTrue(three.await(1, TimeUnit.SECONDS));
+        assertTrue(handle.get().cancel());
+        int count = fst.project(n -> n);
+        Thread.sleep(100);
+        assertEquals(count, fst.project(n -> n).intValue());
+        assertTrue(handle.get().isCancelled());
+    }
+
+    @Test(timeout = 2000)
+    public void skips_ticks_while_stopped() throws InterruptedException {
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        AtomicInteger ticks = new AtomicInteger();
+        AtomicReference<Cancellable> handle = new AtomicReference<>();
+        Effects<Integer> fx = n -> {};
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.every(20, MILLISECONDS, k -> {
+            ticks.incrementAndGet();
+            return Mu.enter(k + 1);
+        }, handle::set));
+        Thread.sleep(70);
+        fst.stop();
+        int before = ticks.get();
+        assertTrue(before > 0);
+        Thread.sleep(200);
+        assertEquals(before, ticks.get());
+        fst.start(fx);
+        assertEquals("no burst of missed ticks", before, fst.project(n -> n).intValue());
+        Thread.sleep(70);
+        assertTrue(ticks.get() > before);
+        assertTrue(ticks.get() < before + 6);
+        handle.get().cancel();
+    }
+
+    @Test(timeout = 2000)
+    public void mealy_every() throws InterruptedException {
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        CountDownLatch two = new CountDownLatch(2);
+        AtomicReference<Cancellable> handle = new AtomicReference<>();
+        Effects<Integer> fx = n -> {};
+        fst.start(fx);
+        fst.exec(fx, (n, e) -> Mi.every(20, MILLISECONDS, (k, f) -> {
+            two.countDown();
+            return Mi.noop();
+        }, handle::set));
+        assertTrue(two.await(1, TimeUnit.SECONDS));
+        handle.get().cancel();
+    }
+
+    @Test
+    public void stepping_machine_ticks_on_a_grid() {
+        SteppingFst<Integer, ?> fst = SteppingFst.of(0);
+        AtomicReference<Cancellable> handle = new AtomicReference<>();
+        fst.exec(n -> Mu.every(100, MILLISECONDS, k -> Mu.enter(k + 1), handle::set));
+        assertEquals(0, fst.drain().intValue());
+        fst.advance(250, MILLISECONDS);
+        assertEquals(2, fst.drain().intValue());
+        fst.advance(50, MILLISECONDS);
+        assertEquals(3, fst.drain().intValue());
+        handle.get().cancel();
+        fst.advance(1, TimeUnit.SECONDS);
+        assertEquals(3, fst.drain().intValue());
+    }
+
+    @Test
+    public void blocking_machine_runs_it_once() {
+        Fst<Integer> fst = new BlockingFst<>(0);
+        fst.exec(n -> {}, n -> Mu.every(1, TimeUnit.HOURS, k -> Mu.enter(k + 1)));
+        assertEquals(1, fst.project(n -> n).intValue());
+    }
+}
@@ -0,0 +1,123 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FanOutTest {
+
+    final AtomicReference<List<Integer>> joined = new AtomicReference<>();
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    final CountDownLatch done = new CountDownLatch(1);
+    final Effects<Integer> fx = new Effects<Integer>() {
+        @Override
+        public void onEnter(Integer state) {
+        }
+
+        @Override
+        public void handle(Throwable e) {
+            error.set(e);
+            done.countDown();
+        }
+    };
+
+    Mu.Action<Integer> sum(List<Integer> xs) {
+        joined.set(xs);
+        done.countDown();
+        return n -> Mu.enter(xs.stream().mapToInt(Integer::intValue).sum());
+    }
+
+    static Callable<Integer> after(long millis, int value) {
+        return () -> {
+            Thread.sleep(millis);
+            return value;
+        };
+    }
+
+    Fst<Integer> async() {
+        Fst<Integer> fst = new AsyncFst.Builder()
+                .workOnVirtualThreads()
+                .timeout(1000)
+                .build(0);
+        fst.start(fx);
+        return fst;
+    }
+
+    @Test(timeout = 2000)
+    public void blocks_run_concurrently() throws InterruptedException {
+        Fst<Integer> fst = async();
+        long start = System.nanoTime();
+        fst.exec(fx, n -> Mu.all(this::sum, after(200, 1), after(200, 2), after(200, 3)));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("took " + elapsed + "ms", elapsed < 500);
+        assertEquals(Arrays.asList(1, 2, 3), joined.get());
+    }
+
+    @Test(timeout = 2000)
+    public void results_keep_the_order_of_the_blocks() throws InterruptedException {
+        Fst<Integer> fst = async();
+        fst.exec(fx, n -> Mu.all(this::sum, after(100, 1), after(0, 2), after(50, 3)));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList(1, 2, 3), joined.get());
+    }
+
+    @Test(timeout = 2000)
+    public void first_failure_cancels_the_rest() throws InterruptedException {
+        Fst<Integer> fst = async();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        fst.exec(fx, n -> Mu.all(this::sum, () -> {
+            try {
+                started.countDown();
+                Thread.sleep(5_000);
+                return 1;
+            }
+            catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+        }, () -> {
+            started.await();
+            throw new IOException("nope");
+        }));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof IOException);
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+        assertNull(joined.get());
+    }
+
+    @Test(timeout = 2000)
+    public void one_timeout_for_the_group() throws InterruptedException {
+        Fst<Integer> fst = new AsyncFst.Builder()
+                .workOnVirtualThreads()
+                .timeout(100)
+                .build(0);
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.all(this::sum, after(60, 1), after(60, 2), after(500, 3)));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof TimeoutException);
+    }
+
+    @Test
+    public void synchronous_machines_run_the_blocks_in_sequence() {
+        Fst<Integer> fst = new BlockingFst<>(0);
+        fst.exec(fx, (n, e) -> Mi.<Integer, Integer, Effects<Integer>>all(
+                xs -> (m, f) -> Mi.enter(xs.get(0) * 10 + xs.get(1)),
+                () -> 4, () -> 2));
+        fst.inspect(n -> assertEquals(42, n.intValue()));
+    }
+}
@@ -0,0 +1,173 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class FstMonitorTest {
+
+    static class Recorder implements FstMonitor {
+        final List<String> events = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void enqueued(long at) {
+            events.add("enqueued");
+        }
+
+        @Override
+        public void dispatched(long enqueuedAt, long at) {
+            assertTrue(at >= enqueuedAt);
+            events.add("dispatched");
+        }
+
+        @Override
+        public void applied(long dispatchedAt, long at) {
+            assertTrue(at >= dispatchedAt);
+            events.add("applied");
+        }
+
+        @Override
+        public void entered(long at) {
+            events.add("entered");
+        }
+
+        @Override
+        public void asyncStarted(long at, int pending) {
+            events.add("started " + pending);
+        }
+
+        @Override
+        public void asyncFinished(long startedAt, long at, int pending) {
+            events.add("finished " + pending);
+        }
+
+        @Override
+        public void timedOut(long startedAt, long at) {
+            events.add("timed out");
+        }
+    }
+
+    @Test
+    public void blocking_machine_reports_every_phase() {
+        Recorder monitor = new Recorder();
+        Fst<Integer> fst = new BlockingFst<>(0, Conflation.NONE, monitor);
+        fst.exec(n -> {}, n -> Mu.async(() -> Mu.Action.pure(n + 1)));
+        assertEquals(
+                "[enqueued, dispatched, started 1, finished 0, entered, applied]",
+                monitor.events.toString()
+        );
+    }
+
+    @Test
+    public void unconfined_machine_reports_every_phase() {
+        Recorder monitor = new Recorder();
+        Fst<Integer> fst = new AsyncFst.Builder()
+                .workOn(Runnable::run)
+                .monitor(monitor)
+                .build(0);
+        Effects<Integer> fx = n -> {};
+        fst.start(fx);
+        monitor.events.clear();
+        fst.exec(fx, n -> Mu.async(() -> Mu.Action.pure(n + 1)));
+        assertEquals(
+                "[enqueued, dispatched, started 1, finished 0, dispatched, "
+                        + "entered, applied, applied]",
+                monitor.events.toString()
+        );
+    }
+
+    @Test
+    public void replayed_actions_are_only_counted_once() {
+        Recorder monitor = new Recorder();
+        Fst<Integer> fst = new AsyncFst.Builder()
+                .receiveOn(Runnable::run)
+                .monitor(monitor)
+                .build(0);
+        Effects<Integer> fx = n -> {};
+        fst.exec(fx, n -> Mu.enter(n + 1));
+        fst.start(fx);
+        assertEquals(1, Collections.frequency(monitor.events, "enqueued"));
+        assertEquals(1, Collections.frequency(monitor.events, "dispatched"));
+    }
+
+    @Test(timeout = 2000)
+    public void reports_timeouts() throws InterruptedException {
+        Recorder monitor = new Recorder();
+        CountDownLatch raised = new CountDownLatch(1);
+        Fst<Integer> fst = new AsyncFst.Builder()
+                .timeout(20, TimeUnit.MILLISECONDS)
+                .monitor(monitor)
+                .build(0);
+        Effects<Integer> fx = new Effects<Integer>() {
+            @Override
+            public void onEnter(Integer state) {
+            }
+
+            @Override
+            public void handle(Throwable e) {
+                raised.countDown();
+            }
+        };
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.defer(k -> {}));
+        assertTrue(raised.await(1, TimeUnit.SECONDS));
+        assertTrue(monitor.events.contains("timed out"));
+        assertTrue(monitor.events.indexOf("timed out") < monitor.events.indexOf("finished 0"));
+    }
+
+    @Test(timeout = 5000)
+    public void metrics_count_and_time_everything() throws InterruptedException {
+        FstMetrics metrics = new FstMetrics();
+        int n = 100;
+        CountDownLatch done = new CountDownLatch(n);
+        Fst<Integer> fst = new ExecutorFst.Builder(Executors.newSingleThreadExecutor())
+                .monitor(metrics)
+                .build(0);
+        Effects<Integer> fx = k -> {
+            if (k > 0) {
+                done.countDown();
+            }
+        };
+        fst.start(fx);
+        for (int i = 0; i < n; i++) {
+            fst.exec(fx, k -> Mu.async(() -> Mu.Action.pure(k + 1)));
+        }
+        assertTrue(done.await(4, TimeUnit.SECONDS));
+        assertEquals(n, metrics.execs());
+        assertEquals(n, metrics.asyncs());
+        assertEquals(0, metrics.pending());
+        assertEquals(n, metrics.asyncLatency().count());
+        assertEquals(0, metrics.timeouts());
+        assertTrue(metrics.enters() >= n);
+        FstMetrics.Histogram hops = metrics.hopLatency();
+        assertEquals(2 * n, hops.count());
+        assertTrue(hops.percentile(0.5) <= hops.percentile(0.99));
+        assertTrue(hops.percentile(1) <= hops.max());
+    }
+
+    @Test
+    public void histogram_percentiles_are_bucket_upper_bounds() {
+        FstMetrics.Histogram h = new FstMetrics.Histogram();
+        for (int i = 1; i <= 100; i++) {
+            h.record(i * 1000);
+        }
+        assertEquals(100, h.count());
+        assertEquals(100_000, h.max());
+        assertEquals(50, h.mean(TimeUnit.MICROSECONDS));
+        long p50 = h.percentile(0.5);
+        assertTrue(p50 >= 50_000 && p50 < 100_000);
+        assertEquals(100_000, h.percentile(1));
+        assertEquals(0, new FstMetrics.Histogram().percentile(0.99));
+    }
+}
@@ -0,0 +1,126 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class FstRuntimeTest {
+
+    final FstRuntime runtime = new FstRuntime(2);
+
+    @After
+    public void tearDown() {
+        runtime.shutdown();
+    }
+
+    @Test
+    public void loops_are_handed_out_round_robin() {
+        Executor a = runtime.next();
+        Executor b = runtime.next();
+        assertNotSame(a, b);
+        assertSame(a, runtime.next());
+        assertSame(b, runtime.next());
+    }
+
+    @Test(timeout = 10_000)
+    public void many_machines_share_a_few_threads() throws InterruptedException {
+        int n = 10_000;
+        AsyncFst.Builder builder = new AsyncFst.Builder().runOn(runtime);
+        Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        CountDownLatch replayed = new CountDownLatch(n);
+        Effects<Integer> fx = i -> {
+            if (i == 1) {
+                threads.add(Thread.currentThread().getName());
+                replayed.countDown();
+            }
+        };
+        List<Fst<Integer>> machines = new ArrayList<>();
+        for (int i = 0; i < n; i++) {
+            Fst<Integer> fst = builder.build(0);
+            fst.exec(fx, s -> Mu.enter(s + 1));
+            machines.add(fst);
+        }
+        int before = Thread.activeCount();
+        for (Fst<Integer> fst : machines) {
+            fst.start(fx);
+        }
+        replayed.await();
+        assertTrue(Thread.activeCount() - before <= runtime.size());
+        assertTrue(threads.size() <= runtime.size());
+    }
+
+    @Test(timeout = 1000)
+    public void a_machine_is_always_replayed_in_the_same_loop() throws InterruptedException {
+        Fst<Integer> fst = new AsyncFst.Builder().runOn(runtime).build(0);
+        Set<String> threads = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        Effects<Integer> fx = i -> threads.add(Thread.currentThread().getName());
+        for (int i = 0; i < 10; i++) {
+            CountDownLatch done = new CountDownLatch(1);
+            fst.exec(fx, s -> {
+                done.countDown();
+                return Mu.enter(s + 1);
+            });
+            fst.start(fx);
+            done.await();
+            fst.stop();
+        }
+        threads.remove(Thread.currentThread().getName());
+        assertEquals(1, threads.size());
+    }
+
+    @Test(timeout = 1000)
+    public void a_loop_survives_an_error_in_a_task() throws InterruptedException {
+        Executor loop = runtime.next();
+        CountDownLatch done = new CountDownLatch(1);
+        loop.execute(() -> {
+            throw new AssertionError("thrown on purpose");
+        });
+        loop.execute(done::countDown);
+        done.await();
+    }
+
+    @Test(timeout = 10_000)
+    public void tasks_racing_a_shutdown_are_either_run_or_rejected() throws InterruptedException {
+        for (int round = 0; round < 2000; round++) {
+            FstRuntime racing = new FstRuntime(1);
+            Executor loop = racing.next();
+            AtomicInteger ran = new AtomicInteger();
+            AtomicInteger accepted = new AtomicInteger();
+            Thread submitter = new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    try {
+                        loop.execute(ran::incrementAndGet);
+                        accepted.incrementAndGet();
+                    }
+                    catch (RejectedExecutionException e) {
+                        return;
+                    }
+                }
+            });
+            submitter.start();
+            racing.shutdown();
+            submitter.join();
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+            while (ran.get() < accepted.get() && System.nanoTime() < deadline) {
+                Thread.sleep(1);
+            }
+            assertEquals(accepted.get(), ran.get());
+        }
+    }
+}
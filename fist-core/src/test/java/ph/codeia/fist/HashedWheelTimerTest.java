@@ -0,0 +1,84 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class HashedWheelTimerTest {
+
+    final HashedWheelTimer timer = new HashedWheelTimer(1, TimeUnit.MILLISECONDS, 64);
+
+    @Test(timeout = 1000)
+    public void runs_the_task_after_the_delay() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        HashedWheelTimer.Timeout t = timer.schedule(done::countDown, 50, TimeUnit.MILLISECONDS);
+        done.await();
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertTrue(t.isExpired());
+        assertFalse(t.cancel());
+    }
+
+    @Test(timeout = 2000)
+    public void runs_tasks_that_are_more_than_one_round_away() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        long start = System.nanoTime();
+        timer.schedule(done::countDown, 200, TimeUnit.MILLISECONDS);
+        done.await();
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(200));
+    }
+
+    @Test(timeout = 1000)
+    public void cancelled_tasks_do_not_run() throws InterruptedException {
+        AtomicBoolean called = new AtomicBoolean(false);
+        HashedWheelTimer.Timeout t = timer.schedule(() -> called.set(true), 20, TimeUnit.MILLISECONDS);
+        assertTrue(t.cancel());
+        assertTrue(t.isCancelled());
+        assertFalse(t.cancel());
+        CountDownLatch after = new CountDownLatch(1);
+        timer.schedule(after::countDown, 40, TimeUnit.MILLISECONDS);
+        after.await();
+        assertFalse(called.get());
+    }
+
+    @Test(timeout = 5000)
+    public void cancelled_tasks_are_unlinked_without_waiting_for_their_deadline()
+    throws InterruptedException {
+        for (int i = 0; i < 10_000; i++) {
+            timer.schedule(() -> fail("should have been cancelled"), 1, TimeUnit.HOURS)
+                    .cancel();
+        }
+        while (timer.size() > 0) {
+            Thread.sleep(5);
+        }
+        HashedWheelTimer.Timeout[] armed = new HashedWheelTimer.Timeout[1000];
+        for (int i = 0; i < armed.length; i++) {
+            armed[i] = timer.schedule(() -> fail("should have been cancelled"), 1, TimeUnit.HOURS);
+        }
+        Thread.sleep(20);
+        for (HashedWheelTimer.Timeout t : armed) {
+            assertTrue(t.cancel());
+        }
+        while (timer.size() > 0) {
+            Thread.sleep(5);
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void the_timer_survives_an_error_in_a_task() throws InterruptedException {
+        timer.schedule(() -> {
+            throw new AssertionError("thrown on purpose");
+        }, 1, TimeUnit.MILLISECONDS);
+        CountDownLatch done = new CountDownLatch(1);
+        timer.schedule(done::countDown, 20, TimeUnit.MILLISECONDS);
+        done.await();
+    }
+}
@@ -0,0 +1,104 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class KeyedBacklogTest {
+
+    static final Executor SYNC = Runnable::run;
+
+    final List<String> log = new ArrayList<>();
+    final Effects<String> fx = log::add;
+
+    AsyncFst<String> build(AsyncFst.Builder builder) {
+        return (AsyncFst<String>) builder.receiveOn(SYNC).build("");
+    }
+
+    @Test
+    public void only_the_latest_action_per_key_is_replayed() {
+        AsyncFst<String> fst = build(new AsyncFst.Builder());
+        fst.exec(fx, Mu.Action.keyed("query", Mu.Action.pure("a")));
+        fst.exec(fx, Mu.Action.pure("x"));
+        fst.exec(fx, Mu.Action.keyed("query", Mu.Action.pure("ab")));
+        fst.exec(fx, Mu.Action.keyed("query", Mu.Action.pure("abc")));
+        assertEquals(2, fst.backlogSize());
+        fst.start(fx);
+        assertEquals(Arrays.asList("", "abc", "x"), log);
+        assertEquals(0, fst.backlogSize());
+    }
+
+    @Test
+    public void different_keys_do_not_interfere() {
+        AsyncFst<String> fst = build(new AsyncFst.Builder());
+        for (int i = 0; i < 100; i++) {
+            String s = "" + i;
+            fst.exec(fx, Mu.Action.keyed(i % 2, Mu.Action.pure(s)));
+        }
+        assertEquals(2, fst.backlogSize());
+        fst.start(fx);
+        assertEquals(Arrays.asList("", "98", "99"), log);
+    }
+
+    @Test
+    public void key_is_released_after_replay() {
+        AsyncFst<String> fst = build(new AsyncFst.Builder());
+        fst.exec(fx, Mu.Action.keyed("k", Mu.Action.pure("a")));
+        fst.start(fx);
+        fst.stop();
+        fst.exec(fx, Mu.Action.keyed("k", Mu.Action.pure("b")));
+        assertEquals(1, fst.backlogSize());
+        fst.start(fx);
+        assertEquals(Arrays.asList("", "a", "a", "b"), log);
+    }
+
+    @Test
+    public void superseding_never_overflows_the_backlog() {
+        AsyncFst<String> fst = build(new AsyncFst.Builder().backlog(1, Overflow.FAIL));
+        List<Throwable> errors = new ArrayList<>();
+        Effects<String> fx = new Effects<String>() {
+            @Override
+            public void onEnter(String state) {
+                log.add(state);
+            }
+
+            @Override
+            public void handle(Throwable error) {
+                errors.add(error);
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            fst.exec(fx, Mu.Action.keyed("k", Mu.Action.pure("" + i)));
+        }
+        assertTrue(errors.isEmpty());
+        fst.start(fx);
+        assertEquals(Arrays.asList("", "9"), log);
+    }
+
+    @Test
+    public void mealy_actions_can_be_keyed_too() {
+        AsyncFst<String> fst = build(new AsyncFst.Builder());
+        fst.exec(fx, Mi.Action.keyed("k", (s, e) -> Mi.enter("a")));
+        fst.exec(fx, Mi.Action.keyed("k", (s, e) -> Mi.enter("b")));
+        assertEquals(1, fst.backlogSize());
+        fst.start(fx);
+        assertEquals(Arrays.asList("", "b"), log);
+    }
+
+    @Test
+    public void keyed_actions_run_normally_when_started() {
+        Fst<String> fst = new BlockingFst<>("");
+        fst.exec(fx, Mu.Action.keyed("k", Mu.Action.pure("a")));
+        fst.exec(fx, Mu.Action.keyed("k", Mu.Action.pure("b")));
+        assertEquals(Arrays.asList("a", "b"), log);
+    }
+}
@@ -0,0 +1,80 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class MpscQueueTest {
+
+    static class Item extends MpscQueue.Node<Item> {
+        final int producer;
+        final int seq;
+
+        Item(int producer, int seq) {
+            this.producer = producer;
+            this.seq = seq;
+        }
+    }
+
+    @Test
+    public void fifo_in_a_single_thread() {
+        MpscQueue<Item> q = new MpscQueue<>();
+        assertTrue(q.isEmpty());
+        assertNull(q.poll());
+        for (int i = 0; i < 3; i++) {
+            q.offer(new Item(0, i));
+        }
+        assertFalse(q.isEmpty());
+        assertEquals(0, q.poll().seq);
+        q.offer(new Item(0, 3));
+        assertEquals(1, q.poll().seq);
+        assertEquals(2, q.poll().seq);
+        assertEquals(3, q.poll().seq);
+        assertNull(q.poll());
+        assertTrue(q.isEmpty());
+    }
+
+    @Test(timeout = 10_000)
+    public void preserves_per_producer_order() throws InterruptedException {
+        int producers = 4;
+        int perProducer = 100_000;
+        MpscQueue<Item> q = new MpscQueue<>();
+        ExecutorService pool = Executors.newFixedThreadPool(producers);
+        CountDownLatch go = new CountDownLatch(1);
+        for (int p = 0; p < producers; p++) {
+            int id = p;
+            pool.execute(() -> {
+                try {
+                    go.await();
+                }
+                catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; i++) {
+                    q.offer(new Item(id, i));
+                }
+            });
+        }
+        go.countDown();
+        int[] expected = new int[producers];
+        for (int received = 0; received < producers * perProducer;) {
+            Item item = q.poll();
+            if (item == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected[item.producer]++, item.seq);
+            received++;
+        }
+        pool.shutdown();
+        assertNull(q.poll());
+    }
+}
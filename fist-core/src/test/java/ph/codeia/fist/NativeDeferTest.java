@@ -0,0 +1,100 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class NativeDeferTest {
+
+    @Test(timeout = 2000)
+    public void outstanding_defer_does_not_hold_the_worker() throws InterruptedException {
+        ExecutorService worker = Executors.newSingleThreadExecutor();
+        try {
+            Fst<Integer> fst = new AsyncFst.Builder().workOn(worker).build(0);
+            CountDownLatch applied = new CountDownLatch(1);
+            Effects<Integer> fx = n -> {
+                if (n == 1) {
+                    applied.countDown();
+                }
+            };
+            fst.start(fx);
+            AtomicReference<Mu.Continuation<Integer>> later = new AtomicReference<>();
+            fst.exec(fx, n -> Mu.defer(later::set));
+            assertNotNull(later.get());
+
+            CountDownLatch ran = new CountDownLatch(1);
+            fst.exec(fx, n -> Mu.async(() -> {
+                ran.countDown();
+                return Mu.Action.pure(1);
+            }));
+            assertTrue(ran.await(1, TimeUnit.SECONDS));
+            assertTrue(applied.await(1, TimeUnit.SECONDS));
+
+            later.get().ok(2);
+            fst.inspect(n -> assertEquals(2, n.intValue()));
+        }
+        finally {
+            worker.shutdown();
+        }
+    }
+
+    @Test(timeout = 2000)
+    public void only_the_first_resume_counts() {
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        Effects<Integer> fx = n -> {};
+        fst.start(fx);
+        AtomicReference<Mi.Continuation<Integer, Effects<Integer>>> later = new AtomicReference<>();
+        fst.exec(fx, (n, e) -> Mi.defer(later::set));
+        later.get().ok(1);
+        later.get().ok(2);
+        fst.inspect(n -> assertEquals(1, n.intValue()));
+    }
+
+    @Test(timeout = 2000)
+    public void unresumed_defer_times_out() throws InterruptedException {
+        CountDownLatch raised = new CountDownLatch(1);
+        Fst<Integer> fst = new AsyncFst.Builder().timeout(50).build(0);
+        Effects<Integer> fx = new Effects<Integer>() {
+            @Override
+            public void onEnter(Integer state) {
+            }
+
+            @Override
+            public void handle(Throwable error) {
+                assertTrue(error instanceof TimeoutException);
+                raised.countDown();
+            }
+        };
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.defer(k -> {}));
+        assertTrue(raised.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 2000)
+    public void cancelled_defer_ignores_the_resume() {
+        AsyncFst<Integer> fst = (AsyncFst<Integer>) new AsyncFst.Builder()
+                .receiveOn(Runnable::run)
+                .cancelOn(CancelPolicy.CANCEL_ON_STOP)
+                .build(0);
+        Effects<Integer> fx = n -> {};
+        fst.start(fx);
+        AtomicReference<Mu.Continuation<Integer>> later = new AtomicReference<>();
+        fst.exec(fx, n -> Mu.defer(later::set));
+        fst.stop();
+        later.get().ok(1);
+        assertEquals(0, fst.backlogSize());
+        fst.start(fx);
+        fst.inspect(n -> assertEquals(0, n.intValue()));
+    }
+}
@@ -0,0 +1,168 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class RaceTest {
+
+    final AtomicReference<Integer> result = new AtomicReference<>();
+    final AtomicReference<Throwable> error = new AtomicReference<>();
+    final CountDownLatch done = new CountDownLatch(1);
+    final Effects<Integer> fx = new Effects<Integer>() {
+        @Override
+        public void onEnter(Integer state) {
+            if (state != 0) {
+                result.set(state);
+                done.countDown();
+            }
+        }
+
+        @Override
+        public void handle(Throwable e) {
+            error.set(e);
+            done.countDown();
+        }
+    };
+    final AtomicInteger started = new AtomicInteger();
+    final CountDownLatch interrupted = new CountDownLatch(1);
+
+    Callable<Mu.Action<Integer>> after(long millis, int value) {
+        return () -> {
+            started.incrementAndGet();
+            try {
+                Thread.sleep(millis);
+            }
+            catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return Mu.Action.pure(value);
+        };
+    }
+
+    Callable<Mu.Action<Integer>> failing() {
+        return () -> {
+            started.incrementAndGet();
+            throw new IOException("down");
+        };
+    }
+
+    Fst<Integer> async() {
+        Fst<Integer> fst = new AsyncFst.Builder().workOnVirtualThreads().build(0);
+        fst.start(fx);
+        return fst;
+    }
+
+    @Test(timeout = 2000)
+    public void first_to_finish_wins_and_losers_are_cancelled() throws InterruptedException {
+        Fst<Integer> fst = async();
+        fst.exec(fx, n -> Mu.race(after(1_000, 1), after(20, 2)));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(2, result.get().intValue());
+        assertTrue(interrupted.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = 2000)
+    public void failures_do_not_win() throws InterruptedException {
+        Fst<Integer> fst = async();
+        fst.exec(fx, n -> Mu.race(failing(), after(50, 2)));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(2, result.get().intValue());
+        assertNull(error.get());
+    }
+
+    @Test(timeout = 2000)
+    public void last_failure_is_raised_when_everyone_fails() throws InterruptedException {
+        Fst<Integer> fst = async();
+        fst.exec(fx, n -> Mu.race(failing(), failing()));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof IOException);
+    }
+
+    @Test(timeout = 2000)
+    public void hedge_is_not_sent_if_the_primary_is_fast() throws InterruptedException {
+        Fst<Integer> fst = async();
+        fst.exec(fx, n -> Mu.hedge(200, TimeUnit.MILLISECONDS, after(10, 1), after(10, 2)));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(1, result.get().intValue());
+        Thread.sleep(300);
+        assertEquals(1, started.get());
+    }
+
+    @Test(timeout = 2000)
+    public void hedge_timer_is_cancelled_when_the_primary_wins() throws InterruptedException {
+        Fst<Integer> fst = async();
+        long armed = HashedWheelTimer.shared().size();
+        fst.exec(fx, n -> Mu.hedge(1, TimeUnit.HOURS, after(10, 1), after(10, 2)));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(1, result.get().intValue());
+        while (HashedWheelTimer.shared().size() > armed) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, started.get());
+    }
+
+    @Test(timeout = 2000)
+    public void hedge_is_sent_if_the_primary_is_slow() throws InterruptedException {
+        Fst<Integer> fst = async();
+        fst.exec(fx, n -> Mu.hedge(50, TimeUnit.MILLISECONDS, after(1_000, 1), after(10, 2)));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(2, result.get().intValue());
+        assertEquals(2, started.get());
+    }
+
+    @Test(timeout = 2000)
+    public void rejected_hedges_count_as_failures() throws InterruptedException {
+        AtomicInteger submitted = new AtomicInteger();
+        Executor worker = task -> {
+            if (submitted.getAndIncrement() > 0) {
+                throw new RejectedExecutionException("full");
+            }
+            new Thread(task).start();
+        };
+        Fst<Integer> fst = new AsyncFst.Builder().workOn(worker).build(0);
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.hedge(10, TimeUnit.MILLISECONDS, () -> {
+            Thread.sleep(100);
+            throw new IOException("down");
+        }, after(10, 2)));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof IOException);
+        assertNull(result.get());
+        assertEquals(0, started.get());
+    }
+
+    @Test(timeout = 2000)
+    public void hedge_is_sent_right_away_if_the_primary_fails() throws InterruptedException {
+        Fst<Integer> fst = async();
+        long start = System.nanoTime();
+        fst.exec(fx, n -> Mu.hedge(1, TimeUnit.SECONDS, failing(), after(10, 2)));
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        assertEquals(2, result.get().intValue());
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void synchronous_machines_fall_back_in_order() {
+        Fst<Integer> fst = new BlockingFst<>(0);
+        fst.exec(fx, (n, e) -> Mi.<Integer, Effects<Integer>>race(
+                () -> { throw new IOException("down"); },
+                () -> Mi.Action.pure(3),
+                () -> Mi.Action.pure(4)));
+        assertEquals(3, result.get().intValue());
+    }
+}
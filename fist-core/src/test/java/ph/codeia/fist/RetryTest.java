@@ -0,0 +1,233 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.*;
+
+public class RetryTest {
+
+    static Callable<Mu.Action<Integer>> failing(int times, AtomicInteger calls) {
+        return () -> {
+            if (calls.incrementAndGet() <= times) {
+                throw new IOException("flaky");
+            }
+            return Mu.Action.pure(calls.get());
+        };
+    }
+
+    static RetryPolicy.Builder exact(int attempts, long millis) {
+        return new RetryPolicy.Builder()
+                .maxAttempts(attempts)
+                .backoff(millis, 10 * millis, MILLISECONDS)
+                .jitter(0);
+    }
+
+    @Test(timeout = 2000)
+    public void succeeds_after_transient_failures() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = exact(5, 10).build();
+        CountDownLatch entered = new CountDownLatch(1);
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        Effects<Integer> fx = n -> {
+            if (n > 0) {
+                entered.countDown();
+            }
+        };
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.retry(failing(2, calls), policy));
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        assertEquals(3, fst.project(n -> n).intValue());
+        assertEquals(3, policy.attempts());
+        assertEquals(2, policy.retries());
+        assertEquals(0, policy.failures());
+    }
+
+    @Test(timeout = 2000)
+    public void raises_the_last_error_when_out_of_attempts() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = exact(3, 5).build();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch raised = new CountDownLatch(1);
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        Effects<Integer> fx = new Effects<Integer>() {
+            @Override
+            public void onEnter(Integer state) {
+            }
+
+            @Override
+            public void handle(Throwable e) {
+                error.set(e);
+                raised.countDown();
+            }
+        };
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.retry(failing(10, calls), policy));
+        assertTrue(raised.await(1, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof IOException);
+        assertEquals(3, calls.get());
+        assertEquals(1, policy.failures());
+    }
+
+    @Test(timeout = 2000)
+    public void does_not_retry_errors_rejected_by_the_predicate() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = exact(5, 5)
+                .retryIf(e -> !(e instanceof IOException))
+                .build();
+        CountDownLatch raised = new CountDownLatch(1);
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        Effects<Integer> fx = new Effects<Integer>() {
+            @Override
+            public void onEnter(Integer state) {
+            }
+
+            @Override
+            public void handle(Throwable e) {
+                raised.countDown();
+            }
+        };
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.retry(failing(10, calls), policy));
+        assertTrue(raised.await(1, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+    }
+
+    @Test(timeout = 2000)
+    public void backoff_does_not_hold_a_worker() throws InterruptedException {
+        ExecutorService worker = Executors.newFixedThreadPool(1);
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = exact(3, 300).build();
+        Fst<Integer> fst = new AsyncFst.Builder().workOn(worker).build(0);
+        Effects<Integer> fx = n -> {};
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.retry(failing(10, calls), policy));
+        Thread.sleep(100);
+        assertEquals(1, calls.get());
+        assertEquals(0, ((ThreadPoolExecutor) worker).getActiveCount());
+        fst.stop();
+        worker.shutdownNow();
+    }
+
+    @Test(timeout = 2000)
+    public void rejected_retry_raises_the_rejection() throws InterruptedException {
+        ExecutorService worker = Executors.newFixedThreadPool(1);
+        AtomicInteger calls = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        CountDownLatch raised = new CountDownLatch(1);
+        Fst<Integer> fst = new AsyncFst.Builder().workOn(worker).build(0);
+        Effects<Integer> fx = new Effects<Integer>() {
+            @Override
+            public void onEnter(Integer state) {
+            }
+
+            @Override
+            public void handle(Throwable e) {
+                error.set(e);
+                raised.countDown();
+            }
+        };
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.retry(failing(10, calls), exact(3, 100).build()));
+        Thread.sleep(20);
+        worker.shutdown();
+        assertTrue(raised.await(1, TimeUnit.SECONDS));
+        assertTrue(error.get() instanceof RejectedExecutionException);
+        assertEquals(1, calls.get());
+    }
+
+    @Test(timeout = 2000)
+    public void stopping_cancels_pending_retries() throws InterruptedException {
+        AtomicInteger calls = new AtomicInteger();
+        RetryPolicy policy = exact(5, 50).build();
+        Fst<Integer> fst = new AsyncFst.Builder()
+                .cancelOn(CancelPolicy.CANCEL_ON_STOP)
+                .build(0);
+        Effects<Integer> fx = n -> {};
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.retry(failing(10, calls), policy));
+        Thread.sleep(20);
+        fst.stop();
+        Thread.sleep(200);
+        assertEquals(1, calls.get());
+        assertEquals(1, policy.attempts());
+    }
+
+    @Test
+    public void backoff_grows_exponentially_up_to_the_cap() {
+        RetryPolicy policy = new RetryPolicy.Builder()
+                .maxAttempts(10)
+                .backoff(100, 500, MILLISECONDS)
+                .jitter(0)
+                .build();
+        Exception e = new IOException();
+        assertEquals(100, policy.backoff(e, 1));
+        assertEquals(200, policy.backoff(e, 2));
+        assertEquals(400, policy.backoff(e, 3));
+        assertEquals(500, policy.backoff(e, 4));
+        assertEquals(-1, policy.backoff(e, 10));
+    }
+
+    @Test
+    public void full_jitter_stays_within_the_backoff() {
+        RetryPolicy policy = new RetryPolicy.Builder()
+                .maxAttempts(10)
+                .backoff(100, 1000, MILLISECONDS)
+                .build();
+        for (int i = 0; i < 1000; i++) {
+            long wait = policy.backoff(new IOException(), 2);
+            assertTrue(wait >= 0 && wait <= 200);
+        }
+    }
+
+    @Test
+    public void stepping_machine_waits_on_the_virtual_clock() {
+        AtomicInteger calls = new AtomicInteger();
+        SteppingFst<Integer, ?> fst = SteppingFst.of(0);
+        fst.exec(n -> Mu.retry(failing(2, calls), exact(3, 100).build()));
+        assertEquals(0, fst.drain().intValue());
+        assertEquals(1, calls.get());
+        fst.advance(100, MILLISECONDS);
+        assertEquals(1, calls.get());
+        fst.drain();
+        assertEquals(2, calls.get());
+        fst.advance(150, MILLISECONDS);
+        assertEquals(0, fst.drain().intValue());
+        assertEquals(2, calls.get());
+        fst.advance(50, MILLISECONDS);
+        assertEquals(3, fst.drain().intValue());
+    }
+
+    @Test
+    public void stepping_machine_queues_the_first_attempt_behind_earlier_steps() {
+        AtomicInteger calls = new AtomicInteger();
+        SteppingFst<Integer, ?> fst = SteppingFst.of(0);
+        fst.exec(n -> Mu.enter(-1).then(Mu.retry(failing(0, calls), exact(1, 100).build())));
+        assertEquals(-1, fst.step().intValue());
+        assertEquals(0, calls.get());
+        assertEquals(1, fst.drain().intValue());
+    }
+
+    @Test
+    public void blocking_machine_sleeps_between_attempts() {
+        AtomicInteger calls = new AtomicInteger();
+        Fst<Integer> fst = new BlockingFst<>(0);
+        fst.exec(n -> {}, n -> Mu.retry(failing(1, calls), exact(2, 20).build()));
+        assertEquals(2, fst.project(n -> n).intValue());
+    }
+}
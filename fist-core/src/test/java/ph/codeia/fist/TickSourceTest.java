@@ -0,0 +1,145 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class TickSourceTest {
+
+    final Queue<Runnable> main = new ArrayDeque<>();
+    final Queue<Runnable> frames = new ArrayDeque<>();
+    final TickSource vsync = frames::add;
+    final List<Integer> rendered = new ArrayList<>();
+    final Effects<Integer> fx = rendered::add;
+
+    void runMain() {
+        while (!main.isEmpty()) {
+            main.remove().run();
+        }
+    }
+
+    void nextFrame() {
+        Queue<Runnable> due = new ArrayDeque<>(frames);
+        frames.clear();
+        for (Runnable r : due) {
+            r.run();
+        }
+        runMain();
+    }
+
+    @Test
+    public void transitions_are_eager_but_rendering_waits_for_the_tick() {
+        Fst<Integer> fst = new ExecutorFst.Builder(main::add).renderOn(vsync).build(0);
+        fst.start(fx);
+        rendered.clear();
+        for (int i = 0; i < 100; i++) {
+            fst.exec(fx, n -> Mu.enter(n + 1));
+        }
+        runMain();
+        fst.inspect(n -> assertEquals(100, n.intValue()));
+        assertTrue(rendered.isEmpty());
+        assertEquals(1, frames.size());
+
+        nextFrame();
+        assertEquals(Collections.singletonList(100), rendered);
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    public void no_tick_is_requested_without_a_transition() {
+        Fst<Integer> fst = new ExecutorFst.Builder(main::add).renderOn(vsync).build(0);
+        fst.start(fx);
+        fst.exec(fx, n -> Mu.noop());
+        runMain();
+        assertTrue(frames.isEmpty());
+    }
+
+    @Test
+    public void side_states_are_not_paced() {
+        Fst<Integer> fst = new ExecutorFst.Builder(main::add).renderOn(vsync).build(0);
+        fst.start(fx);
+        rendered.clear();
+        fst.exec(fx, n -> Mu.<Integer>enterEach(-1).then(Mu.enter(1)));
+        runMain();
+        assertEquals(Collections.singletonList(-1), rendered);
+        nextFrame();
+        assertEquals(Arrays.asList(-1, 1), rendered);
+    }
+
+    @Test
+    public void stopped_machine_skips_the_tick() {
+        Fst<Integer> fst = new ExecutorFst.Builder(main::add).renderOn(vsync).build(0);
+        fst.start(fx);
+        rendered.clear();
+        fst.exec(fx, n -> Mu.enter(1));
+        runMain();
+        fst.stop();
+        nextFrame();
+        assertTrue(rendered.isEmpty());
+    }
+
+    @Test(timeout = 1000)
+    public void fixed_rate_ticks_coalesce_requests_within_a_period() throws InterruptedException {
+        FixedRateTicks ticks = new FixedRateTicks(20, TimeUnit.MILLISECONDS);
+        try {
+            CountDownLatch done = new CountDownLatch(3);
+            List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+            AtomicLong first = new AtomicLong();
+            AtomicLong last = new AtomicLong();
+            Runnable r = () -> {
+                long now = System.nanoTime();
+                first.compareAndSet(0, now);
+                last.set(now);
+                threads.add(Thread.currentThread());
+                done.countDown();
+            };
+            ticks.requestTick(r);
+            ticks.requestTick(r);
+            ticks.requestTick(r);
+            assertTrue(done.await(500, TimeUnit.MILLISECONDS));
+            assertEquals(threads.get(0), threads.get(2));
+            assertTrue(last.get() - first.get() < TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        finally {
+            ticks.shutdown();
+        }
+    }
+
+    @Test(timeout = 1000)
+    public void fixed_rate_ticks_keep_ticking_while_requested() throws InterruptedException {
+        FixedRateTicks ticks = FixedRateTicks.perSecond(100);
+        try {
+            CountDownLatch done = new CountDownLatch(5);
+            long start = System.nanoTime();
+            ticks.requestTick(new Runnable() {
+                @Override
+                public void run() {
+                    done.countDown();
+                    if (done.getCount() > 0) {
+                        ticks.requestTick(this);
+                    }
+                }
+            });
+            assertTrue(done.await(500, TimeUnit.MILLISECONDS));
+            // 5 distinct ticks, at least 4 periods apart
+            assertTrue(System.nanoTime() - start >= 4 * ticks.periodNanos());
+        }
+        finally {
+            ticks.shutdown();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.*;
+
+public class TimedCommandTest {
+
+    final List<Integer> rendered = Collections.synchronizedList(new ArrayList<>());
+
+    @Test(timeout = 2000)
+    public void delay_does_not_use_the_worker() throws InterruptedException {
+        Executor never = r -> fail("should not submit to the worker");
+        CountDownLatch entered = new CountDownLatch(1);
+        Fst<Integer> fst = new AsyncFst.Builder().workOn(never).build(0);
+        Effects<Integer> fx = n -> {
+            if (n == 1) {
+                entered.countDown();
+            }
+        };
+        fst.start(fx);
+        long start = System.nanoTime();
+        fst.exec(fx, n -> Mu.delay(50, MILLISECONDS, Mu.Action.pure(1)));
+        fst.inspect(n -> assertEquals(0, n.intValue()));
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+        assertTrue(System.nanoTime() - start >= MILLISECONDS.toNanos(40));
+    }
+
+    @Test(timeout = 2000)
+    public void delay_survives_conversion_to_mealy() throws InterruptedException {
+        Executor never = r -> fail("should not submit to the worker");
+        CountDownLatch entered = new CountDownLatch(1);
+        Fst<Integer> fst = new AsyncFst.Builder().workOn(never).build(0);
+        Effects<Integer> fx = n -> {
+            if (n == 1) {
+                entered.countDown();
+            }
+        };
+        fst.start(fx);
+        Mu.Action<Integer> delayed = n -> Mu.delay(50, MILLISECONDS, Mu.Action.pure(1));
+        fst.exec(fx, delayed.toMealy());
+        fst.inspect(n -> assertEquals(0, n.intValue()));
+        assertTrue(entered.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void conversion_to_mealy_keeps_the_key() {
+        Mu.Action<Integer> keyed = Mu.Action.keyed("k", Mu.Action.pure(1));
+        assertEquals("k", Keyed.keyOf(keyed.<Effects<Integer>>toMealy()));
+    }
+
+    @Test(timeout = 2000)
+    public void debounce_only_runs_the_last_action_of_a_burst() throws InterruptedException {
+        CountDownLatch entered = new CountDownLatch(1);
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        Effects<Integer> fx = n -> {
+            rendered.add(n);
+            entered.countDown();
+        };
+        for (int i = 1; i <= 5; i++) {
+            int q = i;
+            fst.exec(fx, n -> Mu.debounce("search", 50, MILLISECONDS, Mu.Action.pure(q)));
+        }
+        fst.start(fx);
+        rendered.clear();
+        Thread.sleep(200);
+        assertEquals(Collections.singletonList(5), rendered);
+    }
+
+    @Test(timeout = 2000)
+    public void throttle_runs_the_first_and_the_latest() throws InterruptedException {
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        Effects<Integer> fx = rendered::add;
+        fst.start(fx);
+        rendered.clear();
+        for (int i = 1; i <= 5; i++) {
+            int q = i;
+            fst.exec(fx, n -> Mu.throttle("scroll", 100, MILLISECONDS, Mu.Action.pure(q)));
+        }
+        assertEquals(Collections.singletonList(1), rendered);
+        Thread.sleep(250);
+        assertEquals(Arrays.asList(1, 5), rendered);
+    }
+
+    @Test(timeout = 2000)
+    public void expired_throttle_windows_are_forgotten() throws InterruptedException {
+        AsyncFst<Integer> fst = new UnconfinedFst<>(0);
+        Effects<Integer> fx = rendered::add;
+        fst.start(fx);
+        for (int i = 0; i < 100; i++) {
+            int q = i;
+            fst.exec(fx, n -> Mu.throttle("item-" + q, 20, MILLISECONDS, Mu.Action.pure(q)));
+        }
+        fst.exec(fx, n -> Mu.throttle("item-0", 20, MILLISECONDS, Mu.Action.pure(-1)));
+        assertEquals(100, fst.timedKeys());
+        Thread.sleep(150);
+        assertEquals(0, fst.timedKeys());
+        assertTrue(rendered.contains(-1));
+    }
+
+    @Test(timeout = 2000)
+    public void zero_window_debounces_are_forgotten() {
+        AsyncFst<Integer> fst = new UnconfinedFst<>(0);
+        Effects<Integer> fx = rendered::add;
+        fst.start(fx);
+        for (int i = 1; i <= 100; i++) {
+            int q = i;
+            fst.exec(fx, n -> Mu.debounce("item-" + q, 0, MILLISECONDS, Mu.Action.pure(q)));
+        }
+        assertEquals(100, rendered.get(rendered.size() - 1).intValue());
+        assertEquals(0, fst.timedKeys());
+    }
+
+    @Test(timeout = 2000)
+    public void cancelled_debounces_are_forgotten() {
+        AsyncFst<Integer> fst = (AsyncFst<Integer>) new AsyncFst.Builder()
+                .cancelOn(CancelPolicy.CANCEL_ON_STOP)
+                .build(0);
+        Effects<Integer> fx = rendered::add;
+        fst.start(fx);
+        for (int i = 0; i < 100; i++) {
+            int q = i;
+            fst.exec(fx, n -> Mu.debounce("item-" + q, 1, TimeUnit.SECONDS, Mu.Action.pure(q)));
+        }
+        assertEquals(100, fst.timedKeys());
+        fst.stop();
+        assertEquals(0, fst.timedKeys());
+    }
+
+    @Test
+    public void stepping_machine_uses_a_virtual_clock() {
+        SteppingFst<Integer, ?> fst = SteppingFst.of(0);
+        fst.exec(n -> Mu.delay(100, MILLISECONDS, Mu.Action.pure(1)));
+        fst.exec(n -> Mu.delay(50, MILLISECONDS, Mu.Action.pure(2)));
+        assertEquals(0, fst.drain().intValue());
+        fst.advance(60, MILLISECONDS);
+        assertEquals(2, fst.drain().intValue());
+        fst.advance(40, MILLISECONDS);
+        assertEquals(1, fst.drain().intValue());
+        assertEquals(100, fst.now());
+    }
+
+    @Test
+    public void stepping_debounce() {
+        SteppingFst<Integer, ?> fst = SteppingFst.of(0);
+        fst.exec(n -> Mu.debounce("k", 100, MILLISECONDS, Mu.Action.pure(1)));
+        fst.drain();
+        fst.advance(90, MILLISECONDS);
+        fst.exec(n -> Mu.debounce("k", 100, MILLISECONDS, Mu.Action.pure(2)));
+        fst.drain();
+        fst.advance(90, MILLISECONDS);
+        assertEquals(0, fst.drain().intValue());
+        fst.advance(10, MILLISECONDS);
+        assertEquals(2, fst.drain().intValue());
+    }
+
+    @Test
+    public void stepping_throttle() {
+        SteppingFst<Integer, ?> fst = SteppingFst.of(0);
+        for (int i = 1; i <= 3; i++) {
+            int q = i;
+            fst.exec(n -> Mu.throttle("k", 100, MILLISECONDS, Mu.Action.pure(q)));
+        }
+        assertEquals(1, fst.drain().intValue());
+        fst.advance(100, MILLISECONDS);
+        assertEquals(3, fst.drain().intValue());
+        fst.exec(n -> Mu.throttle("k", 100, MILLISECONDS, Mu.Action.pure(4)));
+        assertEquals(3, fst.drain().intValue());
+        fst.advance(100, MILLISECONDS);
+        assertEquals(4, fst.drain().intValue());
+    }
+
+    @Test
+    public void mealy_delay_in_a_blocking_machine_sleeps() {
+        Fst<Integer> fst = new BlockingFst<>(0);
+        long start = System.nanoTime();
+        fst.exec(rendered::add, (n, e) -> Mi.delay(30, MILLISECONDS, Mi.Action.pure(1)));
+        assertTrue(System.nanoTime() - start >= MILLISECONDS.toNanos(30));
+        assertEquals(Collections.singletonList(1), rendered);
+    }
+}
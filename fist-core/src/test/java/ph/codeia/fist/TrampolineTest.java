@@ -0,0 +1,104 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TrampolineTest {
+
+    static final int DEPTH = 1_000_000;
+
+    /**
+     * Counts down to zero by forwarding to itself, entering only at the end.
+     */
+    static class Countdown implements Mu.Action<Integer> {
+        int remaining = DEPTH;
+
+        @Override
+        public Mu<Integer> apply(Integer state) {
+            if (remaining == 0) {
+                return Mu.enter(state + DEPTH);
+            }
+            remaining--;
+            return Mu.forward(this);
+        }
+    }
+
+    static class MealyCountdown implements Mi.Action<Integer, Effects<Integer>> {
+        int remaining = DEPTH;
+
+        @Override
+        public Mi<Integer, Effects<Integer>> apply(Integer state, Effects<Integer> e) {
+            if (remaining == 0) {
+                return Mi.enter(state + DEPTH);
+            }
+            remaining--;
+            return Mi.forward(this);
+        }
+    }
+
+    final Effects<Integer> fx = n -> {};
+
+    void assertDeepChain(Fst<Integer> fst) {
+        fst.exec(fx, new Countdown());
+        fst.inspect(n -> assertEquals(DEPTH, n.intValue()));
+        fst.exec(fx, new MealyCountdown());
+        fst.inspect(n -> assertEquals(2 * DEPTH, n.intValue()));
+    }
+
+    @Test
+    public void blocking_fst() {
+        assertDeepChain(new BlockingFst<>(0));
+    }
+
+    @Test
+    public void tracking_fst() {
+        assertDeepChain(new TrackingFst<>(0));
+    }
+
+    @Test
+    public void unconfined_fst() {
+        Fst<Integer> fst = new UnconfinedFst<>(0);
+        fst.start(fx);
+        assertDeepChain(fst);
+    }
+
+    @Test
+    public void stepping_fst() {
+        SteppingFst<Integer, Effects<Integer>> fst = new SteppingFst<>(0, fx);
+        fst.exec(new Countdown());
+        assertEquals(DEPTH, fst.step().intValue());
+        fst.exec(new MealyCountdown());
+        assertEquals(2 * DEPTH, fst.step().intValue());
+    }
+
+    @Test
+    public void steps_after_a_forward_run_after_the_forwarded_command() {
+        List<Integer> seen = new ArrayList<>();
+        Fst<Integer> fst = new BlockingFst<>(0);
+        Mu.Action<Integer> inner = n -> Mu.enter(n + 1).then(Mu.enter(n + 2));
+        fst.exec(seen::add, n -> Mu.forward(inner)
+                .then(Mu.forward(inner))
+                .then(Mu.enter(100))
+                .then(s -> Mu.enter(s + 1)));
+        assertEquals(Arrays.asList(1, 2, 3, 4, 100, 101), seen);
+    }
+
+    @Test
+    public void nested_non_tail_forwards_resume_in_order() {
+        List<Integer> seen = new ArrayList<>();
+        Fst<Integer> fst = new BlockingFst<>(0);
+        Mu.Action<Integer> deepest = n -> Mu.enter(1);
+        Mu.Action<Integer> middle = n -> Mu.<Integer> forward(deepest).then(Mu.enter(2));
+        fst.exec(seen::add, n -> Mu.<Integer> forward(middle).then(Mu.enter(3)));
+        assertEquals(Arrays.asList(1, 2, 3), seen);
+    }
+}
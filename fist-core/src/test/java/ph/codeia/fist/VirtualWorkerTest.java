@@ -0,0 +1,54 @@
+package ph.codeia.fist;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class VirtualWorkerTest {
+
+    @Test(timeout = 5000)
+    public void blocking_async_actions_do_not_wait_for_each_other() throws InterruptedException {
+        int n = 500;
+        Fst<Integer> fst = new AsyncFst.Builder().workOnVirtualThreads().build(0);
+        CountDownLatch allStarted = new CountDownLatch(n);
+        CountDownLatch allDone = new CountDownLatch(n);
+        Effects<Integer> fx = i -> {};
+        fst.start(fx);
+        for (int i = 0; i < n; i++) {
+            fst.exec(fx, Mu.Action.pure(() -> {
+                allStarted.countDown();
+                // every block is parked here until all of them have started
+                assertTrue(allStarted.await(4, TimeUnit.SECONDS));
+                return s -> {
+                    allDone.countDown();
+                    return Mu.noop();
+                };
+            }));
+        }
+        allDone.await();
+    }
+
+    @Test(timeout = 1000)
+    public void deferred_results_do_not_hold_up_other_machines() throws InterruptedException {
+        AsyncFst.Builder builder = new AsyncFst.Builder().workOnVirtualThreads();
+        Fst<Integer> stuck = builder.build(0);
+        Fst<Integer> free = builder.build(0);
+        Effects<Integer> fx = i -> {};
+        stuck.start(fx);
+        free.start(fx);
+        stuck.exec(fx, n -> Mu.defer(k -> {}));
+        CountDownLatch done = new CountDownLatch(1);
+        free.exec(fx, Mu.Action.pure(() -> s -> {
+            done.countDown();
+            return Mu.noop();
+        }));
+        done.await();
+    }
+}
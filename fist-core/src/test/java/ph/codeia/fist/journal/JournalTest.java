@@ -0,0 +1,285 @@
+package ph.codeia.fist.journal;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import ph.codeia.fist.Effects;
+import ph.codeia.fist.Fst;
+import ph.codeia.fist.Mu;
+import ph.codeia.fist.UnconfinedFst;
+
+import static org.junit.Assert.*;
+
+public class JournalTest {
+
+    static final StateCodec<Integer> INT = new StateCodec<Integer>() {
+        @Override
+        public void encode(Integer state, DataOutput out) throws IOException {
+            if (state < 0) {
+                throw new IOException("negative");
+            }
+            out.writeInt(state);
+        }
+
+        @Override
+        public Integer decode(DataInput in) throws IOException {
+            return in.readInt();
+        }
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    Journal<Integer> open(File dir) throws IOException {
+        return new Journal.Builder<>(dir, INT)
+                .commitEvery(0, TimeUnit.MILLISECONDS)
+                .open();
+    }
+
+    @Test
+    public void empty_journal_recovers_nothing() throws IOException {
+        try (Journal<Integer> journal = open(tmp.getRoot())) {
+            assertNull(journal.recover());
+            assertEquals(5, journal.recover(5).intValue());
+            assertEquals(0, journal.lastSequence());
+        }
+    }
+
+    @Test
+    public void recovers_the_last_state_after_reopening() throws IOException {
+        File dir = tmp.getRoot();
+        try (Journal<Integer> journal = open(dir)) {
+            assertEquals(1, journal.append(10));
+            assertEquals(2, journal.append(20));
+            assertEquals(3, journal.append(30));
+        }
+        try (Journal<Integer> journal = open(dir)) {
+            assertEquals(30, journal.recover().intValue());
+            assertEquals(3, journal.lastSequence());
+            assertEquals(4, journal.append(40));
+        }
+        try (Journal<Integer> journal = open(dir)) {
+            assertEquals(40, journal.recover().intValue());
+        }
+    }
+
+    @Test(timeout = 2000)
+    public void sync_waits_for_the_group_commit() throws IOException {
+        File dir = tmp.getRoot();
+        Journal<Integer> journal = new Journal.Builder<>(dir, INT)
+                .commitEvery(20, TimeUnit.MILLISECONDS)
+                .open();
+        try {
+            for (int i = 1; i <= 100; i++) {
+                journal.append(i);
+            }
+            journal.sync();
+            assertEquals(100, journal.lastSequence());
+        }
+        finally {
+            journal.close();
+        }
+        try (Journal<Integer> reopened = open(dir)) {
+            assertEquals(100, reopened.recover().intValue());
+        }
+    }
+
+    @Test
+    public void rotates_and_deletes_old_segments() throws IOException {
+        File dir = tmp.getRoot();
+        try (Journal<Integer> journal = new Journal.Builder<>(dir, INT)
+                .segmentSize(1024)
+                .retain(2)
+                .commitEvery(0, TimeUnit.MILLISECONDS)
+                .open()) {
+            for (int i = 1; i <= 500; i++) {
+                journal.append(i);
+            }
+        }
+        File[] segments = Journal.segments(dir);
+        assertEquals(2, segments.length);
+        try (Journal<Integer> journal = open(dir)) {
+            assertEquals(500, journal.recover().intValue());
+            assertEquals(500, journal.lastSequence());
+        }
+    }
+
+    @Test
+    public void recovers_from_the_previous_segment_when_the_newest_is_empty() throws IOException {
+        File dir = tmp.getRoot();
+        try (Journal<Integer> journal = open(dir)) {
+            journal.append(1);
+            journal.append(2);
+        }
+        try (RandomAccessFile empty = new RandomAccessFile(new File(dir, Journal.name(3)), "rw")) {
+            empty.setLength(1024);
+        }
+        try (Journal<Integer> journal = open(dir)) {
+            assertEquals(2, journal.recover().intValue());
+            assertEquals(2, journal.lastSequence());
+            assertEquals(3, journal.append(3));
+        }
+    }
+
+    @Test
+    public void torn_tail_is_dropped() throws IOException {
+        File dir = tmp.getRoot();
+        try (Journal<Integer> journal = open(dir)) {
+            journal.append(1);
+            journal.append(2);
+            journal.append(3);
+        }
+        int record = Journal.HEADER + 4;
+        try (RandomAccessFile f = new RandomAccessFile(Journal.segments(dir)[0], "rw")) {
+            f.seek(2 * record + Journal.HEADER);
+            f.write(0xff);
+        }
+        try (Journal<Integer> journal = open(dir)) {
+            assertEquals(2, journal.recover().intValue());
+            assertEquals(3, journal.append(4));
+        }
+        try (Journal<Integer> journal = open(dir)) {
+            assertEquals(4, journal.recover().intValue());
+        }
+    }
+
+    @Test
+    public void stale_records_after_a_torn_one_are_cleared() throws IOException {
+        File dir = tmp.getRoot();
+        try (Journal<Integer> journal = open(dir)) {
+            journal.append(1);
+            journal.append(2);
+            journal.append(3);
+        }
+        int record = Journal.HEADER + 4;
+        try (RandomAccessFile f = new RandomAccessFile(Journal.segments(dir)[0], "rw")) {
+            f.seek(record + Journal.HEADER);
+            f.write(0xff);
+        }
+        try (Journal<Integer> journal = open(dir)) {
+            assertEquals(1, journal.recover().intValue());
+            // lands exactly where the torn record was, right before the
+            // remains of record 3
+            assertEquals(2, journal.append(20));
+        }
+        try (Journal<Integer> journal = open(dir)) {
+            assertEquals(20, journal.recover().intValue());
+            assertEquals(2, journal.lastSequence());
+        }
+    }
+
+    @Test(timeout = 2000)
+    public void rotates_in_the_background() throws IOException {
+        File dir = tmp.getRoot();
+        try (Journal<Integer> journal = new Journal.Builder<>(dir, INT)
+                .segmentSize(1024)
+                .retain(3)
+                .commitEvery(5, TimeUnit.MILLISECONDS)
+                .open()) {
+            for (int i = 1; i <= 500; i++) {
+                journal.append(i);
+            }
+            journal.sync();
+        }
+        assertEquals(3, Journal.segments(dir).length);
+        assertEquals(0, dir.listFiles((d, name) -> name.endsWith(Journal.SPARE_SUFFIX)).length);
+        try (Journal<Integer> journal = open(dir)) {
+            assertEquals(500, journal.recover().intValue());
+        }
+    }
+
+    @Test
+    public void spare_segments_left_by_a_crash_are_adopted() throws IOException {
+        File dir = tmp.getRoot();
+        try (Journal<Integer> journal = open(dir)) {
+            journal.append(1);
+            journal.append(2);
+        }
+        File segment = Journal.segments(dir)[0];
+        // as if the crash came before the spare was named
+        assertTrue(segment.renameTo(new File(dir, "00000000000000000007" + Journal.SPARE_SUFFIX)));
+        try (RandomAccessFile empty = new RandomAccessFile(
+                new File(dir, "00000000000000000008" + Journal.SPARE_SUFFIX), "rw")) {
+            empty.setLength(1024);
+        }
+        try (Journal<Integer> journal = open(dir)) {
+            assertEquals(2, journal.recover().intValue());
+            assertEquals(3, journal.append(3));
+        }
+        assertEquals(0, dir.listFiles((d, name) -> name.endsWith(Journal.SPARE_SUFFIX)).length);
+        assertEquals(Journal.name(1), Journal.segments(dir)[0].getName());
+    }
+
+    @Test
+    public void appends_after_close_fail() throws IOException {
+        Journal<Integer> journal = open(tmp.getRoot());
+        journal.close();
+        try {
+            journal.append(1);
+            fail("should have thrown");
+        }
+        catch (IOException ignored) {
+        }
+    }
+
+    @Test(timeout = 2000)
+    public void journals_every_entered_state() throws IOException, InterruptedException {
+        File dir = tmp.getRoot();
+        try (Journal<Integer> journal = open(dir)) {
+            Fst<Integer> fst = JournalingFst.restore(journal, 0, UnconfinedFst::new);
+            CountDownLatch done = new CountDownLatch(1);
+            Effects<Integer> fx = n -> {
+                if (n == 3) {
+                    done.countDown();
+                }
+            };
+            fst.start(fx);
+            fst.exec(fx, n -> Mu.enter(1)
+                    .then(Mu.forward(m -> Mu.enter(m + 1)))
+                    .then(Mu.async(() -> m -> Mu.enter(m + 1))));
+            assertTrue(done.await(1, TimeUnit.SECONDS));
+            assertEquals(3, journal.lastSequence());
+        }
+        try (Journal<Integer> journal = open(dir)) {
+            Fst<Integer> fst = JournalingFst.restore(journal, 0, UnconfinedFst::new);
+            fst.inspect(n -> assertEquals(3, n.intValue()));
+        }
+    }
+
+    @Test
+    public void failed_appends_are_raised() throws IOException {
+        try (Journal<Integer> journal = open(tmp.getRoot())) {
+            Fst<Integer> fst = JournalingFst.restore(journal, 1, UnconfinedFst::new);
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Effects<Integer> fx = new Effects<Integer>() {
+                @Override
+                public void onEnter(Integer state) {
+                }
+
+                @Override
+                public void handle(Throwable e) {
+                    error.set(e);
+                }
+            };
+            fst.start(fx);
+            fst.exec(fx, n -> Mu.enter(-1));
+            assertTrue(error.get() instanceof JournalingFst.AppendException);
+            fst.inspect(n -> assertEquals(1, n.intValue()));
+            assertEquals(0, journal.lastSequence());
+        }
+    }
+}
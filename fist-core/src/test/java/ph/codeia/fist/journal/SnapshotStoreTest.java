@@ -0,0 +1,195 @@
+package ph.codeia.fist.journal;
+
+/*
+ * This file is a part of the fist project.
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SnapshotStoreTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    SnapshotStore.Builder<Integer> store(File dir) {
+        return new SnapshotStore.Builder<>(dir, JournalTest.INT);
+    }
+
+    Journal<Integer> open(File dir, SnapshotStore<Integer> snapshots) throws IOException {
+        return new Journal.Builder<>(dir, JournalTest.INT)
+                .segmentSize(1024)
+                .retain(Integer.MAX_VALUE)
+                .commitEvery(0, TimeUnit.MILLISECONDS)
+                .snapshots(snapshots)
+                .open();
+    }
+
+    @Test
+    public void saves_and_reads_the_latest_snapshot() throws IOException {
+        SnapshotStore<Integer> snapshots = store(tmp.getRoot()).retain(2).build();
+        assertNull(snapshots.latest());
+        snapshots.save(1, 100);
+        snapshots.save(5, 500);
+        snapshots.save(9, 900);
+        SnapshotStore.Snapshot<Integer> latest = snapshots.latest();
+        assertEquals(9, latest.seq);
+        assertEquals(900, latest.state.intValue());
+        assertEquals(2, SnapshotStore.list(tmp.getRoot()).length);
+    }
+
+    @Test
+    public void corrupt_snapshot_falls_back_to_the_previous_one() throws IOException {
+        File dir = tmp.getRoot();
+        SnapshotStore<Integer> snapshots = store(dir).build();
+        snapshots.save(1, 100);
+        snapshots.save(2, 200);
+        try (RandomAccessFile f = new RandomAccessFile(new File(dir, SnapshotStore.name(2)), "rw")) {
+            f.seek(SnapshotStore.HEADER);
+            f.write(0xff);
+        }
+        assertEquals(100, snapshots.latest().state.intValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_a_store_with_a_different_codec() throws IOException {
+        StateCodec<Integer> other = new StateCodec<Integer>() {
+            @Override
+            public void encode(Integer state, DataOutput out) throws IOException {
+                out.writeLong(state);
+            }
+
+            @Override
+            public Integer decode(DataInput in) throws IOException {
+                return (int) in.readLong();
+            }
+        };
+        SnapshotStore<Integer> snapshots = new SnapshotStore.Builder<>(tmp.newFolder(), other)
+                .build();
+        new Journal.Builder<>(tmp.newFolder(), JournalTest.INT).snapshots(snapshots);
+    }
+
+    @Test
+    public void snapshots_every_n_records_and_drops_covered_segments() throws IOException {
+        File journalDir = tmp.newFolder("journal");
+        File snapshotDir = tmp.newFolder("snapshots");
+        SnapshotStore<Integer> snapshots = store(snapshotDir).everyRecords(100).build();
+        try (Journal<Integer> journal = open(journalDir, snapshots)) {
+            for (int i = 1; i <= 250; i++) {
+                journal.append(i);
+            }
+        }
+        assertEquals(200, snapshots.latest().seq);
+        assertEquals(200, snapshots.latest().state.intValue());
+        // 20 bytes per record, so 1000 records would need 20 segments.
+        assertTrue(Journal.segments(journalDir).length <= 2);
+        try (Journal<Integer> journal = open(journalDir, snapshots)) {
+            assertEquals(250, journal.recover().intValue());
+            assertEquals(250, journal.lastSequence());
+        }
+    }
+
+    @Test
+    public void snapshots_every_n_bytes() throws IOException {
+        File journalDir = tmp.newFolder("journal");
+        File snapshotDir = tmp.newFolder("snapshots");
+        int record = Journal.HEADER + 4;
+        SnapshotStore<Integer> snapshots = store(snapshotDir).everyBytes(10 * record).build();
+        try (Journal<Integer> journal = open(journalDir, snapshots)) {
+            for (int i = 1; i <= 25; i++) {
+                journal.append(i);
+            }
+        }
+        assertEquals(20, snapshots.latest().seq);
+    }
+
+    @Test
+    public void restores_from_the_snapshot_when_the_journal_is_gone() throws IOException {
+        File journalDir = tmp.newFolder("journal");
+        File snapshotDir = tmp.newFolder("snapshots");
+        SnapshotStore<Integer> snapshots = store(snapshotDir).everyRecords(10).build();
+        try (Journal<Integer> journal = open(journalDir, snapshots)) {
+            for (int i = 1; i <= 10; i++) {
+                journal.append(i * 10);
+            }
+        }
+        for (File f : Journal.segments(journalDir)) {
+            assertTrue(f.delete());
+        }
+        try (Journal<Integer> journal = open(journalDir, snapshots)) {
+            assertEquals(100, journal.recover().intValue());
+            assertEquals(10, journal.lastSequence());
+            assertEquals(11, journal.append(110));
+        }
+        try (Journal<Integer> journal = open(journalDir, snapshots)) {
+            assertEquals(110, journal.recover().intValue());
+        }
+    }
+
+    @Test
+    public void records_after_a_snapshot_ahead_of_the_journal_are_kept() throws IOException {
+        File journalDir = tmp.newFolder("journal");
+        File snapshotDir = tmp.newFolder("snapshots");
+        SnapshotStore<Integer> snapshots = store(snapshotDir).build();
+        try (Journal<Integer> journal = open(journalDir, snapshots)) {
+            for (int i = 1; i <= 5; i++) {
+                journal.append(i);
+            }
+        }
+        // as if the records before the snapshot were lost in a crash
+        snapshots.save(6, 6);
+        try (Journal<Integer> journal = open(journalDir, snapshots)) {
+            assertEquals(6, journal.recover().intValue());
+            assertEquals(6, journal.lastSequence());
+            for (int i = 7; i <= 9; i++) {
+                assertEquals(i, journal.append(i));
+            }
+        }
+        try (Journal<Integer> journal = open(journalDir, snapshots)) {
+            assertEquals(9, journal.recover().intValue());
+            assertEquals(9, journal.lastSequence());
+        }
+    }
+
+    @Test
+    public void failed_snapshot_stops_the_journal() throws IOException {
+        File journalDir = tmp.newFolder("journal");
+        File snapshotDir = tmp.newFolder("snapshots");
+        SnapshotStore<Integer> snapshots = store(snapshotDir).everyRecords(2).build();
+        Journal<Integer> journal = open(journalDir, snapshots);
+        journal.append(1);
+        assertTrue(snapshotDir.delete());
+        assertEquals(2, journal.append(2));
+        try {
+            journal.append(3);
+            fail("append should have thrown");
+        }
+        catch (IOException ignored) {
+        }
+        try {
+            journal.sync();
+            fail("sync should have thrown");
+        }
+        catch (IOException ignored) {
+        }
+        try {
+            journal.close();
+            fail("close should have thrown");
+        }
+        catch (IOException ignored) {
+        }
+        try (Journal<Integer> reopened = open(journalDir, snapshots)) {
+            assertEquals(2, reopened.recover().intValue());
+        }
+    }
+}